@@ -1,10 +1,15 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The main class for the client. Creates a connection with the server, reads an processes parameters, and instantiates
@@ -22,6 +27,21 @@ public class ChatClient {
      */
     boolean serverShutdown = false;
 
+    /**
+     * Stores whether or not the client asks the server for binary frames instead of lines.
+     */
+    final boolean binary;
+
+    /**
+     * Stores whether or not the client asks the server to compress everything sent each way.
+     */
+    final boolean deflate;
+
+    /**
+     * Stores the thread sending what the user enters, which also answers the server's heartbeats.
+     */
+    private volatile LookingForInput input;
+
     /**
      * Instance method for ChatClient
      *
@@ -29,27 +49,20 @@ public class ChatClient {
      * @param port : port the client tries to connect to a server through.
      */
     public ChatClient(String address, int port) {
-        try {
-            //Attempts to create a new socket with the server on the address and port given.
-            server = new Socket(address,port);
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (ConnectException e){
-            /* However if there was a timeout there was likely a problem with the address given so we set the address to
-             * default and see if that will work.
-             */
+        this(new ClientTransport(address, port), false, false);
+    }
 
-            System.out.println("Connection timed out: setting address to localhost (default).");
-            try {
-                server = new Socket("localhost", port);
-            } catch(UnknownHostException e1){
-                e.printStackTrace();
-            } catch(IOException e1){
-                e.printStackTrace();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Instance method for ChatClient
+     *
+     * @param transport : how the client reaches the server.
+     * @param binary : whether or not to ask the server for binary frames instead of lines.
+     * @param deflate : whether or not to ask the server to compress everything sent each way.
+     */
+    ChatClient(ClientTransport transport, boolean binary, boolean deflate) {
+        this.binary = binary;
+        this.deflate = deflate;
+        server = transport.connect();
     }
 
     /**
@@ -68,11 +81,22 @@ public class ChatClient {
          * Creates an instance of LookingForInput.
          */
         LookingForInput l2 = new LookingForInput(server, this);
+        input = l2;
 
         //And begins a thread of it.
         l2.start();
     }
 
+    /**
+     * Answers a heartbeat from the server, so it knows the client is still there even when the user isn't typing.
+     */
+    void pong() {
+        LookingForInput sender = input;
+        if(sender != null){
+            sender.pong();
+        }
+    }
+
     /**
      * The main method of the ChatClient. Creates an instance of ChatClient with processed parameters.
      *
@@ -81,54 +105,34 @@ public class ChatClient {
     public static void main(String[] args) {
 
         /**
-         * Stores the address that the client will bind to.
-         */
-        String address = "localhost";
-
-        /**
-         * Stores the port the client will use to connect to the server.
+         * Stores how the client reaches the server.
          */
-        int port = 14001;
+        ClientTransport transport = ClientTransport.parse(args);
 
         /**
-         * Stores whether or not the address needs to be changed.
+         * Stores whether or not to ask the server for binary frames.
          */
-        boolean changeAddress = false;
+        boolean binary = false;
 
         /**
-         * Stores whether or not the port needs to be changed.
+         * Stores whether or not to ask the server for compression.
          */
-        boolean changePort = false;
+        boolean deflate = false;
 
         for (String arg: args) {
-            //Goes through parameters passed in by the user running the client and attempts to apply given parameters.
-            if(changeAddress){
-                //If we are changing the address we set it to the argument after a -cca and inform the user.
-                address = arg;
-                System.out.println("Setting address: " + address);
+            //Goes through the parameters that are not about how to reach the server.
+            if(arg.equals("-binary")){
+                binary = true;
+                System.out.println("Using binary frames");
             }
-            if(changePort){
-                try{
-                    /* If changing the port we attempt to convert the parameter to an int. If it throws an error there
-                     * was an error with the parameter so we set to default and inform the user what has happened.
-                     */
-                    port = Integer.parseInt(arg);
-                    System.out.println("Setting port: " + port);
-                }
-                catch(NumberFormatException e){
-                    System.out.println("Invalid port: setting port to 14001 (default).");
-                }
+            if(arg.equals("-deflate")){
+                deflate = true;
+                System.out.println("Using compression");
             }
-
-            /* If the parameter is -cca we will be changing the address in the next arg, if it is -ccp we will be
-             * changing the port is the next arg.
-             */
-            changeAddress = arg.equals("-cca");
-            changePort = arg.equals("-ccp");
         }
 
-        //Creates an instance of ChatClient with the address and port guided by parameters.
-        new ChatClient(address, port).go();
+        //Creates an instance of ChatClient with the transport and options guided by parameters.
+        new ChatClient(transport, binary, deflate).go();
     }
 }
 
@@ -165,9 +169,20 @@ class ListeningToServer extends Thread{
     public void run(){
         try {
             /**
-             * Stores the buffer reader used to read the input stream reader for the input steam of the server.
+             * Stores the buffered input stream of the server, read as lines or as binary frames.
              */
-            BufferedReader serverIn = new BufferedReader(new InputStreamReader(server.getInputStream()));
+            BufferedInputStream serverIn = new BufferedInputStream(cm.deflate
+                    ? new NegotiatedInputStream(server.getInputStream()) : server.getInputStream());
+
+            /**
+             * Stores the stream binary frames are read from, once the server has confirmed them.
+             */
+            DataInputStream frameIn = null;
+
+            /**
+             * Stores the username behind each sender id the server has told us about.
+             */
+            Map<Integer, String> usernames = new HashMap<>();
 
             /**
              * Stores the incoming message from the server
@@ -176,7 +191,25 @@ class ListeningToServer extends Thread{
 
             while (!serverMsg.equals("EXIT")) {
                 //While someone has not exited the server, this will read what is being written to the server.
-                serverMsg = serverIn.readLine();
+                serverMsg = frameIn != null ? Frames.read(frameIn, usernames) : Frames.readLine(serverIn);
+                if(serverMsg == null){
+                    //The server has gone.
+                    break;
+                }
+                if(frameIn == null && cm.binary && serverMsg.equals(Frames.BINARY_CONFIRM)){
+                    //Everything after this line is binary frames.
+                    frameIn = new DataInputStream(serverIn);
+                    continue;
+                }
+                if(serverMsg.equals(Frames.PING)){
+                    //The server checking we are still here, which the user doesn't need to see.
+                    cm.pong();
+                    continue;
+                }
+                if(serverMsg.isEmpty() && frameIn != null){
+                    //A frame that only told us a username, there is nothing to show.
+                    continue;
+                }
                 //And print out what has been written.
                 System.out.println(serverMsg);
                 if(serverMsg.equals("EXIT")){
@@ -207,6 +240,21 @@ class LookingForInput extends Thread{
      */
     private ChatClient cm;
 
+    /**
+     * Stores the print writer for the server so we can write things to the servers output stream.
+     */
+    private PrintWriter serverOut;
+
+    /**
+     * Stores the stream binary frames are written to, once the username has been sent.
+     */
+    private DataOutputStream frameOut;
+
+    /**
+     * Stores whether or not the username has been sent.
+     */
+    private boolean usernameSent = false;
+
     /**
      * Instance method of LookingForInput.
      *
@@ -234,19 +282,65 @@ class LookingForInput extends Thread{
              */
             BufferedReader userIn = new BufferedReader(new InputStreamReader(System.in));
 
-            /**
-             * Stores the print writer for the server so we can write things to the servers output stream.
-             */
-            PrintWriter serverOut = new PrintWriter(server.getOutputStream(), true);
+            synchronized (this) {
+                serverOut = new PrintWriter(server.getOutputStream(), true);
+            }
 
             while(!userInput.equals("EXIT") && !cm.serverShutdown) {
                 //Whilst the server has not been shutdown, this looks for user inputs and writes it to the server.
                 userInput = userIn.readLine();
-                serverOut.println(userInput);
+                if(userInput == null){
+                    break;
+                }
+                send(userInput);
             }
 
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Sends what the user entered to the server, as a line or a frame.
+     *
+     * @param userInput : what the user entered.
+     * @throws IOException : if the server can not be written to.
+     */
+    private synchronized void send(String userInput) throws IOException {
+        if(frameOut != null){
+            Frames.write(frameOut, userInput);
+        }
+        else if(!usernameSent && (cm.binary || cm.deflate)){
+            //The first thing entered is the username, which is also where we ask for binary frames and/or compression.
+            serverOut.println((cm.deflate ? Compression.DEFLATE_REQUEST : "")
+                    + (cm.binary ? Frames.BINARY_REQUEST : "") + userInput);
+            OutputStream out = cm.deflate ? Compression.deflating(server.getOutputStream())
+                    : server.getOutputStream();
+            serverOut = new PrintWriter(out, true);
+            if(cm.binary){
+                frameOut = new DataOutputStream(new BufferedOutputStream(out));
+            }
+        }
+        else {
+            serverOut.println(userInput);
+        }
+        usernameSent = true;
+    }
+
+    /**
+     * Answers a heartbeat from the server in the same format as everything else sent.
+     */
+    synchronized void pong() {
+        try {
+            if(frameOut != null){
+                Frames.write(frameOut, Frames.PONG_TYPE, Frames.PONG);
+            }
+            else if(serverOut != null){
+                serverOut.println(Frames.PONG);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,330 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A read-only client that gets the server's broadcasts as datagrams from its fan-out (the server's -fanout parameter)
+ * instead of over a TCP connection of its own, i.e. for spectators and dashboards. It joins the multicast group, or
+ * listens on the port the server sends to, and prints every message in order. When the sequence numbers show it has
+ * missed some, it fetches them from the server over TCP before carrying on.
+ */
+public class FanOutSubscriber {
+
+    /**
+     * Stores the channel the datagrams are received on.
+     */
+    private final DatagramChannel receiver;
+
+    /**
+     * Stores the address of the server's repair port.
+     */
+    private final InetSocketAddress repairAddress;
+
+    /**
+     * Stores the fraction of datagrams to throw away, pretending they were lost, to try out the repairs.
+     */
+    private final double drop;
+
+    /**
+     * Stores the connection missed messages are fetched on, or null if it is not open.
+     */
+    private Socket repair;
+
+    /**
+     * Stores the stream replies to repair requests are read from.
+     */
+    private DataInputStream repairIn;
+
+    /**
+     * Stores the stream repair requests are sent on.
+     */
+    private DataOutputStream repairOut;
+
+    /**
+     * Stores the epoch of the server the datagrams are from, or 0 before the first.
+     */
+    private long epoch;
+
+    /**
+     * Stores the sequence number of the next message to print.
+     */
+    private long expected;
+
+    /**
+     * Stores how many messages have come as datagrams.
+     */
+    private long received;
+
+    /**
+     * Stores how many messages had to be fetched over TCP.
+     */
+    private long repaired;
+
+    /**
+     * Stores how many messages were missed and could not be fetched.
+     */
+    private long missed;
+
+    /**
+     * Instance method for FanOutSubscriber
+     *
+     * @param fanOut : the destination the server sends to: a multicast group to join, or this machine's port.
+     * @param ni : the interface to join the multicast group on.
+     * @param server : the address of the server.
+     * @param repairPort : the port of the server missed messages are fetched on, the port of its first destination.
+     * @param dropFraction : the fraction of datagrams to throw away, to try out the repairs, or 0.
+     * @throws IOException : if the port can not be bound or the group can not be joined.
+     */
+    public FanOutSubscriber(InetSocketAddress fanOut, NetworkInterface ni, String server, int repairPort,
+                            double dropFraction) throws IOException {
+        repairAddress = new InetSocketAddress(server, repairPort);
+        drop = dropFraction;
+        receiver = DatagramChannel.open(StandardProtocolFamily.INET);
+        //Lets other subscribers on this machine join the same group on the same port.
+        receiver.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        receiver.bind(new InetSocketAddress(fanOut.getPort()));
+        if(fanOut.getAddress().isMulticastAddress()){
+            receiver.join(fanOut.getAddress(), ni);
+            System.out.println("Joined " + fanOut + " on " + ni.getName());
+        }
+        else {
+            System.out.println("Listening on port " + fanOut.getPort());
+        }
+    }
+
+    /**
+     * Prints every message until the server is shutdown.
+     *
+     * @throws IOException : if the datagrams can not be received.
+     */
+    public void run() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        while (true) {
+            buf.clear();
+            receiver.receive(buf);
+            buf.flip();
+            if(drop > 0 && ThreadLocalRandom.current().nextDouble() < drop){
+                continue;
+            }
+            FanOutDatagram d = FanOutDatagram.decode(buf);
+            if(d == null){
+                continue;
+            }
+            if(d.epoch != epoch){
+                if(epoch != 0){
+                    System.out.println("(server restarted)");
+                }
+                //Messages from before the subscriber started are not fetched, it starts from the first one it gets.
+                epoch = d.epoch;
+                expected = d.kind == FanOutDatagram.MESSAGE ? d.seq : d.seq + 1;
+                closeRepair();
+            }
+            if(d.kind == FanOutDatagram.HEARTBEAT && d.seq >= expected && !fetch(expected, d.seq)){
+                //The last messages before a quiet spell were missed, and the server was shutdown after them.
+                break;
+            }
+            if(d.kind != FanOutDatagram.MESSAGE || d.seq < expected){
+                continue;
+            }
+            if(d.seq > expected && !fetch(expected, d.seq - 1)){
+                break;
+            }
+            received++;
+            if(!print(d)){
+                break;
+            }
+        }
+        System.out.println(received + " messages as datagrams, " + repaired + " fetched over TCP, " + missed
+                + " missed");
+        receiver.close();
+        closeRepair();
+    }
+
+    /**
+     * Prints a message and moves on to the next.
+     *
+     * @param d : the message.
+     * @return : whether or not to carry on, which is until the server is shutdown.
+     */
+    private boolean print(FanOutDatagram d) {
+        expected = d.seq + 1;
+        String line = d.line.endsWith("\n") ? d.line.substring(0, d.line.length() - 1) : d.line;
+        System.out.println(d.channel == null ? line : "#" + d.channel + " " + line);
+        return d.channel != null || !line.equals("EXIT");
+    }
+
+    /**
+     * Fetches missed messages from the server over TCP and prints them, noting any it no longer has.
+     *
+     * @param from : the sequence number of the first missed message.
+     * @param to : the sequence number of the last.
+     * @return : whether or not to carry on, which is unless one of them shut the server down.
+     */
+    private boolean fetch(long from, long to) {
+        try {
+            if(repair == null){
+                repair = new Socket(repairAddress.getAddress(), repairAddress.getPort());
+                repair.setTcpNoDelay(true);
+                repairIn = new DataInputStream(new BufferedInputStream(repair.getInputStream()));
+                repairOut = new DataOutputStream(repair.getOutputStream());
+            }
+            repairOut.writeLong(epoch);
+            repairOut.writeLong(from);
+            repairOut.writeLong(to);
+            repairOut.flush();
+            while (true) {
+                FanOutDatagram d = FanOutDatagram.read(repairIn);
+                if(d == null || d.kind == FanOutDatagram.END){
+                    return true;
+                }
+                if(d.kind == FanOutDatagram.GONE && d.seq > expected){
+                    System.out.println("(missed " + (d.seq - expected) + (d.seq - expected == 1 ? " message)"
+                            : " messages)"));
+                    missed += d.seq - expected;
+                    expected = d.seq;
+                }
+                else if(d.kind == FanOutDatagram.MESSAGE && d.seq >= expected){
+                    repaired++;
+                    if(!print(d)){
+                        return false;
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.println("(could not fetch " + (to - expected + 1) + " missed messages: " + e.getMessage() + ")");
+            missed += to - expected + 1;
+            expected = to + 1;
+            closeRepair();
+            return true;
+        }
+    }
+
+    /**
+     * Closes the connection missed messages are fetched on, if it is open, so the next fetch connects again.
+     */
+    private void closeRepair() {
+        if(repair == null){
+            return;
+        }
+        try {
+            repair.close();
+        }
+        catch (IOException e) {
+            //It is being thrown away anyway.
+        }
+        repair = null;
+    }
+
+    /**
+     * Runs a subscriber with the parameters given.
+     *
+     * @param args : -fanout host:port (default 239.1.2.3:14010), -fanoutif interface (default the loopback one),
+     *             -cca the address of the server (default localhost), -ccp its repair port (default the port of
+     *             -fanout) and -drop fraction (default 0).
+     */
+    public static void main(String[] args) {
+        /**
+         * Stores the destination the server sends to.
+         */
+        String fanOut = "239.1.2.3:14010";
+
+        /**
+         * Stores the name of the interface to join the group on, or null for the loopback one.
+         */
+        String interfaceName = null;
+
+        /**
+         * Stores the address of the server.
+         */
+        String address = "localhost";
+
+        /**
+         * Stores the repair port of the server, or 0 for the port of the destination.
+         */
+        int port = 0;
+
+        /**
+         * Stores the fraction of datagrams to throw away.
+         */
+        double drop = 0;
+
+        /**
+         * Stores the parameter the next argument is the value of, or null.
+         */
+        String option = null;
+
+        for (String arg: args) {
+            //Goes through parameters passed in by the user and attempts to apply given parameters.
+            if(option != null){
+                switch (option) {
+                    case "-fanout":
+                        fanOut = arg;
+                        System.out.println("Setting fanout: " + fanOut);
+                        break;
+                    case "-fanoutif":
+                        interfaceName = arg;
+                        System.out.println("Setting fanoutif: " + interfaceName);
+                        break;
+                    case "-cca":
+                        address = arg;
+                        System.out.println("Setting address: " + address);
+                        break;
+                    case "-ccp":
+                        try {
+                            port = Integer.parseInt(arg);
+                            System.out.println("Setting port: " + port);
+                        }
+                        catch (NumberFormatException e) {
+                            System.out.println("Invalid port: setting port to the fanout port (default).");
+                        }
+                        break;
+                    case "-drop":
+                        try {
+                            drop = Double.parseDouble(arg);
+                            System.out.println("Dropping " + arg + " of datagrams");
+                        }
+                        catch (NumberFormatException e) {
+                            System.out.println("Invalid drop: setting drop to 0 (default).");
+                        }
+                        break;
+                }
+                option = null;
+            }
+            else if(arg.startsWith("-")){
+                //The next argument is the value of this parameter.
+                option = arg;
+            }
+        }
+
+        try {
+            int colon = fanOut.lastIndexOf(':');
+            InetSocketAddress destination = new InetSocketAddress(fanOut.substring(0, colon),
+                    Integer.parseInt(fanOut.substring(colon + 1)));
+            NetworkInterface ni = interfaceName == null
+                    ? NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress())
+                    : NetworkInterface.getByName(interfaceName);
+            if(ni == null){
+                System.out.println("Unknown interface: " + interfaceName);
+                return;
+            }
+            new FanOutSubscriber(destination, ni, address, port == 0 ? destination.getPort() : port, drop).run();
+        }
+        catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.out.println("Invalid fanout: " + fanOut + " (should be host:port).");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
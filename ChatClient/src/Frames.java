@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Reads and writes the binary frames a client can ask the server for instead of lines. A frame is: int length (of
+ * everything after it), byte type, int sender id, then the payload text.
+ */
+final class Frames {
+
+    /**
+     * Stores the line sent instead of just the username to ask for binary frames.
+     */
+    static final String BINARY_REQUEST = "/binary ";
+
+    /**
+     * Stores the line the server sends to confirm that everything after it will be binary frames.
+     */
+    static final String BINARY_CONFIRM = "BINARY";
+
+    /**
+     * Stores the frame type of a chat message from a client.
+     */
+    static final byte CHAT = 1;
+
+    /**
+     * Stores the frame type that tells us the username behind a sender id.
+     */
+    static final byte NAME = 3;
+
+    /**
+     * Stores the frame type the client answers a heartbeat with.
+     */
+    static final byte PONG_TYPE = 6;
+
+    /**
+     * Stores the line (or frame payload) of a heartbeat from the server.
+     */
+    static final String PING = "PING";
+
+    /**
+     * Stores the line (or frame payload) a heartbeat is answered with.
+     */
+    static final String PONG = "PONG";
+
+    /**
+     * Stores the number of bytes in a frame after the length: the type and the sender id.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * Stores the charset used by the server.
+     */
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    private Frames(){
+    }
+
+    /**
+     * Reads a line a byte at a time, so the frames after the confirmation line are left in the stream.
+     *
+     * @param in : the (buffered) stream to read from.
+     * @return : the line, or null if the stream has ended.
+     * @throws IOException : if the stream can not be read.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if(b == -1){
+                return line.size() == 0 ? null : new String(line.toByteArray(), CHARSET);
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, CHARSET);
+    }
+
+    /**
+     * Reads the next frame and turns it into what should be shown.
+     *
+     * @param in : the stream of the server.
+     * @param usernames : the username behind each sender id, updated by NAME frames.
+     * @return : the message as it would have been sent as a line, "" for a NAME frame, or null if the server has gone.
+     * @throws IOException : if the stream can not be read.
+     */
+    static String read(DataInputStream in, Map<Integer, String> usernames) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        byte type = in.readByte();
+        int sender = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        String text = new String(payload, CHARSET);
+        if(type == NAME){
+            usernames.put(sender, text);
+            return "";
+        }
+        if(type == CHAT){
+            return "[" + usernames.getOrDefault(sender, "#" + sender) + "] " + text;
+        }
+        return text;
+    }
+
+    /**
+     * Writes a message to the server as a chat frame.
+     *
+     * @param out : the stream of the server.
+     * @param text : the message.
+     * @throws IOException : if the stream can not be written to.
+     */
+    static void write(DataOutputStream out, String text) throws IOException {
+        write(out, CHAT, text);
+    }
+
+    /**
+     * Writes a frame to the server.
+     *
+     * @param out : the stream of the server.
+     * @param type : the frame type.
+     * @param text : the payload.
+     * @throws IOException : if the stream can not be written to.
+     */
+    static void write(DataOutputStream out, byte type, String text) throws IOException {
+        byte[] payload = text.getBytes(CHARSET);
+        out.writeInt(HEADER_LENGTH + payload.length);
+        out.writeByte(type);
+        out.writeInt(0);
+        out.write(payload);
+        out.flush();
+    }
+}
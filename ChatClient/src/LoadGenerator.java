@@ -0,0 +1,570 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for the server. Connects many simulated clients that log in the same way ChatClient does and
+ * then each send messages at a fixed rate. Every message carries the time it was sent, so when it reaches the clients
+ * in the sender's channel the delivery latency can be measured. Everything runs in one process, so the send and
+ * receive times come from the same clock.
+ */
+public class LoadGenerator {
+
+    /**
+     * Stores what every message sent by the generator starts with, followed by the System.nanoTime() it was sent at.
+     */
+    static final String MARKER = "LG ";
+
+    /**
+     * Stores how the clients reach the server.
+     */
+    final ClientTransport transport;
+
+    /**
+     * Stores whether or not the clients ask the server for binary frames instead of lines.
+     */
+    final boolean binary;
+
+    /**
+     * Stores how many messages were sent.
+     */
+    final LongAdder sent = new LongAdder();
+
+    /**
+     * Stores how many of the generator's messages reached a client.
+     */
+    final LongAdder delivered = new LongAdder();
+
+    /**
+     * Stores how many clients failed to send or lost their connection.
+     */
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * Stores how long messages took to reach each client.
+     */
+    final LatencyRecorder latency = new LatencyRecorder();
+
+    /**
+     * Stores whether or not the test is still running, once it is not a closed connection is not an error.
+     */
+    volatile boolean running = true;
+
+    /**
+     * Instance method for LoadGenerator
+     *
+     * @param transport : how the clients reach the server.
+     * @param binary : whether or not the clients ask the server for binary frames.
+     */
+    LoadGenerator(ClientTransport transport, boolean binary) {
+        this.transport = transport;
+        this.binary = binary;
+    }
+
+    /**
+     * Connects the clients, has them send for the given time and prints what was measured.
+     *
+     * @param clients : how many clients to connect.
+     * @param channels : how many channels to spread them over, the first one being "general".
+     * @param rate : how many messages each client sends a second.
+     * @param seconds : how long the clients send for.
+     * @param size : how many bytes of padding to add to each message.
+     */
+    public void run(int clients, int channels, double rate, int seconds, int size) {
+        /**
+         * Stores the connected clients.
+         */
+        List<SimulatedClient> connected = new ArrayList<>();
+
+        /**
+         * Stores the padding added to each message, so they are roughly the size asked for.
+         */
+        String padding = size > 0 ? " " + "x".repeat(size) : "";
+
+        for (int i = 0; i < clients; i++) {
+            try {
+                //Clients are spread over the channels in turn, so every channel has about the same number.
+                connected.add(new SimulatedClient(this, i, i % channels == 0 ? null : "lg-" + i % channels, padding));
+            }
+            catch (IOException e) {
+                System.out.println("Could not connect client " + i + ": " + e.getMessage());
+                break;
+            }
+            if((i + 1) % 500 == 0){
+                System.out.println("Connected " + (i + 1) + " clients");
+            }
+        }
+        if(connected.isEmpty()){
+            return;
+        }
+        System.out.println("Connected " + connected.size() + " clients in " + channels + " channel(s), each sending "
+                + rate + " messages/s for " + seconds + "s");
+
+        /**
+         * Stores the threads that send the messages. Each client's sends are spread randomly over its period so they
+         * don't all arrive at once.
+         */
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "lg-sender");
+                    t.setDaemon(true);
+                    return t;
+                });
+        long period = (long) (1e9 / rate);
+        for (SimulatedClient c: connected) {
+            c.sending = senders.scheduleAtFixedRate(c::send, ThreadLocalRandom.current().nextLong(period), period,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        long start = System.nanoTime();
+        long lastSent = 0, lastDelivered = 0;
+        try {
+            for (int s = 1; s <= seconds; s++) {
+                Thread.sleep(1000);
+                long nowSent = sent.sum(), nowDelivered = delivered.sum();
+                System.out.printf("%3ds: sent %d/s, delivered %d/s, p99 %dus%n", s, nowSent - lastSent,
+                        nowDelivered - lastDelivered, latency.percentile(0.99));
+                lastSent = nowSent;
+                lastDelivered = nowDelivered;
+            }
+            long elapsed = System.nanoTime() - start;
+            senders.shutdownNow();
+            //Gives messages still on their way a moment to arrive before the clients disconnect.
+            Thread.sleep(1000);
+            running = false;
+            report(connected.size(), channels, elapsed);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            running = false;
+            for (SimulatedClient c: connected) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Prints what was measured.
+     *
+     * @param clients : how many clients were connected.
+     * @param channels : how many channels they were spread over.
+     * @param elapsed : how long the clients were sending for, in nanoseconds.
+     */
+    private void report(int clients, int channels, long elapsed) {
+        double seconds = elapsed / 1e9;
+        long s = sent.sum();
+        long d = delivered.sum();
+        System.out.printf("Sent: %d messages (%.0f/s)%n", s, s / seconds);
+        System.out.printf("Delivered: %d messages (%.0f/s), about %d expected%n", d, d / seconds,
+                s * clients / channels);
+        System.out.printf("Latency: p50 %dus, p90 %dus, p99 %dus, p99.9 %dus, max %dus%n", latency.percentile(0.5),
+                latency.percentile(0.9), latency.percentile(0.99), latency.percentile(0.999), latency.max());
+        System.out.println("Errors: " + errors.sum());
+    }
+
+    /**
+     * Measures a message that reached a client, if it is one the generator sent.
+     *
+     * @param msg : the message as it would be shown, i.e. "[lg3] LG 123456789 xxx".
+     */
+    void received(String msg) {
+        int start = msg.indexOf("] " + MARKER);
+        if(start == -1){
+            return;
+        }
+        start += 2 + MARKER.length();
+        int end = msg.indexOf(' ', start);
+        try {
+            long sentAt = Long.parseLong(msg, start, end == -1 ? msg.length() : end, 10);
+            latency.record(System.nanoTime() - sentAt);
+            delivered.increment();
+        }
+        catch (NumberFormatException e) {
+            //Someone else's message that happens to look like ours.
+        }
+    }
+
+    /**
+     * The main method of the LoadGenerator. Reads the parameters and runs the test.
+     *
+     * @param args : the parameters given by the user.
+     */
+    public static void main(String[] args) {
+
+        /**
+         * Stores how the clients reach the server.
+         */
+        ClientTransport transport = ClientTransport.parse(args);
+
+        /**
+         * Stores how many clients to connect.
+         */
+        int clients = 100;
+
+        /**
+         * Stores how many channels to spread the clients over.
+         */
+        int channels = 1;
+
+        /**
+         * Stores how many messages each client sends a second.
+         */
+        double rate = 1;
+
+        /**
+         * Stores how many seconds the clients send for.
+         */
+        int seconds = 10;
+
+        /**
+         * Stores how many bytes of padding to add to each message.
+         */
+        int size = 0;
+
+        /**
+         * Stores whether or not the clients ask the server for binary frames.
+         */
+        boolean binary = false;
+
+        /**
+         * Stores the parameter the next argument is the value of, or null.
+         */
+        String option = null;
+
+        for (String arg: args) {
+            //Goes through parameters passed in by the user and attempts to apply given parameters.
+            if(option != null){
+                switch (option) {
+                    case "-clients":
+                        clients = (int) parseNumber(arg, "clients", 1, 100);
+                        break;
+                    case "-channels":
+                        channels = (int) parseNumber(arg, "channels", 1, 1);
+                        break;
+                    case "-rate":
+                        rate = parseNumber(arg, "rate", 0.001, 1);
+                        break;
+                    case "-duration":
+                        seconds = (int) parseNumber(arg, "duration", 1, 10);
+                        break;
+                    case "-size":
+                        size = (int) parseNumber(arg, "size", 0, 0);
+                        break;
+                }
+                option = null;
+            }
+            else if(arg.equals("-binary")){
+                binary = true;
+                System.out.println("Using binary frames");
+            }
+            else if(arg.equals("-tls")){
+                //Read by ClientTransport.parse, it has no value after it.
+            }
+            else if(arg.startsWith("-")){
+                //The next argument is the value of this parameter.
+                option = arg;
+            }
+        }
+
+        new LoadGenerator(transport, binary).run(clients, Math.min(channels, clients), rate, seconds, size);
+    }
+
+    /**
+     * Reads a number parameter, telling the user and using the default if it is not a number or is too small.
+     *
+     * @param arg : the parameter.
+     * @param name : the name of the parameter, without the "-".
+     * @param min : the smallest value allowed.
+     * @param defaultValue : the value used if the parameter is not valid.
+     * @return : the value of the parameter.
+     */
+    private static double parseNumber(String arg, String name, double min, double defaultValue) {
+        try {
+            double value = Double.parseDouble(arg);
+            if(value >= min){
+                System.out.println("Setting " + name + ": " + arg);
+                return value;
+            }
+        }
+        catch (NumberFormatException e) {
+            //Falls through to the default below.
+        }
+        System.out.println("Invalid " + name + ": setting " + name + " to " + defaultValue + " (default).");
+        return defaultValue;
+    }
+}
+
+/**
+ * One simulated client: answers "Username: " like a user of ChatClient would, optionally joins a channel, then sends
+ * stamped messages when told to and measures every stamped message it receives on its own thread.
+ */
+class SimulatedClient implements Runnable {
+
+    /**
+     * Stores the generator the client belongs to.
+     */
+    private final LoadGenerator lg;
+
+    /**
+     * Stores the socket of the server.
+     */
+    private final Socket server;
+
+    /**
+     * Stores the buffered input stream of the server, read as lines or as binary frames.
+     */
+    private final BufferedInputStream serverIn;
+
+    /**
+     * Stores the print writer for the server, used until binary frames are confirmed.
+     */
+    private final PrintWriter serverOut;
+
+    /**
+     * Stores the stream binary frames are written to, or null if the client uses lines.
+     */
+    private DataOutputStream frameOut;
+
+    /**
+     * Stores the stream binary frames are read from, or null if the client uses lines.
+     */
+    private DataInputStream frameIn;
+
+    /**
+     * Stores the padding added to each message.
+     */
+    private final String padding;
+
+    /**
+     * Stores the scheduled sends of this client, so they can be stopped if its connection breaks.
+     */
+    ScheduledFuture<?> sending;
+
+    /**
+     * Instance method for SimulatedClient. Connects and logs in, then starts listening to the server.
+     *
+     * @param generator : the generator the client belongs to.
+     * @param id : the number of the client, used in its username.
+     * @param channel : the channel to join, or null to stay in "general".
+     * @param padding : the padding added to each message.
+     * @throws IOException : if the client can not connect or log in.
+     */
+    SimulatedClient(LoadGenerator generator, int id, String channel, String padding) throws IOException {
+        lg = generator;
+        this.padding = padding;
+        //Every client shares the JVM's TLS session cache, so after the first they resume instead of full handshakes.
+        server = lg.transport.open();
+        server.setTcpNoDelay(true);
+        serverIn = new BufferedInputStream(server.getInputStream());
+        serverOut = new PrintWriter(server.getOutputStream(), true);
+
+        //Waits for "Username: " and answers it, asking for binary frames in the same way ChatClient does.
+        if(Frames.readLine(serverIn) == null){
+            throw new IOException("Server closed the connection");
+        }
+        if(lg.binary){
+            serverOut.println(Frames.BINARY_REQUEST + "lg" + id);
+            String line;
+            while (!Frames.BINARY_CONFIRM.equals(line = Frames.readLine(serverIn))) {
+                if(line == null){
+                    throw new IOException("Server closed the connection");
+                }
+            }
+            frameIn = new DataInputStream(serverIn);
+            frameOut = new DataOutputStream(new BufferedOutputStream(server.getOutputStream()));
+        }
+        else {
+            serverOut.println("lg" + id);
+        }
+        if(channel != null){
+            //The reply ("Joined ...") is ignored by the listener as it carries no stamp.
+            write("/join " + channel);
+        }
+
+        Thread listener = new Thread(null, this, "lg-listener-" + id, 256 * 1024);
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Sends a message stamped with the current time.
+     */
+    void send() {
+        try {
+            write(LoadGenerator.MARKER + System.nanoTime() + padding);
+            lg.sent.increment();
+        }
+        catch (IOException e) {
+            lg.errors.increment();
+            sending.cancel(false);
+        }
+    }
+
+    /**
+     * Writes a message to the server as a line or a frame.
+     *
+     * @param text : the message.
+     * @throws IOException : if the server can not be written to.
+     */
+    private synchronized void write(String text) throws IOException {
+        if(frameOut != null){
+            Frames.write(frameOut, text);
+        }
+        else {
+            serverOut.println(text);
+            if(serverOut.checkError()){
+                throw new IOException("Server closed the connection");
+            }
+        }
+    }
+
+    /**
+     * Listens to the server, measuring every stamped message, until the connection is closed.
+     */
+    public void run() {
+        /**
+         * Stores the username behind each sender id the server has told us about.
+         */
+        Map<Integer, String> usernames = new HashMap<>();
+        try {
+            String serverMsg;
+            while ((serverMsg = frameIn != null ? Frames.read(frameIn, usernames) : Frames.readLine(serverIn)) != null) {
+                if(serverMsg.equals(Frames.PING)){
+                    //Only sent to a client that has been quiet, i.e. with a very low rate.
+                    write(Frames.PONG);
+                    continue;
+                }
+                lg.received(serverMsg);
+            }
+            if(lg.running){
+                lg.errors.increment();
+            }
+        }
+        catch (IOException e) {
+            if(lg.running){
+                lg.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Disconnects from the server.
+     */
+    void close() {
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * A lock-free histogram of latencies in microseconds. Each power of two is split into 16 buckets, so a percentile is
+ * within about 6% of the true value.
+ */
+class LatencyRecorder {
+
+    /**
+     * Stores how many buckets each power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 16;
+
+    /**
+     * Stores the count in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    /**
+     * Stores the longest latency recorded, in microseconds.
+     */
+    private volatile long max;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos : the latency in nanoseconds.
+     */
+    void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        counts.incrementAndGet(index(micros));
+        if(micros > max){
+            //Racing writers may lose a slightly smaller maximum, which is fine for a report.
+            max = micros;
+        }
+    }
+
+    /**
+     * @param micros : a latency in microseconds.
+     * @return : the bucket it is counted in.
+     */
+    private static int index(long micros) {
+        if(micros < SUB_BUCKETS){
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return (exponent - 3) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index : a bucket.
+     * @return : the largest latency counted in it, in microseconds.
+     */
+    private static long upperBound(int index) {
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + 3;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+    }
+
+    /**
+     * @param p : the percentile wanted, between 0 and 1.
+     * @return : the latency at that percentile in microseconds, or 0 if nothing has been recorded.
+     */
+    long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return : the longest latency recorded, in microseconds.
+     */
+    long max() {
+        return max;
+    }
+}
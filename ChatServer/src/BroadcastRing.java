@@ -0,0 +1,220 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes chat messages from the clients' readers to a single sequencer thread, which sends each one to its channel
+ * (history, journal, every member's queue and the rest of the cluster) in the order they were put in the ring. The
+ * members' own writers then take them from their queues, so the pipeline is readers -> ring -> sequencer -> queues ->
+ * writers, with every message in one order for the whole server.
+ *
+ * The ring is a fixed array of slots that are reused, in the style of the LMAX Disruptor. A reader claims the next
+ * sequence number with a single atomic increment, fills the slot for it and marks the slot with the sequence number
+ * to publish it, so readers never lock or wait for each other. The sequencer takes every published slot in a row as
+ * one batch, and readers only wake it when it has said it is going to sleep, so a busy ring needs no wake ups at all.
+ * A reader that finds the ring full waits for the sequencer to free a slot, slowing down clients that send faster than
+ * the server can send on. It waits the same way a SharedMemoryChannel does, spinning briefly and then sleeping for
+ * longer and longer, so readers held up by a full ring don't keep a core busy each.
+ *
+ * Every sequence number claimed is published, even once the ring is closed, as a claimed slot that is never filled
+ * would stop the sequencer there for good. The sequencer only stops once it has sent everything claimed, and a message
+ * put in after that is sent straight away without the ring.
+ */
+class BroadcastRing implements Runnable {
+
+    /**
+     * Stores how long the sequencer sleeps for at most when the ring is empty, so it notices the ring being closed.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * A slot of the ring.
+     */
+    private static final class Slot {
+
+        /**
+         * Stores the name of the channel the message is for.
+         */
+        String channel;
+
+        /**
+         * Stores the message.
+         */
+        Message msg;
+    }
+
+    /**
+     * Stores the instance of ThreadHandler the messages are sent on by.
+     */
+    private final ThreadHandler th;
+
+    /**
+     * Stores the slots, reused every time round the ring.
+     */
+    private final Slot[] slots;
+
+    /**
+     * Stores the sequence number each slot was last published with, so the sequencer knows when a slot is filled.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Stores the number of slots minus one, to turn a sequence number into a slot.
+     */
+    private final int mask;
+
+    /**
+     * Stores the last sequence number claimed by a reader.
+     */
+    private final AtomicLong claimed = new AtomicLong(-1);
+
+    /**
+     * Stores the last sequence number the sequencer has finished with, whose slot (and every one before) can be reused.
+     */
+    private volatile long consumed = -1;
+
+    /**
+     * Stores whether or not the sequencer is going to sleep, so it needs waking when a message is published.
+     */
+    private volatile boolean sleeping;
+
+    /**
+     * Stores whether or not the ring has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Stores the sequencer thread.
+     */
+    private final Thread sequencer;
+
+    /**
+     * Instance method for BroadcastRing
+     *
+     * @param threadHandler : the instance of ThreadHandler the messages are sent on by.
+     * @param size : the number of slots, rounded up to a power of two.
+     */
+    BroadcastRing(ThreadHandler threadHandler, int size) {
+        th = threadHandler;
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        slots = new Slot[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        mask = capacity - 1;
+        sequencer = new Thread(this, "broadcast-ring");
+        sequencer.setDaemon(true);
+    }
+
+    /**
+     * Starts the sequencer.
+     */
+    void start() {
+        sequencer.start();
+    }
+
+    /**
+     * @return : the number of slots.
+     */
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return : how many messages are in the ring waiting for the sequencer.
+     */
+    int depth() {
+        return (int) Math.max(0, claimed.get() - consumed);
+    }
+
+    /**
+     * Puts a message in the ring to be sent to a channel, waiting for a free slot if the ring is full. Called by any
+     * number of readers at once.
+     *
+     * @param channel : the name of the channel.
+     * @param msg : the message.
+     */
+    void publish(String channel, Message msg) {
+        if(closed){
+            //The sequencer is stopping or has stopped, so nothing new goes in the ring.
+            th.broadcast(channel, msg);
+            return;
+        }
+        long seq = claimed.incrementAndGet();
+        //The slot is free once the sequencer has finished with the message a whole lap before this one.
+        if(seq - consumed > slots.length){
+            SharedMemoryChannel.Idle idle = new SharedMemoryChannel.Idle();
+            while (seq - consumed > slots.length) {
+                idle.pause();
+            }
+        }
+        Slot slot = slots[(int) seq & mask];
+        slot.channel = channel;
+        slot.msg = msg;
+        published.set((int) seq & mask, seq);
+        if(sleeping){
+            LockSupport.unpark(sequencer);
+        }
+    }
+
+    /**
+     * Sends every message published to its channel in order, a batch at a time, until the ring is closed and empty.
+     */
+    public void run() {
+        long next = 0;
+        while (true) {
+            long end = next - 1;
+            //Takes every slot published in a row, stopping at one that has been claimed but not filled yet.
+            while (published.get((int) (end + 1) & mask) == end + 1) {
+                end++;
+            }
+            if(end < next){
+                if(closed && claimed.get() == end){
+                    //Everything claimed has been sent, anything claimed just as the ring closed included.
+                    return;
+                }
+                sleeping = true;
+                //A message published just before sleeping was set would not have woken the sequencer.
+                if(published.get((int) next & mask) != next){
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                sleeping = false;
+                continue;
+            }
+            for (long seq = next; seq <= end; seq++) {
+                Slot slot = slots[(int) seq & mask];
+                try {
+                    th.broadcast(slot.channel, slot.msg);
+                }
+                catch (RuntimeException e) {
+                    //One message going wrong mustn't stop every message after it.
+                    e.printStackTrace();
+                }
+                slot.channel = null;
+                slot.msg = null;
+            }
+            th.getMetrics().ringBatches.increment();
+            th.getMetrics().ringMessages.add(end - next + 1);
+            consumed = end;
+            next = end + 1;
+        }
+    }
+
+    /**
+     * Stops taking new messages, sends the ones already in the ring and stops the sequencer. A reader that was about to
+     * claim a slot as the sequencer stopped, which only happens at shutdown, may have its message left in the ring.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(sequencer);
+        try {
+            sequencer.join(TimeUnit.SECONDS.toMillis(1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
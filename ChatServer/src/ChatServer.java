@@ -1,8 +1,15 @@
+import javax.net.ssl.SSLContext;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-
+import java.util.Random;
 
 /**
  * Main class for the server. Creates connections with clients, reads and processes parameters, and instantiates the
@@ -13,20 +20,16 @@ public class ChatServer {
 
     /**
      * main method for ChatServer, listens for clients on the port given or 14001 which is default.
-     * @param args : contains the parameters for the server (i.e. whether to set the port to a specified value).
+     * @param args : contains the parameters for the server (i.e. whether to set the port to a specified value or
+     *             which engine to run the connections on).
      */
 
     public static void main(String[] args) {
 
-        /**
-         * Stores the socket connection between the server and client.
-         */
-        Socket s;
-
         /**
          * Stores the socket of the server.
          */
-        ServerSocket ss = null;
+        ServerSocketChannel ss = null;
 
         /**
          * Stores the port number
@@ -38,12 +41,373 @@ public class ChatServer {
          */
         boolean changePort = false;
 
+        /**
+         * Stores the engine used to run the connections ("thread" for one thread per client, "nio" for a selector).
+         */
+        String engine = "thread";
+
+        /**
+         * Stores whether or not the engine needs to be changed based on the parameters.
+         */
+        boolean changeEngine = false;
+
+        /**
+         * Stores the kind of thread each client runs on with the thread engine ("platform" or "virtual").
+         */
+        String threads = "platform";
+
+        /**
+         * Stores whether or not the kind of thread needs to be changed based on the parameters.
+         */
+        boolean changeThreads = false;
+
+        /**
+         * Stores how many clients can wait to be accepted before the operating system turns new ones away.
+         */
+        int backlog = 1024;
+
+        /**
+         * Stores whether or not the backlog needs to be changed based on the parameters.
+         */
+        boolean changeBacklog = false;
+
+        /**
+         * Stores how many threads accept clients.
+         */
+        int acceptors = 1;
+
+        /**
+         * Stores whether or not the number of acceptors needs to be changed based on the parameters.
+         */
+        boolean changeAcceptors = false;
+
+        /**
+         * Stores how many selector threads the selector engine shares clients between, by default one for each core.
+         */
+        int workers = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Stores whether or not the number of workers needs to be changed based on the parameters.
+         */
+        boolean changeWorkers = false;
+
+        /**
+         * Stores the most messages that can be waiting to be written to a single client.
+         */
+        int queueCapacity = 1024;
+
+        /**
+         * Stores whether or not the queue capacity needs to be changed based on the parameters.
+         */
+        boolean changeQueue = false;
+
+        /**
+         * Stores what happens to a message for a client whose queue is full.
+         */
+        OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+        /**
+         * Stores whether or not the overflow policy needs to be changed based on the parameters.
+         */
+        boolean changeOverflow = false;
+
+        /**
+         * Stores how many bytes a client's writer gathers before it flushes them in one write.
+         */
+        int flushBytes = 16384;
+
+        /**
+         * Stores whether or not the flush size needs to be changed based on the parameters.
+         */
+        boolean changeFlushBytes = false;
+
+        /**
+         * Stores how many microseconds a client's writer waits for more messages before it flushes what it has, or 0
+         * to flush straight away so a message on its own is never held back.
+         */
+        int flushMicros = 0;
+
+        /**
+         * Stores whether or not the flush deadline needs to be changed based on the parameters.
+         */
+        boolean changeFlushMicros = false;
+
+        /**
+         * Stores the port the metrics are served over HTTP on, or 0 to not serve them.
+         */
+        int metricsPort = 0;
+
+        /**
+         * Stores whether or not the metrics port needs to be changed based on the parameters.
+         */
+        boolean changeMetricsPort = false;
+
+        /**
+         * Stores how many messages a second each client can send once it has used up its burst, or 0 for no limit.
+         */
+        int rateLimit = 50;
+
+        /**
+         * Stores whether or not the rate limit needs to be changed based on the parameters.
+         */
+        boolean changeRateLimit = false;
+
+        /**
+         * Stores how many messages each client can send at once before the rate limit applies.
+         */
+        int burst = 100;
+
+        /**
+         * Stores whether or not the burst needs to be changed based on the parameters.
+         */
+        boolean changeBurst = false;
+
+        /**
+         * Stores how many slots the ring between readers and the sequencer has, or 0 for no ring.
+         */
+        int ringSize = 0;
+
+        /**
+         * Stores whether or not the ring size needs to be changed based on the parameters.
+         */
+        boolean changeRing = false;
+
+        /**
+         * Stores how many seconds a client can be quiet for before it is pinged, or 0 to never check.
+         */
+        int heartbeatSeconds = 30;
+
+        /**
+         * Stores whether or not the heartbeat interval needs to be changed based on the parameters.
+         */
+        boolean changeHeartbeat = false;
+
+        /**
+         * Stores how many seconds a client can be quiet for before it is disconnected.
+         */
+        int idleSeconds = 90;
+
+        /**
+         * Stores whether or not the idle timeout needs to be changed based on the parameters.
+         */
+        boolean changeIdleTimeout = false;
+
+        /**
+         * Stores whether or not every line a client sends is printed on the console.
+         */
+        boolean logMessages = true;
+
+        /**
+         * Stores how many messages each channel keeps to replay to clients that join it, or 0 to keep none.
+         */
+        int historyMessages = 20;
+
+        /**
+         * Stores whether or not the history length needs to be changed based on the parameters.
+         */
+        boolean changeHistory = false;
+
+        /**
+         * Stores the most bytes of history each channel keeps (in each format).
+         */
+        int historyBytes = 65536;
+
+        /**
+         * Stores whether or not the history size needs to be changed based on the parameters.
+         */
+        boolean changeHistoryBytes = false;
+
+        /**
+         * Stores the directory of the journal every message is logged to, or null to not keep one.
+         */
+        String journalDir = null;
+
+        /**
+         * Stores whether or not the journal directory needs to be changed based on the parameters.
+         */
+        boolean changeJournal = false;
+
+        /**
+         * Stores the size of each journal segment in bytes.
+         */
+        int journalSegment = 16 << 20;
+
+        /**
+         * Stores whether or not the journal segment size needs to be changed based on the parameters.
+         */
+        boolean changeJournalSegment = false;
+
+        /**
+         * Stores how many messages are journalled before it is synced to the disk, or 0 to not sync by count.
+         */
+        int fsyncMessages = 0;
+
+        /**
+         * Stores whether or not the sync count needs to be changed based on the parameters.
+         */
+        boolean changeFsyncMessages = false;
+
+        /**
+         * Stores how many milliseconds between syncs of the journal to the disk, or 0 to not sync on a timer.
+         */
+        int fsyncMillis = 1000;
+
+        /**
+         * Stores whether or not the sync interval needs to be changed based on the parameters.
+         */
+        boolean changeFsyncMillis = false;
+
+        /**
+         * Stores the id of this node in a cluster, which must be different on every node.
+         */
+        int nodeId = 0;
+
+        /**
+         * Stores whether or not the node id needs to be changed based on the parameters.
+         */
+        boolean changeNode = false;
+
+        /**
+         * Stores the port other nodes link to this one on, or 0 to not accept links.
+         */
+        int clusterPort = 0;
+
+        /**
+         * Stores whether or not the cluster port needs to be changed based on the parameters.
+         */
+        boolean changeClusterPort = false;
+
+        /**
+         * Stores the address the cluster port listens on, or null for the loopback address so only nodes on this
+         * machine can link to it.
+         */
+        String clusterBind = null;
+
+        /**
+         * Stores whether or not the cluster address needs to be changed based on the parameters.
+         */
+        boolean changeClusterBind = false;
+
+        /**
+         * Stores the secret every node of the cluster is given, which links must prove they know, or null if none was
+         * given.
+         */
+        String clusterSecret = null;
+
+        /**
+         * Stores whether or not the cluster secret needs to be changed based on the parameters.
+         */
+        boolean changeClusterSecret = false;
+
+        /**
+         * Stores the cluster ports of the other nodes to link to, i.e. "localhost:15001,otherhost:15001".
+         */
+        String peers = null;
+
+        /**
+         * Stores whether or not the peers need to be changed based on the parameters.
+         */
+        boolean changePeers = false;
+
+        /**
+         * Stores the path of the keystore holding the server's key and certificate for TLS, or null to not use TLS.
+         */
+        String tlsKeystore = null;
+
+        /**
+         * Stores whether or not the keystore needs to be changed based on the parameters.
+         */
+        boolean changeTls = false;
+
+        /**
+         * Stores the password of the keystore.
+         */
+        String tlsPassword = "changeit";
+
+        /**
+         * Stores whether or not the keystore password needs to be changed based on the parameters.
+         */
+        boolean changeTlsPass = false;
+
+        /**
+         * Stores how many TLS sessions are kept for clients to resume.
+         */
+        int tlsSessions = 20480;
+
+        /**
+         * Stores whether or not the session cache size needs to be changed based on the parameters.
+         */
+        boolean changeTlsSessions = false;
+
+        /**
+         * Stores the directory clients on the same machine connect through shared memory in, or null to not accept
+         * them.
+         */
+        String shmDir = null;
+
+        /**
+         * Stores whether or not the shared memory directory needs to be changed based on the parameters.
+         */
+        boolean changeShm = false;
+
+        /**
+         * Stores the path of the Unix domain socket clients on the same machine can connect to as well, or null to
+         * only listen on TCP.
+         */
+        String udsPath = null;
+
+        /**
+         * Stores whether or not the Unix domain socket needs to be changed based on the parameters.
+         */
+        boolean changeUds = false;
+
+        /**
+         * Stores where every broadcast is also sent as a datagram, as a list of host:port separated by commas (i.e.
+         * "239.1.2.3:14010"), or null to not fan out.
+         */
+        String fanOutTargets = null;
+
+        /**
+         * Stores whether or not the fan-out destinations need to be changed based on the parameters.
+         */
+        boolean changeFanOut = false;
+
+        /**
+         * Stores the name of the interface multicast datagrams are sent on, or null for the loopback interface.
+         */
+        String fanOutInterface = null;
+
+        /**
+         * Stores whether or not the fan-out interface needs to be changed based on the parameters.
+         */
+        boolean changeFanOutInterface = false;
+
+        /**
+         * Stores how many of the last broadcasts are kept for fan-out subscribers to fetch again.
+         */
+        int fanOutKeep = 4096;
+
+        /**
+         * Stores whether or not the number of broadcasts kept needs to be changed based on the parameters.
+         */
+        boolean changeFanOutKeep = false;
+
+        /**
+         * Stores the server's Unix domain socket, or null if it is not listening on one.
+         */
+        ServerSocketChannel uds = null;
+
+        /**
+         * Stores the context clients' TLS engines are made from, or null to not use TLS.
+         */
+        SSLContext sslContext = null;
+
         /**
          * Stores an instance of ThreadHandler.
          */
         ThreadHandler th;
 
-        //Loops through the strings in args to see if port needs to be changed and changes the port if needed.
+        //Loops through the strings in args to see if port or engine needs to be changed and changes them if needed.
         for (String arg: args) {
             if(changePort){
                 try {
@@ -59,214 +423,567 @@ public class ChatServer {
                 }
             }
 
+            if(changeEngine){
+                if(arg.equals("nio") || arg.equals("thread")){
+                    engine = arg;
+                    System.out.println("Setting engine: " + arg);
+                }
+                else{
+                    System.out.println("Invalid engine: setting engine to thread (default).");
+                }
+            }
+            if(changeThreads){
+                if(arg.equals("platform") || arg.equals("virtual")){
+                    threads = arg;
+                    System.out.println("Setting threads: " + arg);
+                }
+                else{
+                    System.out.println("Invalid threads: setting threads to platform (default).");
+                }
+            }
+            if(changeQueue){
+                queueCapacity = parseCount(arg, "queue", 1, 1024);
+            }
+            if(changeFlushBytes){
+                flushBytes = parseCount(arg, "flushbytes", 1, 16384);
+            }
+            if(changeFlushMicros){
+                flushMicros = parseCount(arg, "flushmicros", 0, 0);
+            }
+            if(changeMetricsPort){
+                metricsPort = parseCount(arg, "metricsport", 1, 0);
+            }
+            if(changeBacklog){
+                backlog = parseCount(arg, "backlog", 1, 1024);
+            }
+            if(changeAcceptors){
+                acceptors = parseCount(arg, "acceptors", 1, 1);
+            }
+            if(changeWorkers){
+                workers = parseCount(arg, "workers", 1, Runtime.getRuntime().availableProcessors());
+            }
+            if(changeRateLimit){
+                rateLimit = parseCount(arg, "ratelimit", 0, 50);
+            }
+            if(changeBurst){
+                burst = parseCount(arg, "burst", 1, 100);
+            }
+            if(changeRing){
+                ringSize = parseCount(arg, "ring", 0, 0);
+            }
+            if(changeHeartbeat){
+                heartbeatSeconds = parseCount(arg, "heartbeat", 0, 30);
+            }
+            if(changeIdleTimeout){
+                idleSeconds = parseCount(arg, "idletimeout", 1, 90);
+            }
+            if(changeHistory){
+                historyMessages = parseCount(arg, "history", 0, 20);
+            }
+            if(changeHistoryBytes){
+                historyBytes = parseCount(arg, "historybytes", 1, 65536);
+            }
+            if(changeJournal){
+                journalDir = arg;
+                System.out.println("Setting journal: " + arg);
+            }
+            if(changeJournalSegment){
+                journalSegment = parseCount(arg, "journalsegment", 2 << 20, 16 << 20);
+            }
+            if(changeFsyncMessages){
+                fsyncMessages = parseCount(arg, "fsyncmessages", 0, 0);
+            }
+            if(changeFsyncMillis){
+                fsyncMillis = parseCount(arg, "fsyncmillis", 0, 1000);
+            }
+            if(changeNode){
+                nodeId = parseCount(arg, "node", 1, 0);
+            }
+            if(changeClusterPort){
+                clusterPort = parseCount(arg, "clusterport", 1, 0);
+            }
+            if(changeClusterBind){
+                clusterBind = arg;
+                System.out.println("Setting clusterbind: " + arg);
+            }
+            if(changeClusterSecret){
+                clusterSecret = arg;
+            }
+            if(changePeers){
+                peers = arg;
+                System.out.println("Setting peers: " + arg);
+            }
+            if(changeTls){
+                tlsKeystore = arg;
+                System.out.println("Setting tls: " + arg);
+            }
+            if(changeTlsPass){
+                tlsPassword = arg;
+            }
+            if(changeTlsSessions){
+                tlsSessions = parseCount(arg, "tlssessions", 1, 20480);
+            }
+            if(changeShm){
+                shmDir = arg;
+                System.out.println("Setting shm: " + arg);
+            }
+            if(changeUds){
+                udsPath = arg;
+                System.out.println("Setting uds: " + arg);
+            }
+            if(changeFanOut){
+                fanOutTargets = arg;
+                System.out.println("Setting fanout: " + arg);
+            }
+            if(changeFanOutInterface){
+                fanOutInterface = arg;
+                System.out.println("Setting fanoutif: " + arg);
+            }
+            if(changeFanOutKeep){
+                fanOutKeep = parseCount(arg, "fanoutkeep", 1, 4096);
+            }
+            if(arg.equals("-quiet")){
+                logMessages = false;
+                System.out.println("Setting quiet: messages will not be printed.");
+            }
+            if(changeOverflow){
+                if(OverflowPolicy.fromArg(arg) != null){
+                    overflowPolicy = OverflowPolicy.fromArg(arg);
+                    System.out.println("Setting overflow: " + arg);
+                }
+                else{
+                    System.out.println("Invalid overflow: setting overflow to oldest (default).");
+                }
+            }
+
             //If the argument is equal to -csp then the next parameter should be what to change the port to.
             changePort = arg.equals("-csp");
+            //If the argument is equal to -engine then the next parameter should be which engine to use.
+            changeEngine = arg.equals("-engine");
+            //If the argument is equal to -threads then the next parameter should be which kind of thread to use.
+            changeThreads = arg.equals("-threads");
+            //If the argument is equal to -backlog then the next parameter should be how many clients can wait.
+            changeBacklog = arg.equals("-backlog");
+            //If the argument is equal to -acceptors then the next parameter should be how many threads accept.
+            changeAcceptors = arg.equals("-acceptors");
+            //If the argument is equal to -workers then the next parameter should be how many selector threads to use.
+            changeWorkers = arg.equals("-workers");
+            //If the argument is equal to -queue then the next parameter should be the size of each client's queue.
+            changeQueue = arg.equals("-queue");
+            //If the argument is equal to -overflow then the next parameter should be what to do when a queue is full.
+            changeOverflow = arg.equals("-overflow");
+            //If the argument is equal to -flushbytes then the next parameter should be how much a writer gathers.
+            changeFlushBytes = arg.equals("-flushbytes");
+            //If the argument is equal to -flushmicros then the next parameter should be how long a writer waits.
+            changeFlushMicros = arg.equals("-flushmicros");
+            //If the argument is equal to -metricsport then the next parameter should be the port to serve metrics on.
+            changeMetricsPort = arg.equals("-metricsport");
+            //If the argument is equal to -history then the next parameter should be how many messages to replay.
+            changeHistory = arg.equals("-history");
+            //If the argument is equal to -historybytes then the next parameter should be how many bytes to keep.
+            changeHistoryBytes = arg.equals("-historybytes");
+            //If the argument is equal to -ratelimit then the next parameter should be the messages a second allowed.
+            changeRateLimit = arg.equals("-ratelimit");
+            //If the argument is equal to -burst then the next parameter should be the messages allowed at once.
+            changeBurst = arg.equals("-burst");
+            //If the argument is equal to -ring then the next parameter should be the number of slots in the ring.
+            changeRing = arg.equals("-ring");
+            //If the argument is equal to -heartbeat then the next parameter should be the seconds before a ping.
+            changeHeartbeat = arg.equals("-heartbeat");
+            //If the argument is equal to -idletimeout then the next parameter should be the seconds before eviction.
+            changeIdleTimeout = arg.equals("-idletimeout");
+            //If the argument is equal to -journal then the next parameter should be the directory of the journal.
+            changeJournal = arg.equals("-journal");
+            //If the argument is equal to -journalsegment then the next parameter should be the size of each segment.
+            changeJournalSegment = arg.equals("-journalsegment");
+            //If the argument is equal to -fsyncmessages then the next parameter should be how often to sync by count.
+            changeFsyncMessages = arg.equals("-fsyncmessages");
+            //If the argument is equal to -fsyncmillis then the next parameter should be how often to sync by time.
+            changeFsyncMillis = arg.equals("-fsyncmillis");
+            //If the argument is equal to -node then the next parameter should be the id of this node.
+            changeNode = arg.equals("-node");
+            //If the argument is equal to -clusterport then the next parameter should be the port for other nodes.
+            changeClusterPort = arg.equals("-clusterport");
+            //If the argument is equal to -clusterbind then the next parameter should be the address for other nodes.
+            changeClusterBind = arg.equals("-clusterbind");
+            //If the argument is equal to -clustersecret then the next parameter should be the secret of the cluster.
+            changeClusterSecret = arg.equals("-clustersecret");
+            //If the argument is equal to -peers then the next parameter should be the other nodes to link to.
+            changePeers = arg.equals("-peers");
+            //If the argument is equal to -tls then the next parameter should be the keystore to serve TLS with.
+            changeTls = arg.equals("-tls");
+            //If the argument is equal to -tlspass then the next parameter should be the password of the keystore.
+            changeTlsPass = arg.equals("-tlspass");
+            //If the argument is equal to -tlssessions then the next parameter should be how many sessions to keep.
+            changeTlsSessions = arg.equals("-tlssessions");
+            //If the argument is equal to -shm then the next parameter should be the directory for shared memory.
+            changeShm = arg.equals("-shm");
+            //If the argument is equal to -uds then the next parameter should be the path of the Unix domain socket.
+            changeUds = arg.equals("-uds");
+            //If the argument is equal to -fanout then the next parameter should be where to send the datagrams.
+            changeFanOut = arg.equals("-fanout");
+            //If the argument is equal to -fanoutif then the next parameter should be the interface to multicast on.
+            changeFanOutInterface = arg.equals("-fanoutif");
+            //If the argument is equal to -fanoutkeep then the next parameter should be how many broadcasts to keep.
+            changeFanOutKeep = arg.equals("-fanoutkeep");
+        }
+
+        if(tlsKeystore != null){
+            if(!engine.equals("nio")){
+                //Handshakes are only done without blocking a thread on the selector engine.
+                System.out.println("TLS needs the nio engine: setting engine to nio.");
+                engine = "nio";
+            }
+            try {
+                sslContext = TlsChannel.serverContext(tlsKeystore, tlsPassword, tlsSessions);
+            }
+            catch (IOException | GeneralSecurityException e) {
+                //Carrying on without TLS would send everything in the clear, so the server does not start.
+                System.out.println("Could not load the TLS keystore: " + e);
+                return;
+            }
         }
 
         try {
             //Attempts to create a serversocket on the port
-            ss = new ServerSocket(port);
+            ss = ServerSocketChannel.open();
+            ss.bind(new InetSocketAddress(port), backlog);
         }
         catch (IOException e) {
-            e.printStackTrace();
+            //Without the port (i.e. another server is using it) no client could connect, so the server does not start.
+            System.out.println("Could not listen on port " + port + ": " + e.getMessage());
+            if(ss != null){
+                try {
+                    ss.close();
+                }
+                catch (IOException closeError) {
+                    //It was never bound, so there is nothing to release.
+                }
+            }
+            return;
         }
+        uds = listenUnix(udsPath, backlog);
 
-        //Creates a new ThreadHandler on the serversocket.
-        th = new ThreadHandler(ss);
+        if(engine.equals("nio")){
+            //The selector engine does its own accepting, so it is handed the server socket once it is set up.
+            th = new ThreadHandler(ss);
+            if(flushMicros > 0){
+                System.out.println("The nio engine writes as soon as it can: flushmicros only applies to threads.");
+            }
+        }
+        else {
+            //Creates a new ThreadHandler on the serversocket, running clients on the kind of thread asked for.
+            th = new ThreadHandler(ss, threads.equals("virtual") ? ThreadHandler.virtualThreadFactory() : Thread::new);
+        }
+        th.setOutboundLimits(queueCapacity, overflowPolicy);
+        th.setFlushLimits(flushBytes, flushMicros);
+        th.setLogMessages(logMessages);
+        th.setHistory(historyMessages, historyBytes);
+        th.setHeartbeat(heartbeatSeconds, idleSeconds);
+        th.setRateLimit(rateLimit, burst);
+        th.setRing(ringSize);
+        openJournal(th, journalDir, journalSegment, fsyncMessages, fsyncMillis);
+        joinCluster(th, nodeId, clusterPort, clusterBind, clusterSecret, peers);
+        serveMetrics(th, metricsPort);
+        acceptSharedMemory(th, shmDir);
+        startFanOut(th, fanOutTargets, fanOutInterface, fanOutKeep);
+
+        if(engine.equals("nio")){
+            //Lets the selector engine run until shutdown.
+            try {
+                NioServer server = new NioServer(ss, th, workers, acceptors, sslContext);
+                if(uds != null){
+                    th.addListener(unixListener(uds, udsPath));
+                    server.addListener(uds);
+                }
+                server.run();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else {
+            acceptOnThreads(ss, th, acceptors, uds, udsPath);
+        }
+        th.printStats();
+        th.closeRing();
+        th.closeJournal();
+        th.closeCluster();
+        th.closeFanOut();
+    }
+
+    /**
+     * Accepts clients on the thread engine until the server is shutdown, on as many acceptor threads as asked for and
+     * one more for the Unix domain socket if there is one.
+     *
+     * @param ss : the socket of the server.
+     * @param th : the instance of ThreadHandler the clients are handed to.
+     * @param acceptors : how many threads accept TCP clients, the first being this one.
+     * @param uds : the Unix domain socket of the server, or null if there is not one.
+     * @param udsPath : the path of the Unix domain socket's file.
+     */
+    private static void acceptOnThreads(ServerSocketChannel ss, ThreadHandler th, int acceptors,
+                                        ServerSocketChannel uds, String udsPath){
+        //Any acceptors after the first run on their own threads, all taking clients from the same server socket.
+        Thread[] acceptorThreads = new Thread[acceptors - 1];
+        for (int i = 0; i < acceptorThreads.length; i++) {
+            acceptorThreads[i] = new Thread(() -> acceptClients(ss, th), "acceptor-" + (i + 1));
+            acceptorThreads[i].start();
+        }
+        if(uds != null){
+            //Clients on the Unix domain socket are accepted on a thread of its own, the same way as TCP ones.
+            th.addListener(unixListener(uds, udsPath));
+            acceptorThreads = Arrays.copyOf(acceptorThreads, acceptorThreads.length + 1);
+            acceptorThreads[acceptorThreads.length - 1] = new Thread(() -> acceptClients(uds, th), "uds-acceptor");
+            acceptorThreads[acceptorThreads.length - 1].start();
+        }
+        acceptClients(ss, th);
+        for (Thread t: acceptorThreads) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
+    /**
+     * Accepts clients on the thread engine, starting a thread for each, until the server is shutdown.
+     *
+     * @param ss : the socket of the server.
+     * @param th : the instance of ThreadHandler the clients are handed to.
+     */
+    private static void acceptClients(ServerSocketChannel ss, ThreadHandler th){
         while (!th.getServerShutdown()) {
             try {
                 //Whilst the server is not shutdown it will listen out for other clients trying to connect
                 System.out.println("Server listening");
                 assert ss != null;
                 //And attempt connections when it hears a client trying to connect.
-                s = ss.accept();
-                System.out.println("Server accepted connection on " + ss.getLocalPort() + " ; " + s.getPort());
+                SocketChannel s = ss.accept();
                 th.newConnection(s);
+                System.out.println("Server accepted connection on " + UnixDomainSockets.describe(s) + " ("
+                        + th.getConnectionCount() + " connected)");
             }
             catch (Exception e) {
                 System.out.println("Server shutting down...");
             }
         }
     }
-}
-
-/**
- * Creates and handles the threads that links to clients, ensuring messages are sent to each client.
- */
-class ThreadHandler{
-
-    /**
-     * Stores the socket of the server.
-     */
-    ServerSocket serverSocket;
-
-    /**
-     * Stores a list of all the threads created by connecting clients.
-     */
-    private List<ClientHandler> elClientes = new ArrayList<>() {};
 
     /**
-     * Stores whether or not the server has been shutdown by someone.
-     */
-    private boolean serverShutdown = false;
-
-    /**
-     * Instance method for ThreadHandler
-     *
-     * @param ss : the socket of the server that the ThreadHandler is handling the clients of.
-     */
-    public ThreadHandler(ServerSocket ss){
-        serverSocket = ss;
-    }
-
-    /**
-     * Creates a new thread for a new connection.
+     * Serves the server's metrics over HTTP in the Prometheus text format, if a port was given for them.
      *
-     * @param s : the socket the new connection is on.
+     * @param th : the instance of ThreadHandler whose metrics are served.
+     * @param port : the port to serve them on, or 0 to not serve them.
      */
-    public void newConnection(Socket s){
-
-        /**
-         * Stores the instance of ClientHandler to be used by the new connection.
-         */
-        ClientHandler ch = new ClientHandler(s, this);
-
-        //Adds the new client to the list of clients and starts the thread.
-        elClientes.add(ch);
-        ch.start();
+    private static void serveMetrics(ThreadHandler th, int port){
+        if(port == 0){
+            return;
+        }
+        try {
+            th.getMetrics().serveHttp(port, th);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Sends the message passed in to every client connected to the server.
+     * Listens on a Unix domain socket as well as TCP, if a path was given for it. The server still starts without it
+     * if it can not be opened (i.e. on a JDK older than 16), as clients can connect over TCP instead.
      *
-     * @param msg : the message to output to clients.
+     * @param path : the path of the socket's file, or null to not listen on one.
+     * @param backlog : how many clients can be waiting to be accepted.
+     * @return : the bound channel, or null if there is not one.
      */
-    public synchronized void sendAll(String msg){
-        if(msg.equals("EXIT")){
-            //shuts down the server
-            serverShutdown = true;
-            try {
-                serverSocket.close();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
+    private static ServerSocketChannel listenUnix(String path, int backlog){
+        if(path == null){
+            return null;
         }
-        for (ClientHandler ch: elClientes) {
-            //outputs the message on the client's thread.
-            ch.output(msg);
+        try {
+            ServerSocketChannel uds = UnixDomainSockets.listen(path, backlog);
+            System.out.println("Listening on Unix domain socket " + path);
+            return uds;
+        }
+        catch (IOException e) {
+            System.out.println("Could not listen on Unix domain socket " + path + ": " + e.getMessage());
+            return null;
         }
     }
 
     /**
-     * @return : whether or not the server has been shutdown.
+     * @param uds : the server's Unix domain socket.
+     * @param path : the path of its file.
+     * @return : what closes the socket and deletes its file when the server is shutdown, as nothing else will.
      */
-    public boolean getServerShutdown(){
-        return serverShutdown;
+    private static Closeable unixListener(ServerSocketChannel uds, String path){
+        return () -> {
+            uds.close();
+            Files.deleteIfExists(Paths.get(path));
+        };
     }
-}
-
-/**
- * This class contains multiple threads - one for each client. It handles everything that needs to happen within each
- * of the clients separately (e.g. I/O).
- */
-class ClientHandler extends Thread{
-
-    /**
-     * Stores the socket of the client on this thread.
-     */
-    private Socket s;
-
-    /**
-     * Stores the buffer reader for the input stream reader of this client.
-     */
-    private BufferedReader clientIn;
 
     /**
-     * Stores the print writer for the socket of this client so we can write things to the clients output stream.
-     */
-    private PrintWriter clientOut;
-
-    /**
-     * Stores the instance of ThreadHandler handling the threads for this server.
+     * Accepts clients on the same machine through shared memory as well as TCP, if a directory was given for it.
+     *
+     * @param th : the instance of ThreadHandler the clients are handed to.
+     * @param dir : the directory clients make their files in, or null to not accept them.
      */
-    private ThreadHandler th;
+    private static void acceptSharedMemory(ThreadHandler th, String dir){
+        if(dir == null){
+            return;
+        }
+        try {
+            new SharedMemoryServer(Paths.get(dir), th).start();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
     /**
-     * Instance method for ClientHandler
+     * Opens the journal every message is logged to, if a directory was given for it, and fills the default channel's
+     * history from it.
      *
-     * @param inSocket : the socket of the client.
-     * @param threadHandler : the instance of ThreadHandler handling the threads for this server.
+     * @param th : the instance of ThreadHandler whose messages are logged.
+     * @param dir : the directory of the journal, or null to not keep one.
+     * @param segmentBytes : the size of each segment in bytes.
+     * @param fsyncMessages : how many messages are logged before syncing to the disk, or 0 to not sync by count.
+     * @param fsyncMillis : how many milliseconds between syncs to the disk, or 0 to not sync on a timer.
      */
-    public ClientHandler(Socket inSocket, ThreadHandler threadHandler) {
-        this.s = inSocket;
-        this.th = threadHandler;
+    private static void openJournal(ThreadHandler th, String dir, int segmentBytes, int fsyncMessages,
+                                    int fsyncMillis){
+        if(dir == null){
+            return;
+        }
+        try {
+            th.setJournal(new Journal(Paths.get(dir), segmentBytes, fsyncMessages, fsyncMillis));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * The method which is run when the thread starts.
+     * Links this server to the other nodes of a cluster, if a cluster port or peers were given.
+     *
+     * @param th : the instance of ThreadHandler whose chat messages are relayed.
+     * @param nodeId : the id of this node, or 0 to pick one at random.
+     * @param clusterPort : the port other nodes link to this one on, or 0 to not accept links.
+     * @param clusterBind : the address the cluster port listens on, or null for the loopback address.
+     * @param secret : the secret every node of the cluster is given.
+     * @param peers : the other nodes to link to as a list of host:port separated by commas, or null.
      */
-    public void run() {
+    private static void joinCluster(ThreadHandler th, int nodeId, int clusterPort, String clusterBind, String secret,
+                                    String peers){
+        if(clusterPort == 0 && peers == null){
+            return;
+        }
+        if(secret == null || secret.isEmpty()){
+            //Anyone who could link to a node could send chat as anyone, so links are never made without one.
+            System.out.println("A cluster needs a secret shared by every node (-clustersecret): not joining it.");
+            return;
+        }
+        if(nodeId == 0){
+            nodeId = new Random().nextInt(Integer.MAX_VALUE - 1) + 1;
+            System.out.println("No node id given: setting node to " + nodeId + " (random).");
+        }
+        Cluster cluster = new Cluster(th, nodeId, secret);
+        th.setCluster(cluster);
         try {
-            /**
-             * Stores what the user has inputted.
-             */
-            String userInput;
-
-            /**
-             * Stores the input stream reader for the input stream of the socket of this client
-             */
-            InputStreamReader r = new InputStreamReader(s.getInputStream());
-
-            clientIn = new BufferedReader(r);
-            clientOut = new PrintWriter(s.getOutputStream(), true);
-
-            //Gets a username for the client
-            clientOut.println("Username: ");
-            userInput = clientIn.readLine();
-
-            /**
-             * Stores the username of the client.
-             */
-            String username = "[" + userInput + "] ";
-
-            while(!userInput.equals("EXIT") && !th.getServerShutdown()) {
-                /* Whilst the server is not shutdown it will take in the clients inputs and broadcast them to the rest
-                 * of the server with the username of the client.
-                 */
-                userInput = clientIn.readLine();
-                if(userInput.equals("EXIT")){
-                    th.sendAll(userInput);
-                }
-                else {
-                    th.sendAll(username + userInput);
-                }
-                System.out.println(userInput);
+            if(clusterPort != 0){
+                cluster.listen(clusterBind == null ? InetAddress.getLoopbackAddress().getHostAddress() : clusterBind,
+                        clusterPort);
             }
-
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        finally {
+        if(peers != null){
+            for (String peer: peers.split(",")) {
+                int colon = peer.lastIndexOf(':');
+                try {
+                    cluster.connect(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+                }
+                catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    System.out.println("Invalid peer: " + peer + " (should be host:port).");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every broadcast as a datagram as well, if destinations were given for it. Subscribers fetch missed
+     * messages over TCP on the port of the first destination.
+     *
+     * @param th : the instance of ThreadHandler whose broadcasts are sent.
+     * @param targets : the destinations as a list of host:port separated by commas, or null to not fan out.
+     * @param interfaceName : the name of the interface multicast datagrams are sent on, or null for the loopback one.
+     * @param keep : how many of the last broadcasts are kept for subscribers to fetch again.
+     */
+    private static void startFanOut(ThreadHandler th, String targets, String interfaceName, int keep){
+        if(targets == null){
+            return;
+        }
+        List<InetSocketAddress> destinations = new ArrayList<>();
+        for (String target: targets.split(",")) {
+            int colon = target.lastIndexOf(':');
             try {
-                //After the client exits it will close the connection.
-                clientIn.close();
+                InetSocketAddress destination = new InetSocketAddress(target.substring(0, colon),
+                        Integer.parseInt(target.substring(colon + 1)));
+                if(destination.isUnresolved()){
+                    System.out.println("Unknown fan-out host: " + target + ".");
+                    continue;
+                }
+                destinations.add(destination);
             }
-            catch (IOException e) {
-                e.printStackTrace();
+            catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                System.out.println("Invalid fan-out destination: " + target + " (should be host:port).");
             }
         }
+        if(destinations.isEmpty()){
+            return;
+        }
+        try {
+            NetworkInterface ni = interfaceName == null
+                    ? NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress())
+                    : NetworkInterface.getByName(interfaceName);
+            if(ni == null){
+                System.out.println("Unknown interface: " + interfaceName + ": not fanning out.");
+                return;
+            }
+            FanOut fanOut = new FanOut(destinations, ni, keep, destinations.get(0).getPort(), th.getMetrics());
+            th.setFanOut(fanOut);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Outputs a given message.
+     * Reads a whole number parameter, telling the user and using the default if it is not a number or is too small.
      *
-     * @param msg : the message to output.
+     * @param arg : the parameter.
+     * @param name : the name of the parameter, without the "-".
+     * @param min : the smallest value allowed.
+     * @param defaultValue : the value used if the parameter is not valid.
+     * @return : the value of the parameter.
      */
-    public void output(String msg){
-        clientOut.println(msg);
+    private static int parseCount(String arg, String name, int min, int defaultValue){
+        try {
+            int value = Integer.parseInt(arg);
+            if(value >= min){
+                System.out.println("Setting " + name + ": " + arg);
+                return value;
+            }
+        }
+        catch(NumberFormatException e){
+            //Falls through to the default below.
+        }
+        System.out.println("Invalid " + name + ": setting " + name + " to " + defaultValue + " (default).");
+        return defaultValue;
     }
-
 }
 
@@ -0,0 +1,245 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is run on multiple threads - one for each client, either platform or virtual threads. It handles
+ * everything that needs to happen within each of the clients separately (e.g. I/O).
+ */
+class ClientHandler extends QueuedConnection implements Runnable{
+
+    /**
+     * Stores the most messages gathered into one write.
+     */
+    static final int MAX_BATCH = 64;
+
+    /**
+     * Stores the channel the client is read from (its socket, or shared memory for a client on the same machine).
+     */
+    private ReadableByteChannel in;
+
+    /**
+     * Stores the channel the client is written to, the same one as it is read from.
+     */
+    private GatheringByteChannel out;
+
+    /**
+     * Stores the buffered input stream of this client, read as lines or as binary frames.
+     */
+    private BufferedInputStream clientIn;
+
+    /**
+     * Stores the stream decompressing what the client sends, if it asked for compression.
+     */
+    private MeteredInflaterInputStream inflaterIn;
+
+    /**
+     * Instance method for ClientHandler
+     *
+     * @param inSocket : the socket of the client, or any other channel that can be read and written in the same way.
+     * @param threadHandler : the instance of ThreadHandler handling the threads for this server.
+     */
+    public <C extends ReadableByteChannel & GatheringByteChannel> ClientHandler(C inSocket,
+                                                                             ThreadHandler threadHandler) {
+        super(threadHandler);
+        this.in = inSocket;
+        this.out = inSocket;
+    }
+
+    /**
+     * The method which is run when the thread starts.
+     */
+    public void run() {
+        try {
+            /**
+             * Stores what the user has inputted.
+             */
+            String userInput;
+
+            clientIn = new BufferedInputStream(new CountingInputStream(Channels.newInputStream(in),
+                    th.getMetrics().bytesIn));
+
+            //Starts the writer that sends everything queued for this client.
+            th.newThread(this::writeQueued).start();
+
+            //Gets a username for the client
+            output("Username: ");
+            userInput = LineCodec.readLine(clientIn);
+            touch();
+
+            /**
+             * Stores the username of the client.
+             */
+            String username = userInput == null ? null : handshake(userInput);
+            if(isDeflated()){
+                //Everything after the username line is compressed.
+                inflaterIn = new MeteredInflaterInputStream(clientIn, th.getMetrics());
+                clientIn = new BufferedInputStream(inflaterIn);
+            }
+
+            /**
+             * Stores the stream binary frames are read from, if the client asked for them.
+             */
+            DataInputStream frameIn = isBinary() ? new DataInputStream(clientIn) : null;
+
+            while(userInput != null && !userInput.equals("EXIT") && !th.getServerShutdown()) {
+                /* Whilst the server is not shutdown it will take in the clients inputs and broadcast them to the rest
+                 * of their channel with the username of the client.
+                 */
+                userInput = frameIn != null ? Message.readFrame(frameIn) : LineCodec.readLine(clientIn);
+                if(userInput == null){
+                    //The client has disconnected.
+                    break;
+                }
+                touch();
+                long pause = throttle();
+                if(pause > 0){
+                    //Holds the message, and stops reading from the client, until it is back within its limit.
+                    long until = System.nanoTime() + pause;
+                    while ((pause = until - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(pause);
+                    }
+                }
+                th.receive(this, username, userInput);
+            }
+
+        }
+        catch (IOException e) {
+            if(!isClosed()){
+                //Only unexpected if we didn't close it ourselves, i.e. for being idle.
+                e.printStackTrace();
+            }
+            //The connection is broken, so there is no point in the writer finishing what is queued.
+            close();
+        }
+        finally {
+            //After the client exits the writer sends whatever is left (e.g. EXIT) and then closes the connection.
+            outQueue.close();
+            if(inflaterIn != null){
+                inflaterIn.end();
+            }
+        }
+    }
+
+    /**
+     * Writes the messages queued for this client until the queue is closed, then closes the connection. This runs on
+     * its own thread so a client that is slow to read only ever holds itself up. Messages are gathered into batches
+     * that are written with one call, flushed once the batch is big enough or no more arrive before the deadline.
+     */
+    private void writeQueued(){
+        try {
+            /**
+             * Stores the messages gathered for the next write.
+             */
+            ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+            /**
+             * Stores the first message of the next batch.
+             */
+            ByteBuffer msg;
+
+            while ((msg = outQueue.take()) != null) {
+                int count = 0;
+                long bytes = 0;
+                long deadline = System.nanoTime() + th.getFlushNanos();
+                while (msg != null) {
+                    batch[count++] = msg;
+                    bytes += msg.remaining();
+                    if(count == MAX_BATCH || bytes >= th.getFlushBytes()){
+                        break;
+                    }
+                    //Takes whatever else is already queued, or waits until the deadline for more.
+                    msg = outQueue.poll();
+                    if(msg == null){
+                        msg = outQueue.poll(deadline - System.nanoTime());
+                    }
+                }
+                int buffers = deflate(batch, count);
+                while (buffers > 0 && batch[buffers - 1].hasRemaining()) {
+                    out.write(batch, 0, buffers);
+                }
+                th.recordFlush(count, bytes);
+                Arrays.fill(batch, 0, buffers, null);
+            }
+        }
+        catch (IOException e) {
+            //The client has gone, anything still queued for it is thrown away.
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            close();
+            endDeflate();
+        }
+    }
+
+    /**
+     * Nothing to do once a message is queued, the writer thread is already waiting for it.
+     */
+    protected void queued(){
+    }
+
+    /**
+     * Closes the connection with the client and removes it from the server's clients.
+     */
+    void close(){
+        outQueue.close();
+        th.removeConnection(this);
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
+
+/**
+ * Counts the bytes read through a stream. It sits under the buffering so it is only called once per read from the
+ * socket rather than once per byte.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    /**
+     * Stores the counter the bytes are added to.
+     */
+    private final LongAdder counter;
+
+    /**
+     * Instance method for CountingInputStream
+     *
+     * @param in : the stream to count.
+     * @param bytes : the counter the bytes are added to.
+     */
+    CountingInputStream(InputStream in, LongAdder bytes) {
+        super(in);
+        counter = bytes;
+    }
+
+    public int read() throws IOException {
+        int b = super.read();
+        if(b != -1){
+            counter.increment();
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if(n > 0){
+            counter.add(n);
+        }
+        return n;
+    }
+}
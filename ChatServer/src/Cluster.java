@@ -0,0 +1,666 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins this server to other servers (nodes) so clients connected to different nodes share channels. Nodes link up
+ * over a separate cluster port and every chat message is relayed over every link. Each message carries the id of the
+ * node it came from (its origin) and a sequence number from that node, so a node that gets the same message twice -
+ * because the links form a loop, or two nodes are linked twice - only delivers and passes it on the first time. Any
+ * shape of links works, as long as every node can be reached.
+ *
+ * Every node of a cluster is given the same secret, and a link is only used once the other side has shown it knows it.
+ * A link starts with each side sending an int magic number, its int node id and a random nonce, and then an
+ * HMAC-SHA256, keyed with the secret, of which side it is, both node ids and both nonces. The secret itself is never
+ * sent, and as each side checks a proof over the nonce it has just made up, a proof seen on one link is no use on
+ * another. A link that doesn't prove itself is closed before any of its frames is read.
+ *
+ * After that a link carries frames in the same layout as the client frames: int length, byte type (RELAY), int sender
+ * id, then int origin, long sequence number, short channel length and the channel, short username length and the
+ * username, and the text.
+ */
+class Cluster {
+
+    /**
+     * Stores the frame type of a relayed chat message.
+     */
+    static final byte RELAY = 4;
+
+    /**
+     * Stores the number each side of a link starts with.
+     */
+    private static final int MAGIC = 0x43484331;
+
+    /**
+     * Stores how long to wait before trying to connect to a peer again, in milliseconds.
+     */
+    private static final long RECONNECT_MILLIS = 2000;
+
+    /**
+     * Stores the length of the nonce each side of a link starts with.
+     */
+    private static final int NONCE_LENGTH = 32;
+
+    /**
+     * Stores the algorithm each side of a link proves it knows the secret with.
+     */
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Stores the length of the proof each side of a link sends.
+     */
+    private static final int PROOF_LENGTH = 32;
+
+    /**
+     * Stores the most senders on other nodes given an id here. Once there are more, the one heard from longest ago
+     * is forgotten, and gets a new id if it is heard from again.
+     */
+    private static final int MAX_SENDERS = 65536;
+
+    /**
+     * Stores the longest relay frame, after its length. A longer message is not relayed, and a longer frame from
+     * another node is skipped.
+     */
+    private static final int MAX_RELAY_LENGTH = Message.MAX_FRAME_LENGTH * 2;
+
+    /**
+     * Stores the length of what every relay frame starts with: its kind, the sender, the origin and the sequence.
+     */
+    private static final int RELAY_HEADER_LENGTH = 1 + 4 + 4 + 8;
+
+    /**
+     * Stores where the nonces come from.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Stores the instance of ThreadHandler the relayed messages are delivered through.
+     */
+    private final ThreadHandler th;
+
+    /**
+     * Stores the id of this node, which must be different from that of every other node.
+     */
+    private final int nodeId;
+
+    /**
+     * Stores the sequence number of the next message sent from this node. It starts from the time in microseconds, so
+     * a node that restarts carries on above the numbers the other nodes have already seen from it.
+     */
+    private final AtomicLong nextSeq = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /**
+     * Stores the open link to each node, by node id.
+     */
+    private final ConcurrentHashMap<Integer, PeerLink> links = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the sequence numbers already seen from each origin.
+     */
+    private final ConcurrentHashMap<Integer, SeenWindow> seen = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the id given here to each sender on another node, so their ids don't clash with the clients of this one,
+     * in the order they were last heard from.
+     */
+    private final LinkedHashMap<Long, Integer> senderIds = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Stores the key every node of the cluster proves it knows the secret with.
+     */
+    private final SecretKeySpec key;
+
+    /**
+     * Instance method for Cluster
+     *
+     * @param threadHandler : the instance of ThreadHandler the relayed messages are delivered through.
+     * @param id : the id of this node.
+     * @param secret : the secret every node of the cluster is given, which must not be empty.
+     */
+    Cluster(ThreadHandler threadHandler, int id, String secret) {
+        th = threadHandler;
+        nodeId = id;
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), PROOF_ALGORITHM);
+    }
+
+    /**
+     * Accepts links from other nodes on a port.
+     *
+     * @param host : the address to listen on, i.e. that of the network the other nodes are on.
+     * @param port : the cluster port.
+     * @throws IOException : if the port can not be bound.
+     */
+    void listen(String host, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(host, port));
+        System.out.println("Node " + nodeId + " listening for peers on " + host + ":" + port);
+        daemon("cluster-accept", () -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel sc = server.accept();
+                    daemon("cluster-link", () -> new PeerLink(this, sc, false).run());
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps a link open to another node, connecting again whenever it drops.
+     *
+     * @param host : the host of the other node.
+     * @param port : its cluster port.
+     */
+    void connect(String host, int port) {
+        daemon("cluster-connect", () -> {
+            /**
+             * Stores the id of the node last reached at that address, or 0 if it hasn't been reached yet.
+             */
+            int reached = 0;
+            while (true) {
+                try {
+                    //There's no need for another link whilst that node is linked, i.e. by it connecting to us.
+                    if(reached == 0 || !links.containsKey(reached)){
+                        SocketChannel sc = SocketChannel.open(new InetSocketAddress(host, port));
+                        PeerLink link = new PeerLink(this, sc, true);
+                        link.run();
+                        reached = link.remoteNode;
+                    }
+                }
+                catch (IOException e) {
+                    //The peer isn't up (yet), so we try again shortly.
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a daemon thread, so links never keep the server running once it has been shutdown.
+     */
+    private static void daemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends a message from one of this node's clients to every other node.
+     *
+     * @param channel : the channel the message was sent to.
+     * @param msg : the message.
+     */
+    void relay(String channel, Message msg) {
+        long seq = nextSeq.getAndIncrement();
+        //Marks our own message as seen so it is dropped if a loop brings it back.
+        seen(nodeId, seq);
+        if(links.isEmpty()){
+            return;
+        }
+        ByteBuffer frame = encode(nodeId, seq, channel, msg);
+        if(frame == null){
+            //Its names or text are too long for a relay frame, so only this node's clients get it.
+            th.getMetrics().relayDropped.increment();
+            return;
+        }
+        for (PeerLink link: links.values()) {
+            link.send(frame);
+            th.getMetrics().relayedOut.increment();
+        }
+    }
+
+    /**
+     * Handles a frame relayed from another node: delivers it to this node's clients and passes it on to every other
+     * link, unless it has been seen before.
+     *
+     * @param from : the link it came over.
+     * @param frame : the whole frame, backed by an array, which is passed on as it is.
+     */
+    void received(PeerLink from, ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        in.position(4);
+        if(in.get() != RELAY){
+            return;
+        }
+        int senderId = in.getInt();
+        int origin = in.getInt();
+        long seq = in.getLong();
+        if(!seen(origin, seq)){
+            th.getMetrics().relayDuplicates.increment();
+            return;
+        }
+        String channel = getString(in);
+        String username = getString(in);
+        if(channel == null || username == null){
+            //A frame that does not add up is dropped on its own, the link carries on.
+            th.getMetrics().relayDropped.increment();
+            return;
+        }
+        th.getMetrics().relayedIn.increment();
+        String text = new String(in.array(), in.arrayOffset() + in.position(), in.remaining(), LineCodec.CHARSET);
+
+        th.publish(channel, Message.chat(localId(origin, senderId), username, text));
+
+        for (PeerLink link: links.values()) {
+            if(link != from){
+                link.send(frame);
+                th.getMetrics().relayedOut.increment();
+            }
+        }
+    }
+
+    /**
+     * @param origin : the node a sender is on.
+     * @param senderId : the id of the sender on that node.
+     * @return : the id the sender has here.
+     */
+    private int localId(int origin, int senderId) {
+        long sender = ((long) origin << 32) | (senderId & 0xffffffffL);
+        synchronized (senderIds) {
+            Integer id = senderIds.get(sender);
+            if(id == null){
+                id = th.nextConnectionId();
+                senderIds.put(sender, id);
+                if(senderIds.size() > MAX_SENDERS){
+                    //Forgets the sender heard from longest ago, so senders that have left don't build up forever.
+                    Iterator<Long> eldest = senderIds.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Works out the proof one side of a link sends that it knows the secret.
+     *
+     * @param initiator : whether or not the side sending it started the link.
+     * @param from : the node id of the side sending it.
+     * @param to : the node id of the side checking it.
+     * @param fromNonce : the nonce of the side sending it.
+     * @param toNonce : the nonce of the side checking it.
+     * @return : the proof.
+     */
+    private byte[] proof(boolean initiator, int from, int to, byte[] fromNonce, byte[] toNonce) {
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(key);
+            mac.update(ByteBuffer.allocate(9).put((byte) (initiator ? 1 : 0)).putInt(from).putInt(to).array());
+            mac.update(fromNonce);
+            mac.update(toNonce);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e) {
+            //Every JDK has HmacSHA256, so this never happens.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records that a message has been seen.
+     *
+     * @param origin : the node the message came from.
+     * @param seq : its sequence number from that node.
+     * @return : true if it had not been seen before.
+     */
+    private boolean seen(int origin, long seq) {
+        return seen.computeIfAbsent(origin, o -> new SeenWindow()).add(seq);
+    }
+
+    /**
+     * Adds a link once both sides have said who they are. If there is already a link to that node (both nodes were
+     * told to connect to each other) only the one started by the node with the lower id is kept, which both nodes work
+     * out the same way.
+     *
+     * @param link : the new link.
+     * @return : false if the link isn't needed and should be closed.
+     */
+    synchronized boolean register(PeerLink link) {
+        PeerLink existing = links.get(link.remoteNode);
+        if(existing != null){
+            int keeper = Math.min(nodeId, link.remoteNode);
+            boolean newStartedByKeeper = (link.initiated ? nodeId : link.remoteNode) == keeper;
+            if(!newStartedByKeeper){
+                return false;
+            }
+            existing.close();
+        }
+        links.put(link.remoteNode, link);
+        System.out.println("Node " + nodeId + " linked to node " + link.remoteNode + " (" + links.size() + " linked)");
+        return true;
+    }
+
+    /**
+     * Removes a link that has closed.
+     *
+     * @param link : the link.
+     */
+    synchronized void unregister(PeerLink link) {
+        if(links.remove(link.remoteNode, link)){
+            System.out.println("Node " + nodeId + " lost node " + link.remoteNode + " (" + links.size() + " linked)");
+        }
+    }
+
+    /**
+     * @return : the number of nodes this one is linked to.
+     */
+    int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * Closes every link.
+     */
+    void close() {
+        for (PeerLink link: links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Encodes a message as a relay frame.
+     *
+     * @return : the frame, or null if a name is longer than its short length allows or the frame is too long.
+     */
+    private static ByteBuffer encode(int origin, long seq, String channel, Message msg) {
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        byte[] usernameBytes = msg.username.getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.text.getBytes(LineCodec.CHARSET);
+        long length = RELAY_HEADER_LENGTH + 2 + channelBytes.length + 2 + (long) usernameBytes.length + text.length;
+        if(channelBytes.length > Short.MAX_VALUE || usernameBytes.length > Short.MAX_VALUE
+                || length > MAX_RELAY_LENGTH){
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + (int) length);
+        frame.putInt((int) length).put(RELAY).putInt(msg.senderId).putInt(origin).putLong(seq);
+        frame.putShort((short) channelBytes.length).put(channelBytes);
+        frame.putShort((short) usernameBytes.length).put(usernameBytes);
+        frame.put(text).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a short length followed by that many bytes as a string.
+     *
+     * @return : the string, or null if the frame is too short for it.
+     */
+    private static String getString(ByteBuffer in) {
+        int length = in.remaining() < 2 ? -1 : in.getShort();
+        if(length < 0 || length > in.remaining()){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends and receives frames with one other node, each way on its own thread.
+     */
+    static class PeerLink implements Runnable {
+
+        /**
+         * Stores the cluster the link belongs to.
+         */
+        private final Cluster cluster;
+
+        /**
+         * Stores the channel of the link.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * Stores whether or not this node started the link.
+         */
+        final boolean initiated;
+
+        /**
+         * Stores the id of the node at the other end, once it has said.
+         */
+        int remoteNode;
+
+        /**
+         * Stores the frames waiting to be written to the other node.
+         */
+        private final OutboundQueue<ByteBuffer> outQueue;
+
+        /**
+         * Instance method for PeerLink
+         *
+         * @param cluster : the cluster the link belongs to.
+         * @param sc : the channel of the link.
+         * @param initiated : whether or not this node started the link.
+         */
+        PeerLink(Cluster cluster, SocketChannel sc, boolean initiated) {
+            this.cluster = cluster;
+            channel = sc;
+            this.initiated = initiated;
+            outQueue = cluster.th.newOutboundQueue();
+        }
+
+        /**
+         * Says who we are, finds out who they are, checks they know the cluster's secret, and then reads frames until
+         * the link closes.
+         */
+        public void run() {
+            try {
+                byte[] nonce = new byte[NONCE_LENGTH];
+                RANDOM.nextBytes(nonce);
+                write(ByteBuffer.allocate(8 + NONCE_LENGTH).putInt(MAGIC).putInt(cluster.nodeId).put(nonce).flip());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                if(in.readInt() != MAGIC){
+                    throw new IOException("Not a ChatServer node");
+                }
+                remoteNode = in.readInt();
+                byte[] remoteNonce = new byte[NONCE_LENGTH];
+                in.readFully(remoteNonce);
+
+                //Both sides send their proof before checking the other's, so neither waits on the other.
+                write(ByteBuffer.wrap(cluster.proof(initiated, cluster.nodeId, remoteNode, nonce, remoteNonce)));
+                byte[] remoteProof = new byte[PROOF_LENGTH];
+                in.readFully(remoteProof);
+                if(!MessageDigest.isEqual(remoteProof,
+                        cluster.proof(!initiated, remoteNode, cluster.nodeId, remoteNonce, nonce))){
+                    System.out.println("Node " + cluster.nodeId + " refused the link with " + channel.getRemoteAddress()
+                            + ": it does not know the cluster secret");
+                    return;
+                }
+                if(remoteNode == cluster.nodeId || !cluster.register(this)){
+                    //Linked to ourselves, or there is already a link to that node.
+                    return;
+                }
+                daemon("cluster-write-" + remoteNode, this::writeQueued);
+                try {
+                    while (true) {
+                        int length = in.readInt();
+                        if(length < 0){
+                            //Nothing after it can be trusted to start a frame.
+                            throw new IOException("Bad frame length: " + length);
+                        }
+                        if(length < RELAY_HEADER_LENGTH || length > MAX_RELAY_LENGTH){
+                            //Skips just this frame, so one bad message does not cut the link.
+                            skip(in, length);
+                            cluster.th.getMetrics().relayDropped.increment();
+                            continue;
+                        }
+                        byte[] frame = new byte[4 + length];
+                        ByteBuffer.wrap(frame).putInt(length);
+                        in.readFully(frame, 4, length);
+                        cluster.received(this, ByteBuffer.wrap(frame));
+                    }
+                }
+                finally {
+                    cluster.unregister(this);
+                }
+            }
+            catch (IOException e) {
+                //The other node has gone, the connector (if it was ours) will try again.
+            }
+            finally {
+                close();
+            }
+        }
+
+        /**
+         * Reads past a frame that is not handled.
+         *
+         * @param in : the stream from the other node.
+         * @param length : the length of the frame.
+         * @throws IOException : if the link is lost.
+         */
+        private static void skip(DataInputStream in, int length) throws IOException {
+            while (length > 0) {
+                int skipped = in.skipBytes(length);
+                if(skipped == 0){
+                    in.readByte();
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+        }
+
+        /**
+         * Writes the whole of a buffer straight to the other node, for the start of the link.
+         *
+         * @param buf : what to write.
+         * @throws IOException : if the link is lost.
+         */
+        private void write(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        /**
+         * Queues a frame for the other node.
+         *
+         * @param frame : the shared frame.
+         */
+        void send(ByteBuffer frame) {
+            if(!outQueue.offer(frame.duplicate())){
+                close();
+            }
+        }
+
+        /**
+         * Writes queued frames, gathering whatever is waiting into one write, until the link closes.
+         */
+        private void writeQueued() {
+            ByteBuffer[] batch = new ByteBuffer[ClientHandler.MAX_BATCH];
+            try {
+                ByteBuffer msg;
+                while ((msg = outQueue.take()) != null) {
+                    int count = 0;
+                    while (msg != null) {
+                        batch[count++] = msg;
+                        msg = count < batch.length ? outQueue.poll() : null;
+                    }
+                    while (batch[count - 1].hasRemaining()) {
+                        channel.write(batch, 0, count);
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                }
+            }
+            catch (IOException e) {
+                close();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Closes the link.
+         */
+        void close() {
+            outQueue.close();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * The sequence numbers seen from one origin: everything up to the highest, within a window of the most recent ones.
+ * Anything older than the window is treated as already seen.
+ */
+class SeenWindow {
+
+    /**
+     * Stores how many of the most recent sequence numbers are remembered.
+     */
+    private static final int WINDOW = 4096;
+
+    /**
+     * Stores a bit for each remembered sequence number, by sequence number modulo the window.
+     */
+    private final long[] bits = new long[WINDOW / 64];
+
+    /**
+     * Stores the highest sequence number seen.
+     */
+    private long highest;
+
+    /**
+     * Records a sequence number.
+     *
+     * @param seq : the sequence number.
+     * @return : true if it had not been seen before.
+     */
+    synchronized boolean add(long seq) {
+        if(seq <= highest - WINDOW){
+            return false;
+        }
+        if(seq > highest){
+            //Forgets the sequence numbers that have now dropped out of the window.
+            for (long s = Math.max(highest + 1, seq - WINDOW + 1); s <= seq; s++) {
+                clear(s);
+            }
+            highest = seq;
+        }
+        int bit = (int) (seq % WINDOW);
+        long mask = 1L << (bit & 63);
+        if((bits[bit >> 6] & mask) != 0){
+            return false;
+        }
+        bits[bit >> 6] |= mask;
+        return true;
+    }
+
+    /**
+     * Clears the bit of a sequence number.
+     */
+    private void clear(long seq) {
+        int bit = (int) (seq % WINDOW);
+        bits[bit >> 6] &= ~(1L << (bit & 63));
+    }
+}
@@ -0,0 +1,55 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A single client connected to the server, whichever engine is running it.
+ */
+interface Connection {
+
+    /**
+     * Outputs a message in whichever format the client uses. The message may be shared with other clients.
+     *
+     * @param msg : the message to output.
+     */
+    void output(Message msg);
+
+    /**
+     * Outputs a given message from the server to the client.
+     *
+     * @param msg : the message to output.
+     */
+    default void output(String msg){
+        output(Message.system(msg));
+    }
+
+    /**
+     * Outputs bytes that are already encoded in the client's format, e.g. a replay of a channel's history.
+     *
+     * @param encoded : the bytes to output, which must not be changed afterwards.
+     */
+    void outputEncoded(ByteBuffer encoded);
+
+    /**
+     * @return : whether or not the client has switched to binary frames.
+     */
+    boolean isBinary();
+
+    /**
+     * @return : the id of the client, used as the sender id in binary frames.
+     */
+    int getId();
+
+    /**
+     * @return : the username of the client, or null until it has answered "Username: ".
+     */
+    String getUsername();
+
+    /**
+     * @return : the number of messages waiting to be written to the client.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return : how many messages for the client have been dropped because its queue was full.
+     */
+    long getDropped();
+}
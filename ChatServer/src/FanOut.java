@@ -0,0 +1,305 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends every broadcast once as a UDP datagram, for read-only subscribers (spectators, dashboards) that would otherwise
+ * each need a TCP copy. Each datagram goes to a multicast group, so the network copies it to every subscriber that has
+ * joined, or to a list of subscribers' addresses, one datagram each. UDP can lose datagrams, so each carries a sequence
+ * number (see FanOutDatagram) and the last messages are kept in memory for subscribers to fetch over TCP, on the same
+ * port number as the datagrams.
+ */
+class FanOut implements Closeable {
+
+    /**
+     * Stores how often a heartbeat is sent, in milliseconds.
+     */
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Stores the epoch of this server, when it started, in milliseconds.
+     */
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * Stores where each datagram is sent: multicast groups and/or subscribers' addresses.
+     */
+    private final List<InetSocketAddress> destinations;
+
+    /**
+     * Stores the channel the datagrams are sent from.
+     */
+    private final DatagramChannel sender;
+
+    /**
+     * Stores the channel subscribers fetch missed messages on.
+     */
+    private final ServerSocketChannel repairServer;
+
+    /**
+     * Stores the thread that sends the heartbeats.
+     */
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * Stores the metrics the datagrams are counted in.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Stores the last messages sent, each at its sequence number modulo the length.
+     */
+    private final ByteBuffer[] kept;
+
+    /**
+     * Stores the sequence number of the last message sent, 0 before the first.
+     */
+    private long lastSeq;
+
+    /**
+     * Instance method for FanOut
+     *
+     * @param targets : where each datagram is sent, multicast groups and/or subscribers' addresses.
+     * @param ni : the interface multicast datagrams are sent on.
+     * @param keep : how many of the last messages to keep for subscribers to fetch again.
+     * @param repairPort : the TCP port subscribers fetch missed messages on, on the interface's own address.
+     * @param serverMetrics : the metrics the datagrams are counted in.
+     * @throws IOException : if the datagram channel can not be opened or the repair port can not be bound.
+     */
+    FanOut(List<InetSocketAddress> targets, NetworkInterface ni, int keep, int repairPort,
+           ServerMetrics serverMetrics) throws IOException {
+        destinations = targets;
+        kept = new ByteBuffer[keep];
+        metrics = serverMetrics;
+        sender = DatagramChannel.open(StandardProtocolFamily.INET);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+        //Subscribers on this machine get the group's datagrams too, and they never go beyond the first router.
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        repairServer = ServerSocketChannel.open();
+        try {
+            //Only subscribers that can get the datagrams can reach it, as it does not know who they are.
+            repairServer.bind(new InetSocketAddress(address(ni), repairPort));
+        }
+        catch (IOException e) {
+            sender.close();
+            throw e;
+        }
+        daemon("fanout-repair", this::acceptRepairs);
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fanout-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Fanning out to " + destinations + " on " + ni.getName() + ", repairs on "
+                + repairServer.getLocalAddress());
+    }
+
+    /**
+     * Gets the address of an interface the repair port is bound to: its first IPv4 one, like the datagrams.
+     *
+     * @param ni : the interface the datagrams are sent on.
+     * @return : the loopback address for the loopback interface, otherwise the interface's first IPv4 address.
+     * @throws IOException : if the interface has no IPv4 address.
+     */
+    private static InetAddress address(NetworkInterface ni) throws IOException {
+        if(ni.isLoopback()){
+            return InetAddress.getLoopbackAddress();
+        }
+        for (InetAddress a: Collections.list(ni.getInetAddresses())) {
+            if(a instanceof Inet4Address){
+                return a;
+            }
+        }
+        throw new IOException("Interface " + ni.getName() + " has no IPv4 address for the repair port.");
+    }
+
+    /**
+     * Sends a message to every destination and keeps it to be fetched again. Sequence numbers are given out and sent
+     * under the same lock, so datagrams leave in the order of their numbers. A message too big for one datagram is
+     * kept but not sent, so subscribers see the gap and fetch it over TCP.
+     *
+     * @param channel : the channel the message was sent to, or null if it was sent to everyone.
+     * @param msg : the message.
+     */
+    synchronized void publish(String channel, Message msg) {
+        long seq = ++lastSeq;
+        ByteBuffer datagram = FanOutDatagram.message(epoch, seq, channel, msg.line());
+        kept[(int) (seq % kept.length)] = datagram;
+        if(datagram.remaining() > FanOutDatagram.MAX_LENGTH){
+            metrics.datagramsTooBig.increment();
+            return;
+        }
+        send(datagram);
+    }
+
+    /**
+     * Sends the sequence number of the last message to every destination.
+     */
+    private synchronized void heartbeat() {
+        send(FanOutDatagram.control(FanOutDatagram.HEARTBEAT, epoch, lastSeq));
+    }
+
+    /**
+     * Sends a datagram to every destination. A datagram that can not be sent is as good as lost on the way, which
+     * subscribers recover from, so the error is only counted.
+     *
+     * @param datagram : the datagram.
+     */
+    private void send(ByteBuffer datagram) {
+        for (InetSocketAddress destination: destinations) {
+            try {
+                sender.send(datagram.duplicate(), destination);
+                metrics.datagramsSent.increment();
+            }
+            catch (IOException e) {
+                metrics.datagramsFailed.increment();
+            }
+        }
+    }
+
+    /**
+     * @param seq : a sequence number.
+     * @return : the message with that sequence number, or null if it is no longer kept (or not sent yet).
+     */
+    private synchronized ByteBuffer kept(long seq) {
+        if(seq > lastSeq || seq <= lastSeq - kept.length || seq < 1){
+            return null;
+        }
+        return kept[(int) (seq % kept.length)].duplicate();
+    }
+
+    /**
+     * @return : the sequence number of the last message sent.
+     */
+    private synchronized long lastSent() {
+        return lastSeq;
+    }
+
+    /**
+     * @return : the sequence number of the oldest message still kept.
+     */
+    private synchronized long oldestKept() {
+        return Math.max(1, lastSeq - kept.length + 1);
+    }
+
+    /**
+     * Accepts subscribers fetching missed messages, each on a thread of its own, until the fan-out is closed.
+     */
+    private void acceptRepairs() {
+        while (repairServer.isOpen()) {
+            try {
+                SocketChannel sc = repairServer.accept();
+                daemon("fanout-repair-client", () -> serveRepairs(sc));
+            }
+            catch (IOException e) {
+                //The fan-out has been closed.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers a subscriber's repair requests until it disconnects. Each is answered with the messages asked for that
+     * are still kept, a GONE first if some of them are not, then an END with the last sequence number answered.
+     *
+     * @param sc : the subscriber's channel.
+     */
+    private void serveRepairs(SocketChannel sc) {
+        try (SocketChannel channel = sc) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                long requestEpoch = in.readLong();
+                long from = in.readLong();
+                long to = in.readLong();
+                metrics.repairRequests.increment();
+                if(requestEpoch != epoch){
+                    //The server has restarted since, so none of them can be sent.
+                    write(channel, FanOutDatagram.control(FanOutDatagram.GONE, epoch, to + 1));
+                    from = to + 1;
+                }
+                else {
+                    //Nothing after the last message sent can be asked for.
+                    to = Math.min(to, lastSent());
+                    if(from < oldestKept()){
+                        from = Math.min(oldestKept(), to + 1);
+                        write(channel, FanOutDatagram.control(FanOutDatagram.GONE, epoch, from));
+                    }
+                }
+                for (long seq = from; seq <= to; seq++) {
+                    ByteBuffer datagram = kept(seq);
+                    if(datagram == null){
+                        //Overwritten whilst answering, or not sent yet.
+                        write(channel, FanOutDatagram.control(FanOutDatagram.GONE, epoch, seq + 1));
+                        continue;
+                    }
+                    write(channel, datagram);
+                    metrics.datagramsRepaired.increment();
+                }
+                write(channel, FanOutDatagram.control(FanOutDatagram.END, epoch, to));
+            }
+        }
+        catch (EOFException e) {
+            //The subscriber has disconnected.
+        }
+        catch (IOException e) {
+            //The subscriber's connection was lost.
+        }
+    }
+
+    /**
+     * Writes a datagram over TCP, with its length before it.
+     *
+     * @param sc : the subscriber's channel.
+     * @param datagram : the datagram.
+     * @throws IOException : if the channel can not be written.
+     */
+    private static void write(SocketChannel sc, ByteBuffer datagram) throws IOException {
+        ByteBuffer[] out = {ByteBuffer.allocate(4).putInt(0, datagram.remaining()), datagram};
+        while (out[1].hasRemaining()) {
+            sc.write(out);
+        }
+    }
+
+    /**
+     * Starts a daemon thread, so it doesn't keep the server running once it has been shutdown.
+     *
+     * @param name : the name of the thread.
+     * @param r : what it runs.
+     */
+    private static void daemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the heartbeats and closes the datagram channel and the repair port.
+     *
+     * @throws IOException : if a channel can not be closed.
+     */
+    public void close() throws IOException {
+        heartbeats.shutdown();
+        repairServer.close();
+        sender.close();
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Notices clients that have gone quiet without their connection closing, e.g. because the network between them went
+ * down, which a read would otherwise wait on forever. Every connection sits in one slot of a wheel that moves on a slot
+ * every tick. A read only records the tick the client was last heard from, without touching the wheel. When a
+ * connection's slot comes round it is checked against that tick and moved to the slot of its next check: a client
+ * quiet for the heartbeat interval is sent "PING" (which clients answer with "PONG") and one quiet for the idle timeout
+ * is disconnected. Each tick only looks at the connections due then, so there is no task or timer per connection.
+ */
+class HeartbeatWheel implements Runnable {
+
+    /**
+     * Stores the line (and frame payload) the server sends to a quiet client.
+     */
+    static final String PING = "PING";
+
+    /**
+     * Stores the line (and frame payload) a client answers a ping with.
+     */
+    static final String PONG = "PONG";
+
+    /**
+     * Stores how long a tick is, in milliseconds.
+     */
+    static final long TICK_MILLIS = 250;
+
+    /**
+     * Stores the ping sent to every quiet client, encoded once and shared.
+     */
+    private static final Message PING_MESSAGE = Message.ping(PING);
+
+    /**
+     * Stores the instance of ThreadHandler whose clients are checked.
+     */
+    private final ThreadHandler th;
+
+    /**
+     * Stores how many ticks a client can be quiet for before it is pinged.
+     */
+    private final long pingTicks;
+
+    /**
+     * Stores how many ticks a client can be quiet for before it is disconnected.
+     */
+    private final long timeoutTicks;
+
+    /**
+     * Stores the connections due to be checked on each tick, by tick modulo the number of slots.
+     */
+    private final List<ConcurrentLinkedQueue<QueuedConnection>> slots;
+
+    /**
+     * Stores the current tick, only ever changed by the wheel's thread.
+     */
+    private volatile long tick;
+
+    /**
+     * Instance method for HeartbeatWheel
+     *
+     * @param threadHandler : the instance of ThreadHandler whose clients are checked.
+     * @param heartbeatMillis : how long a client can be quiet for before it is pinged, in milliseconds.
+     * @param idleMillis : how long a client can be quiet for before it is disconnected, in milliseconds.
+     */
+    HeartbeatWheel(ThreadHandler threadHandler, long heartbeatMillis, long idleMillis) {
+        th = threadHandler;
+        pingTicks = Math.max(1, heartbeatMillis / TICK_MILLIS);
+        timeoutTicks = Math.max(pingTicks + 1, idleMillis / TICK_MILLIS);
+        //Every check is at most the timeout away, so a connection never needs to go round more than once.
+        slots = new ArrayList<>((int) timeoutTicks + 1);
+        for (int i = 0; i <= timeoutTicks; i++) {
+            slots.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Starts turning the wheel on its own thread, until the server is shutdown.
+     */
+    void start() {
+        Thread t = new Thread(this, "heartbeat-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return : the current tick.
+     */
+    long getTick() {
+        return tick;
+    }
+
+    /**
+     * Starts checking a new connection.
+     *
+     * @param c : the connection.
+     */
+    void add(QueuedConnection c) {
+        c.touch();
+        schedule(c, tick + pingTicks);
+    }
+
+    /**
+     * Puts a connection in the slot of the tick it should next be checked on.
+     */
+    private void schedule(QueuedConnection c, long at) {
+        slots.get((int) (at % slots.size())).add(c);
+    }
+
+    /**
+     * Moves the wheel on a slot every tick, checking the connections in it.
+     */
+    public void run() {
+        long next = System.nanoTime();
+        while (!th.getServerShutdown()) {
+            next += TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            tick = tick + 1;
+            expire(tick);
+        }
+    }
+
+    /**
+     * Checks every connection due on a tick, pinging or disconnecting it if it has been quiet for too long.
+     *
+     * @param now : the tick.
+     */
+    private void expire(long now) {
+        ConcurrentLinkedQueue<QueuedConnection> slot = slots.get((int) (now % slots.size()));
+        QueuedConnection c;
+        while ((c = slot.poll()) != null) {
+            if(c.isClosed()){
+                //It has gone already, so it is just forgotten.
+                continue;
+            }
+            long last = c.getLastActive();
+            long quiet = now - last;
+            if(quiet >= timeoutTicks){
+                System.out.println("Disconnecting idle client " + c.getId());
+                th.getMetrics().idleDisconnects.increment();
+                c.close();
+            }
+            else if(quiet >= pingTicks){
+                //A client that hasn't answered "Username: " yet would take the ping's answer as its username.
+                if(c.hasAnswered()){
+                    c.output(PING_MESSAGE);
+                    th.getMetrics().pings.increment();
+                }
+                schedule(c, last + timeoutTicks);
+            }
+            else {
+                schedule(c, last + pingTicks);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log of every message broadcast, kept so chat and game traffic survives the server restarting. It is
+ * written into memory-mapped segment files, so appending is a copy into memory and never waits for the disk; getting
+ * the data onto the disk (fsync) is left to a background thread, every so many messages and/or milliseconds.
+ *
+ * Segments are named after the sequence number of their first message and each has an index file giving where every
+ * message in it starts, so a message can be found from its sequence number without reading the ones before it.
+ */
+class Journal implements Closeable {
+
+    /**
+     * Stores the directory the segments are in.
+     */
+    private final Path dir;
+
+    /**
+     * Stores the size of each new segment in bytes.
+     */
+    private final int segmentSize;
+
+    /**
+     * Stores how many messages are appended before the journal is synced, or 0 to not sync by count.
+     */
+    private final int syncMessages;
+
+    /**
+     * Stores the thread that syncs segments to the disk and closes full ones.
+     */
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Stores the segment being appended to.
+     */
+    private JournalSegment current;
+
+    /**
+     * Stores the segment made ahead of time to carry on in once the current one is full, or null if it is not ready.
+     */
+    private JournalSegment spare;
+
+    /**
+     * Stores the sequence number of the next message appended.
+     */
+    private long nextSeq;
+
+    /**
+     * Stores how many messages have been appended since the last sync.
+     */
+    private int unsynced;
+
+    /**
+     * Stores whether or not a sync has been asked for and not started yet.
+     */
+    private boolean syncRequested;
+
+    /**
+     * Instance method for Journal. Carries on from the last message in the directory, if there are any.
+     *
+     * @param directory : the directory the segments are in, created if it doesn't exist.
+     * @param segmentBytes : the size of each new segment in bytes.
+     * @param messages : how many messages are appended before the journal is synced, or 0 to not sync by count.
+     * @param millis : how many milliseconds between syncs, or 0 to not sync on a timer.
+     * @throws IOException : if the directory or the last segment can not be opened.
+     */
+    Journal(Path directory, int segmentBytes, int messages, long millis) throws IOException {
+        dir = directory;
+        segmentSize = segmentBytes;
+        syncMessages = messages;
+        Files.createDirectories(dir);
+
+        TreeMap<Long, Path> segments = segments(dir);
+        if(segments.isEmpty()){
+            current = JournalSegment.create(dir, 1, segmentSize);
+        }
+        else {
+            //Finds where the last run stopped by reading to the end of the last segment.
+            current = JournalSegment.open(segments.lastEntry().getValue(), true);
+        }
+        nextSeq = current.getLastSeq() + 1;
+
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        if(millis > 0){
+            syncer.scheduleAtFixedRate(this::sync, millis, millis, TimeUnit.MILLISECONDS);
+        }
+        syncer.execute(this::prepareSpare);
+    }
+
+    /**
+     * Appends a message, starting a new segment if the current one is full. Never waits for the disk.
+     *
+     * @param channel : the channel the message was sent to, or null if it was sent to everyone.
+     * @param msg : the message.
+     * @return : the sequence number of the message, or -1 if it could not be appended.
+     */
+    synchronized long append(String channel, Message msg) {
+        /**
+         * Stores the parts of the record that aren't already encoded.
+         */
+        byte[] channelBytes = channel == null ? null : channel.getBytes(StandardCharsets.UTF_8);
+        byte[] usernameBytes = msg.username == null ? null : msg.username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = msg.frame();
+
+        if(channelBytes != null && channelBytes.length > Short.MAX_VALUE
+                || usernameBytes != null && usernameBytes.length > Short.MAX_VALUE){
+            //Longer than a record's short lengths can hold.
+            return -1;
+        }
+        int length = JournalSegment.recordLength(channelBytes, usernameBytes, frame);
+        if(length + 4 > segmentSize - JournalSegment.HEADER_LENGTH){
+            //Too big for any segment.
+            return -1;
+        }
+        long seq = nextSeq;
+        try {
+            if(!current.append(seq, System.currentTimeMillis(), channelBytes, usernameBytes, frame)){
+                rotate(seq);
+                current.append(seq, System.currentTimeMillis(), channelBytes, usernameBytes, frame);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        nextSeq++;
+        if(syncMessages > 0 && ++unsynced >= syncMessages && !syncRequested){
+            syncRequested = true;
+            syncer.execute(this::sync);
+        }
+        return seq;
+    }
+
+    /**
+     * Starts a new segment, leaving the full one to be synced and closed in the background. Appends are made under the
+     * channels' delivery locks, so the spare made ahead of time is used, which only needs renaming; a segment is only
+     * created here if the spare is not ready yet.
+     *
+     * @param firstSeq : the sequence number of the first message of the new segment.
+     * @throws IOException : if the new segment can not be created.
+     */
+    private void rotate(long firstSeq) throws IOException {
+        JournalSegment full = current;
+        JournalSegment next = spare;
+        spare = null;
+        try {
+            if(next != null){
+                next.claim(dir, firstSeq);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            next.discard(dir);
+            next = null;
+        }
+        current = next != null ? next : JournalSegment.create(dir, firstSeq, segmentSize);
+        syncer.execute(() -> {
+            full.force();
+            full.close();
+            prepareSpare();
+        });
+    }
+
+    /**
+     * Makes the next segment ahead of time. Only called on the sync thread, so creating and mapping the files never
+     * holds up an append.
+     */
+    private void prepareSpare() {
+        synchronized (this) {
+            if(spare != null){
+                return;
+            }
+        }
+        try {
+            JournalSegment segment = JournalSegment.createSpare(dir, segmentSize);
+            synchronized (this) {
+                spare = segment;
+            }
+        }
+        catch (IOException e) {
+            //Rotating makes the segment itself instead.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes everything appended so far to the disk.
+     */
+    void sync() {
+        JournalSegment segment;
+        synchronized (this) {
+            segment = current;
+            unsynced = 0;
+            syncRequested = false;
+        }
+        segment.force();
+    }
+
+    /**
+     * Reads the most recent messages, e.g. to fill the channels' histories at startup. Reads from the start of the
+     * segment holding the earliest of them, so there may be more.
+     *
+     * @param messages : how many messages at least to read.
+     * @param consumer : what is done with each message, oldest first.
+     * @throws IOException : if a segment can not be read.
+     */
+    void replayRecent(long messages, Consumer<JournalRecord> consumer) throws IOException {
+        long from;
+        synchronized (this) {
+            from = Math.max(1, nextSeq - messages);
+        }
+        TreeMap<Long, Path> segments = segments(dir);
+        Long start = segments.floorKey(from);
+        replay(dir, start == null ? from : start, consumer);
+    }
+
+    /**
+     * Syncs and closes the journal.
+     */
+    public void close() {
+        //Lets any sync or close already asked for finish first, they need the lock.
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            current.force();
+            current.close();
+            if(spare != null){
+                spare.discard(dir);
+                spare = null;
+            }
+        }
+    }
+
+    /**
+     * @param dir : a journal directory.
+     * @return : the segment files in it, by the sequence number of their first message.
+     * @throws IOException : if the directory can not be listed.
+     */
+    static TreeMap<Long, Path> segments(Path dir) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + JournalSegment.SUFFIX)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - JournalSegment.SUFFIX.length())),
+                            file);
+                }
+                catch (NumberFormatException e) {
+                    //Not one of ours.
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Reads every message from a sequence number onwards, using the index to skip straight to it.
+     *
+     * @param dir : a journal directory.
+     * @param fromSeq : the sequence number of the first message wanted.
+     * @param consumer : what is done with each message, oldest first.
+     * @throws IOException : if a segment can not be read.
+     */
+    static void replay(Path dir, long fromSeq, Consumer<JournalRecord> consumer) throws IOException {
+        TreeMap<Long, Path> segments = segments(dir);
+        Long first = segments.floorKey(fromSeq);
+        for (Map.Entry<Long, Path> entry: segments.tailMap(first == null ? fromSeq : first, true).entrySet()) {
+            JournalSegment segment = JournalSegment.open(entry.getValue(), false);
+            try {
+                int offset = segment.offsetOf(Math.max(fromSeq, segment.getFirstSeq()));
+                JournalRecord record;
+                while (offset != -1 && (record = segment.read(offset)) != null) {
+                    consumer.accept(record);
+                    offset = record.end;
+                }
+            }
+            finally {
+                segment.close();
+            }
+        }
+    }
+}
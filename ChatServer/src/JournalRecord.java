@@ -0,0 +1,55 @@
+import java.time.Instant;
+
+/**
+ * A message read back from the journal.
+ */
+class JournalRecord {
+
+    /**
+     * Stores the sequence number of the message.
+     */
+    long seq;
+
+    /**
+     * Stores when the message was appended, in milliseconds since 1970.
+     */
+    long time;
+
+    /**
+     * Stores the channel the message was sent to, or null if it was sent to everyone.
+     */
+    String channel;
+
+    /**
+     * Stores the username of the sender, or null for the server.
+     */
+    String username;
+
+    /**
+     * Stores the type of the message, as in Message.
+     */
+    byte type;
+
+    /**
+     * Stores the id the sender had.
+     */
+    int senderId;
+
+    /**
+     * Stores the text of the message.
+     */
+    String text;
+
+    /**
+     * Stores where the next record in the segment starts.
+     */
+    int end;
+
+    /**
+     * @return : the record as a line, e.g. "42 2024-01-01T12:00:00Z #general [name] text".
+     */
+    public String toString() {
+        return seq + " " + Instant.ofEpochMilli(time) + " " + (channel == null ? "*" : "#" + channel) + " "
+                + (username == null ? text : "[" + username + "] " + text);
+    }
+}
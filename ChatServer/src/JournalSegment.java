@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A single segment file of the journal, mapped into memory, with its index file.
+ *
+ * A segment starts with a header (int magic, int unused, long first sequence number) and then records of: int length
+ * (of everything after it, 0 where the records end), int CRC32 (of everything after it), long sequence number, long
+ * time in milliseconds, short channel length (-1 if it went to everyone) and the channel, short username length (-1
+ * for the server) and the username, then the message as a binary frame. The length is written last, so a reader never
+ * sees half a record.
+ */
+class JournalSegment {
+
+    /**
+     * Stores the end of the name of segment files.
+     */
+    static final String SUFFIX = ".log";
+
+    /**
+     * Stores the end of the name of index files.
+     */
+    static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Stores the name of the spare segment, made ahead of time and renamed once it is needed. It is not a number, so
+     * it is never taken for a segment with records.
+     */
+    private static final String SPARE = "spare";
+
+    /**
+     * Stores the number at the start of every segment.
+     */
+    private static final int MAGIC = 0x43484A31;
+
+    /**
+     * Stores the length of the header of a segment.
+     */
+    static final int HEADER_LENGTH = 16;
+
+    /**
+     * Stores the length of the smallest record, used to size the index.
+     */
+    private static final int MIN_RECORD_LENGTH = 4 + 4 + 8 + 8 + 2 + 2 + 4 + Message.HEADER_LENGTH;
+
+    /**
+     * Stores the file of the segment.
+     */
+    private final FileChannel file;
+
+    /**
+     * Stores the file of the index.
+     */
+    private final FileChannel indexFile;
+
+    /**
+     * Stores the segment mapped into memory.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Stores the index mapped into memory: where each record starts, by sequence number from the first.
+     */
+    private final MappedByteBuffer index;
+
+    /**
+     * Stores the sequence number of the first record.
+     */
+    private long firstSeq;
+
+    /**
+     * Stores the sequence number of the last record, or one less than the first if there are none.
+     */
+    private long lastSeq;
+
+    /**
+     * Stores where the next record goes.
+     */
+    private int end;
+
+    /**
+     * Instance method for JournalSegment
+     *
+     * @param file : the file of the segment.
+     * @param indexFile : the file of the index.
+     * @param writable : whether or not records will be appended.
+     * @param firstSeq : the sequence number of the first record.
+     * @param size : the size of the segment, used if it is being created.
+     * @throws IOException : if the files can not be mapped.
+     */
+    private JournalSegment(FileChannel file, FileChannel indexFile, boolean writable, long firstSeq, int size)
+            throws IOException {
+        this.file = file;
+        this.indexFile = indexFile;
+        this.firstSeq = firstSeq;
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        buffer = file.map(mode, 0, writable ? size : file.size());
+        index = indexFile.map(mode, 0, writable ? indexLength(size) : indexFile.size());
+    }
+
+    /**
+     * @param size : the size of a segment.
+     * @return : the size of its index.
+     */
+    private static long indexLength(int size) {
+        return (long) (size - HEADER_LENGTH) / MIN_RECORD_LENGTH * 4;
+    }
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param dir : the journal directory.
+     * @param firstSeq : the sequence number of its first record.
+     * @param size : its size in bytes.
+     * @return : the segment.
+     * @throws IOException : if it can not be created.
+     */
+    static JournalSegment create(Path dir, long firstSeq, int size) throws IOException {
+        return create(dir, name(firstSeq), firstSeq, size);
+    }
+
+    /**
+     * Creates a spare segment, to be given its first sequence number when the current one is full, replacing any left
+     * over from before.
+     *
+     * @param dir : the journal directory.
+     * @param size : its size in bytes.
+     * @return : the segment.
+     * @throws IOException : if it can not be created.
+     */
+    static JournalSegment createSpare(Path dir, int size) throws IOException {
+        Files.deleteIfExists(dir.resolve(SPARE + SUFFIX));
+        Files.deleteIfExists(dir.resolve(SPARE + INDEX_SUFFIX));
+        return create(dir, SPARE, 0, size);
+    }
+
+    /**
+     * Makes the spare segment the next one, starting at a sequence number. Only the header is written and the files
+     * renamed, so nothing is created or mapped.
+     *
+     * @param dir : the journal directory.
+     * @param first : the sequence number of its first record.
+     * @throws IOException : if the files can not be renamed.
+     */
+    void claim(Path dir, long first) throws IOException {
+        firstSeq = first;
+        lastSeq = first - 1;
+        buffer.putLong(8, first);
+        //The index goes first: an index without its segment is never looked at, the other way round would be.
+        Files.move(dir.resolve(SPARE + INDEX_SUFFIX), dir.resolve(name(first) + INDEX_SUFFIX));
+        Files.move(dir.resolve(SPARE + SUFFIX), dir.resolve(name(first) + SUFFIX));
+    }
+
+    /**
+     * Closes and deletes the spare segment, which was never needed.
+     *
+     * @param dir : the journal directory.
+     */
+    void discard(Path dir) {
+        close();
+        try {
+            Files.deleteIfExists(dir.resolve(SPARE + SUFFIX));
+            Files.deleteIfExists(dir.resolve(SPARE + INDEX_SUFFIX));
+        }
+        catch (IOException e) {
+            //Replaced when the journal is next opened.
+        }
+    }
+
+    /**
+     * @param firstSeq : the sequence number of a segment's first record.
+     * @return : the name of its files, without the ending.
+     */
+    private static String name(long firstSeq) {
+        return String.format("%020d", firstSeq);
+    }
+
+    /**
+     * Creates a new, empty segment with a name.
+     */
+    private static JournalSegment create(Path dir, String name, long firstSeq, int size) throws IOException {
+        JournalSegment segment = new JournalSegment(
+                FileChannel.open(dir.resolve(name + SUFFIX), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE),
+                FileChannel.open(dir.resolve(name + INDEX_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE),
+                true, firstSeq, size);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putLong(8, firstSeq);
+        segment.lastSeq = firstSeq - 1;
+        segment.end = HEADER_LENGTH;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment, reading through it to find where its records end.
+     *
+     * @param path : the segment file.
+     * @param writable : whether or not records will be appended.
+     * @return : the segment.
+     * @throws IOException : if it can not be opened or is not a segment.
+     */
+    static JournalSegment open(Path path, boolean writable) throws IOException {
+        String name = path.getFileName().toString();
+        Path indexPath = path.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+        FileChannel file = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        FileChannel indexFile = writable
+                ? FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)
+                : FileChannel.open(indexPath, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        file.read(header, 0);
+        if(header.getInt(0) != MAGIC){
+            file.close();
+            indexFile.close();
+            throw new IOException(path + " is not a journal segment");
+        }
+        JournalSegment segment = new JournalSegment(file, indexFile, writable, header.getLong(8), (int) file.size());
+        segment.lastSeq = segment.firstSeq - 1;
+        segment.end = HEADER_LENGTH;
+        JournalRecord record;
+        while ((record = segment.read(segment.end)) != null) {
+            segment.lastSeq = record.seq;
+            segment.end = record.end;
+        }
+        return segment;
+    }
+
+    /**
+     * @return : the length of a record with these parts.
+     */
+    static int recordLength(byte[] channel, byte[] username, ByteBuffer frame) {
+        return 4 + 4 + 8 + 8 + 2 + (channel == null ? 0 : channel.length) + 2
+                + (username == null ? 0 : username.length) + frame.remaining();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return : false if there isn't room for it, in which case nothing is written.
+     */
+    boolean append(long seq, long time, byte[] channel, byte[] username, ByteBuffer frame) {
+        int length = recordLength(channel, username, frame);
+        if(end + length + 4 > buffer.capacity()){
+            //Leaves room for the zero length that marks the end of the records.
+            return false;
+        }
+        int start = end;
+        buffer.position(start + 8);
+        buffer.putLong(seq);
+        buffer.putLong(time);
+        putBytes(channel);
+        putBytes(username);
+        buffer.put(frame.duplicate());
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 8).limit(start + length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        //Written last: the record only exists once it has its length.
+        buffer.putInt(start, length - 4);
+
+        index.putInt((int) (seq - firstSeq) * 4, start);
+        lastSeq = seq;
+        end = start + length;
+        return true;
+    }
+
+    /**
+     * Writes a short length followed by the bytes, or -1 for none. Journal.append has already turned away anything
+     * longer than a short holds.
+     */
+    private void putBytes(byte[] bytes) {
+        if(bytes == null){
+            buffer.putShort((short) -1);
+        }
+        else {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Reads the record at a position.
+     *
+     * @param offset : where the record starts.
+     * @return : the record, or null if there isn't a whole, undamaged one there.
+     */
+    JournalRecord read(int offset) {
+        if(offset < HEADER_LENGTH || offset + 8 > buffer.capacity()){
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if(length < MIN_RECORD_LENGTH - 4 || offset + 4L + length > buffer.capacity()){
+            return null;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset + 8).limit(offset + 4 + length);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if((int) crc.getValue() != buffer.getInt(offset + 4)){
+            return null;
+        }
+        JournalRecord record = new JournalRecord();
+        record.seq = body.getLong();
+        record.time = body.getLong();
+        record.channel = getString(body);
+        record.username = getString(body);
+        body.getInt();
+        record.type = body.get();
+        record.senderId = body.getInt();
+        byte[] text = new byte[body.remaining()];
+        body.get(text);
+        record.text = new String(text, LineCodec.CHARSET);
+        record.end = offset + 4 + length;
+        return record;
+    }
+
+    /**
+     * Reads a short length followed by that many bytes as a string.
+     *
+     * @return : the string, or null if the length is -1.
+     */
+    private static String getString(ByteBuffer body) {
+        short length = body.getShort();
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds where a record starts from its sequence number, using the index.
+     *
+     * @param seq : the sequence number.
+     * @return : where the record starts, the end of the records if it is after the last, or -1 if it is not here.
+     */
+    int offsetOf(long seq) {
+        if(seq < firstSeq){
+            return -1;
+        }
+        if(seq > lastSeq){
+            return seq == lastSeq + 1 ? end : -1;
+        }
+        int offset = index.getInt((int) (seq - firstSeq) * 4);
+        if(offset >= HEADER_LENGTH){
+            return offset;
+        }
+        //The index didn't make it to the disk before a crash, so the records are read through instead.
+        offset = HEADER_LENGTH;
+        JournalRecord record;
+        while ((record = read(offset)) != null && record.seq < seq) {
+            offset = record.end;
+        }
+        return offset;
+    }
+
+    /**
+     * @return : the sequence number of the first record.
+     */
+    long getFirstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * @return : the sequence number of the last record, or one less than the first if there are none.
+     */
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return : where the records end.
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * Writes the segment and its index to the disk.
+     */
+    void force() {
+        if(buffer.isReadOnly()){
+            return;
+        }
+        buffer.force();
+        index.force();
+    }
+
+    /**
+     * Closes the files. The mappings stay valid until they are garbage collected.
+     */
+    void close() {
+        try {
+            file.close();
+            indexFile.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
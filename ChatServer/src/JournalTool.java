@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the journal the server keeps with -journal, whilst the server is running or not.
+ *
+ *   java JournalTool replay <dir> [fromSeq]   prints every message from a sequence number onwards (default all).
+ *   java JournalTool replay <segment.log>     prints every message in one segment.
+ *   java JournalTool tail <dir> [count]       prints the last messages (default 10) then follows new ones.
+ */
+public class JournalTool {
+
+    /**
+     * Stores how long tail waits before looking for new messages again, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * The main method of the JournalTool.
+     *
+     * @param args : the command and its parameters.
+     */
+    public static void main(String[] args) {
+        if(args.length < 2 || !(args[0].equals("replay") || args[0].equals("tail"))){
+            System.out.println("Usage: java JournalTool replay <dir> [fromSeq] | replay <segment.log> | "
+                    + "tail <dir> [count]");
+            return;
+        }
+        try {
+            Path path = Paths.get(args[1]);
+            long number = args.length > 2 ? Long.parseLong(args[2]) : -1;
+            if(args[0].equals("tail")){
+                tail(path, number == -1 ? 10 : number);
+            }
+            else if(Files.isDirectory(path)){
+                Journal.replay(path, Math.max(number, 1), System.out::println);
+            }
+            else {
+                printSegment(path);
+            }
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + args[2]);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints every message in one segment.
+     *
+     * @param file : the segment file.
+     * @throws IOException : if it can not be read.
+     */
+    private static void printSegment(Path file) throws IOException {
+        JournalSegment segment = JournalSegment.open(file, false);
+        try {
+            JournalRecord record;
+            int offset = JournalSegment.HEADER_LENGTH;
+            while ((record = segment.read(offset)) != null) {
+                System.out.println(record);
+                offset = record.end;
+            }
+        }
+        finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Prints the last messages in a journal and then every new one as it is appended, moving on to the next segment
+     * when the server starts one. Runs until it is killed.
+     *
+     * @param dir : the journal directory.
+     * @param count : how many of the last messages to print first.
+     * @throws IOException : if the journal can not be read.
+     */
+    private static void tail(Path dir, long count) throws IOException {
+        TreeMap<Long, Path> segments = Journal.segments(dir);
+        if(segments.isEmpty()){
+            System.out.println("No journal in " + dir);
+            return;
+        }
+        JournalSegment segment = JournalSegment.open(segments.lastEntry().getValue(), false);
+
+        /**
+         * Stores the sequence number of the last message printed, as the replay may have got further than the segment.
+         */
+        long[] printed = {0};
+        Journal.replay(dir, Math.max(1, segment.getLastSeq() - count + 1), record -> {
+            System.out.println(record);
+            printed[0] = record.seq;
+        });
+        int offset = segment.getEnd();
+
+        try {
+            while (true) {
+                JournalRecord record = segment.read(offset);
+                if(record != null){
+                    if(record.seq > printed[0]){
+                        System.out.println(record);
+                        printed[0] = record.seq;
+                    }
+                    offset = record.end;
+                    continue;
+                }
+                //Nothing new here, the server may have moved on to a new segment.
+                Map.Entry<Long, Path> next = Journal.segments(dir).higherEntry(segment.getFirstSeq());
+                if(next == null){
+                    Thread.sleep(POLL_MILLIS);
+                }
+                else if(segment.read(offset) == null){
+                    //Everything in the old segment was written before the new one was started, so it is finished.
+                    segment.close();
+                    segment = JournalSegment.open(next.getValue(), false);
+                    offset = JournalSegment.HEADER_LENGTH;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with power of two buckets, from 1 microsecond up to about 1 minute.
+ */
+class LatencyHistogram {
+
+    /**
+     * Stores the number of buckets. Bucket i counts durations up to 2^i microseconds, the last one counts the rest.
+     */
+    private static final int BUCKETS = 27;
+
+    /**
+     * Stores the count in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Stores the total of every duration recorded, in nanoseconds.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Stores the longest duration recorded, in nanoseconds.
+     */
+    private volatile long max;
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos : the duration in nanoseconds.
+     */
+    void record(long nanos) {
+        //Rounded up, so a duration is never counted in a bucket whose bound is below it.
+        long micros = Math.max((nanos + 999) / 1000, 1);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros - 1), BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+        sum.add(nanos);
+        if(nanos > max){
+            //Racing writers may lose a slightly smaller maximum, which is fine for monitoring.
+            max = nanos;
+        }
+    }
+
+    /**
+     * @return : how many durations have been recorded.
+     */
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    /**
+     * @return : the longest duration recorded, in nanoseconds.
+     */
+    long max() {
+        return max;
+    }
+
+    /**
+     * @param p : the percentile wanted, between 0 and 1.
+     * @return : the upper bound of the bucket the percentile falls in, in nanoseconds.
+     */
+    long percentile(double p) {
+        long total = count();
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min((1L << i) * 1000, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format.
+     *
+     * @param sb : where to append it.
+     * @param name : the name of the metric.
+     * @param help : what the metric measures.
+     */
+    void prometheus(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            cumulative += counts.get(i);
+            sb.append(name).append("_bucket{le=\"").append((1L << i) / 1e6).append("\"} ").append(cumulative)
+                    .append('\n');
+        }
+        cumulative += counts.get(BUCKETS - 1);
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Turns messages into the bytes of the line protocol.
+ */
+final class LineCodec {
+
+    /**
+     * Stores the charset used for the line protocol, the same one the clients' readers and writers use.
+     */
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    /**
+     * Stores the bytes that end each line.
+     */
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    private LineCodec(){
+    }
+
+    /**
+     * Reads a line from a stream a byte at a time, so nothing after the line is taken from the stream. This lets the
+     * stream be used for binary frames after the username line.
+     *
+     * @param in : the (buffered) stream to read from.
+     * @return : the line without its line separator, or null if the stream has ended.
+     * @throws IOException : if the stream can not be read.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if(b == -1){
+                return line.size() == 0 ? null : trimLine(line.toByteArray(), line.size());
+            }
+            line.write(b);
+        }
+        return trimLine(line.toByteArray(), line.size());
+    }
+
+    /**
+     * Decodes the bytes of a line, dropping the carriage return a Windows client ends it with.
+     *
+     * @param bytes : the bytes of the line without the newline.
+     * @param length : how many of the bytes belong to the line.
+     * @return : the line.
+     */
+    static String trimLine(byte[] bytes, int length){
+        if(length > 0 && bytes[length - 1] == '\r'){
+            length--;
+        }
+        return new String(bytes, 0, length, CHARSET);
+    }
+
+    /**
+     * Encodes a message as a line.
+     *
+     * @param msg : the message to encode.
+     * @return : a read-only buffer holding the message followed by the line separator.
+     */
+    static ByteBuffer encode(String msg){
+        byte[] bytes = msg.getBytes(CHARSET);
+        byte[] line = new byte[bytes.length + LINE_SEPARATOR.length];
+        System.arraycopy(bytes, 0, line, 0, bytes.length);
+        System.arraycopy(LINE_SEPARATOR, 0, line, bytes.length, LINE_SEPARATOR.length);
+        return ByteBuffer.wrap(line).asReadOnlyBuffer();
+    }
+}
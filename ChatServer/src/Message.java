@@ -0,0 +1,194 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * A message on its way to clients. It is encoded at most once per format - as a text line for clients using the line
+ * protocol and as a binary frame for clients that negotiated frames - and those bytes are shared by every recipient.
+ *
+ * A binary frame is: int length (of everything after it), byte type, int sender id, then the payload text.
+ */
+final class Message {
+
+    /**
+     * Stores the frame type of a chat message from a client. The payload is the text without the username.
+     */
+    static final byte CHAT = 1;
+
+    /**
+     * Stores the frame type of a message from the server itself (e.g. "Username: ", "EXIT").
+     */
+    static final byte SYSTEM = 2;
+
+    /**
+     * Stores the frame type that tells a client the username behind a sender id. The payload is the username.
+     */
+    static final byte NAME = 3;
+
+    /**
+     * Stores the frame type of a heartbeat the server sends a quiet client. The payload is "PING".
+     */
+    static final byte PING = 5;
+
+    /**
+     * Stores the frame type a client answers a heartbeat with. The payload is "PONG".
+     */
+    static final byte PONG = 6;
+
+    /**
+     * Stores the chat messages the Dungeons of Doom game ends with, which are sent ahead of other chat.
+     */
+    private static final Set<String> GAME_RESULTS = Set.of("WIN", "LOSE");
+
+    /**
+     * Stores the number of bytes in a frame after the length: the type and the sender id.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * Stores the largest frame length accepted from a client, anything bigger is treated as a broken connection.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Stores the type of the message.
+     */
+    final byte type;
+
+    /**
+     * Stores the id of the client that sent it, or 0 for the server.
+     */
+    final int senderId;
+
+    /**
+     * Stores the username of the client that sent it, or null for the server.
+     */
+    final String username;
+
+    /**
+     * Stores the text of the message.
+     */
+    final String text;
+
+    /**
+     * Stores whether or not the message goes ahead of chat waiting for the same client: the server's own messages,
+     * heartbeats and the results of games.
+     */
+    final boolean control;
+
+    /**
+     * Stores the message encoded as a line, once someone has asked for it.
+     */
+    private volatile ByteBuffer line;
+
+    /**
+     * Stores the message encoded as a frame, once someone has asked for it.
+     */
+    private volatile ByteBuffer frame;
+
+    /**
+     * Instance method for Message
+     *
+     * @param type : the type of the message.
+     * @param senderId : the id of the client that sent it, or 0 for the server.
+     * @param username : the username of the client that sent it, or null for the server.
+     * @param text : the text of the message.
+     */
+    private Message(byte type, int senderId, String username, String text) {
+        this.type = type;
+        this.senderId = senderId;
+        this.username = username;
+        this.text = text;
+        control = type == SYSTEM || type == PING || (type == CHAT && GAME_RESULTS.contains(text));
+    }
+
+    /**
+     * @param senderId : the id of the client that sent the message.
+     * @param username : the username of the client that sent the message.
+     * @param text : the text of the message.
+     * @return : a chat message from a client.
+     */
+    static Message chat(int senderId, String username, String text) {
+        return new Message(CHAT, senderId, username, text);
+    }
+
+    /**
+     * @param text : the text of the message.
+     * @return : a message from the server itself.
+     */
+    static Message system(String text) {
+        return new Message(SYSTEM, 0, null, text);
+    }
+
+    /**
+     * @param senderId : the id of a client.
+     * @param username : the username of that client.
+     * @return : a message telling a client which username is behind a sender id.
+     */
+    static Message name(int senderId, String username) {
+        return new Message(NAME, senderId, null, username);
+    }
+
+    /**
+     * @param text : the text of the heartbeat.
+     * @return : a heartbeat to a quiet client.
+     */
+    static Message ping(String text) {
+        return new Message(PING, 0, null, text);
+    }
+
+    /**
+     * @return : the message as a line, e.g. "[name] text". The buffer is read-only and shared, so take a duplicate().
+     */
+    ByteBuffer line() {
+        ByteBuffer b = line;
+        if(b == null){
+            //Two threads may both encode it the first time, which is harmless as they produce the same bytes.
+            b = LineCodec.encode(username == null ? text : "[" + username + "] " + text);
+            line = b;
+        }
+        return b;
+    }
+
+    /**
+     * @return : the message as a binary frame. The buffer is read-only and shared, so take a duplicate().
+     */
+    ByteBuffer frame() {
+        ByteBuffer b = frame;
+        if(b == null){
+            byte[] payload = text.getBytes(LineCodec.CHARSET);
+            b = ByteBuffer.allocate(4 + HEADER_LENGTH + payload.length);
+            b.putInt(HEADER_LENGTH + payload.length).put(type).putInt(senderId).put(payload).flip();
+            b = b.asReadOnlyBuffer();
+            frame = b;
+        }
+        return b;
+    }
+
+    /**
+     * Reads the payload of the next frame sent by a client.
+     *
+     * @param in : the stream of the client.
+     * @return : the payload text, or null if the client has disconnected.
+     * @throws IOException : if the stream can not be read or the frame is too big.
+     */
+    static String readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        if(length < HEADER_LENGTH || length > MAX_FRAME_LENGTH){
+            throw new IOException("Bad frame length: " + length);
+        }
+        in.readByte();
+        in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new String(payload, LineCodec.CHARSET);
+    }
+}
@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The last messages sent in a channel, kept off the heap so a long history doesn't add to the garbage collector's work.
+ * Messages are stored already encoded, as lines and as frames, back to back in fixed-size rings. A client joining the
+ * channel is sent the whole history as a single copy of those bytes rather than a message at a time.
+ *
+ * Callers hold the history's lock whilst appending and fanning out a message, and whilst adding a member and replaying
+ * to it, so a joining client gets every message exactly once: either in the replay or live.
+ */
+class MessageHistory {
+
+    /**
+     * Stores the history encoded as lines.
+     */
+    private final ByteRing lines;
+
+    /**
+     * Stores the history encoded as binary frames, each chat message preceded by the username of its sender.
+     */
+    private final ByteRing frames;
+
+    /**
+     * Instance method for MessageHistory
+     *
+     * @param messages : the most messages kept.
+     * @param bytes : the most bytes kept in each format.
+     */
+    MessageHistory(int messages, int bytes) {
+        lines = new ByteRing(messages, bytes);
+        frames = new ByteRing(messages, bytes);
+    }
+
+    /**
+     * Adds a message to the history, forgetting the oldest ones if it is full.
+     *
+     * @param msg : the message.
+     */
+    synchronized void append(Message msg) {
+        lines.append(null, msg.line());
+        //The client replaying may never have seen this sender, so the frame comes with its username.
+        frames.append(msg.type == Message.CHAT ? Message.name(msg.senderId, msg.username).frame() : null, msg.frame());
+    }
+
+    /**
+     * Sends the history to a client in whichever format it uses.
+     *
+     * @param c : the client.
+     */
+    synchronized void replayTo(Connection c) {
+        ByteBuffer history = (c.isBinary() ? frames : lines).copy();
+        if(history != null){
+            c.outputEncoded(history);
+        }
+    }
+}
+
+/**
+ * A fixed number of byte records in a fixed-size direct buffer, overwriting the oldest records once either runs out.
+ * Not thread safe, MessageHistory guards it.
+ */
+class ByteRing {
+
+    /**
+     * Stores the records, allocated when the first one is added.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Stores the size of the buffer.
+     */
+    private final int capacity;
+
+    /**
+     * Stores where each record starts, as a position in the stream of every byte ever added.
+     */
+    private final long[] starts;
+
+    /**
+     * Stores the index in starts of the oldest record.
+     */
+    private int first;
+
+    /**
+     * Stores how many records are held.
+     */
+    private int count;
+
+    /**
+     * Stores the position of the oldest byte held, in the stream of every byte ever added.
+     */
+    private long head;
+
+    /**
+     * Stores the position after the newest byte held, in the stream of every byte ever added.
+     */
+    private long tail;
+
+    /**
+     * Instance method for ByteRing
+     *
+     * @param records : the most records held.
+     * @param bytes : the most bytes held.
+     */
+    ByteRing(int records, int bytes) {
+        starts = new long[records];
+        capacity = bytes;
+    }
+
+    /**
+     * Adds a record made of one or two parts. A record too big to ever fit is not added.
+     *
+     * @param prefix : the first part, or null if there is only one.
+     * @param body : the second part.
+     */
+    void append(ByteBuffer prefix, ByteBuffer body) {
+        int length = body.remaining() + (prefix == null ? 0 : prefix.remaining());
+        if(length > capacity){
+            return;
+        }
+        if(buffer == null){
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        while (count == starts.length || tail - head + length > capacity) {
+            //Forgets the oldest record.
+            first = (first + 1) % starts.length;
+            count--;
+            head = count == 0 ? tail : starts[first];
+        }
+        starts[(first + count) % starts.length] = tail;
+        count++;
+        if(prefix != null){
+            put(prefix);
+        }
+        put(body);
+    }
+
+    /**
+     * Copies bytes to the end of the ring, wrapping round to the start of the buffer if needed.
+     *
+     * @param src : the shared encoded bytes, which are left as they were.
+     */
+    private void put(ByteBuffer src) {
+        ByteBuffer bytes = src.duplicate();
+        int length = bytes.remaining();
+        int position = (int) (tail % capacity);
+        int untilEnd = Math.min(length, capacity - position);
+        buffer.position(position);
+        bytes.limit(bytes.position() + untilEnd);
+        buffer.put(bytes);
+        if(untilEnd < length){
+            buffer.position(0);
+            bytes.limit(bytes.position() + length - untilEnd);
+            buffer.put(bytes);
+        }
+        tail += length;
+    }
+
+    /**
+     * @return : every record held, oldest first, copied into one buffer, or null if there are none.
+     */
+    ByteBuffer copy() {
+        int length = (int) (tail - head);
+        if(length == 0){
+            return null;
+        }
+        byte[] out = new byte[length];
+        int position = (int) (head % capacity);
+        int untilEnd = Math.min(length, capacity - position);
+        buffer.position(position);
+        buffer.get(out, 0, untilEnd);
+        if(untilEnd < length){
+            buffer.position(0);
+            buffer.get(out, untilEnd, length - untilEnd);
+        }
+        return ByteBuffer.wrap(out);
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses what a client sends on the thread engine, adding the bytes and the time spent decompressing (but not
+ * waiting for the client) to the metrics.
+ */
+class MeteredInflaterInputStream extends InflaterInputStream {
+
+    /**
+     * Stores the metrics the bytes and time taken are added to.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Stores how long has been spent waiting for compressed bytes during the current read, in nanoseconds.
+     */
+    private long waitNanos;
+
+    /**
+     * Instance method for MeteredInflaterInputStream
+     *
+     * @param in : the compressed stream.
+     * @param serverMetrics : the metrics the bytes and time taken are added to.
+     */
+    MeteredInflaterInputStream(InputStream in, ServerMetrics serverMetrics) {
+        super(in, Compression.newInflater());
+        metrics = serverMetrics;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        waitNanos = 0;
+        int n;
+        try {
+            n = super.read(b, off, len);
+        }
+        catch (EOFException e) {
+            //The client has disconnected.
+            return -1;
+        }
+        metrics.inflateNanos.add(System.nanoTime() - start - waitNanos);
+        if(n > 0){
+            metrics.inflateOut.add(n);
+        }
+        return n;
+    }
+
+    /**
+     * Frees the native memory of the decompressor, which closing the stream does not as it was given its own. Only
+     * called by the reader once it is finished, without closing the client's channel underneath.
+     */
+    void end() {
+        inf.end();
+    }
+
+    protected void fill() throws IOException {
+        long start = System.nanoTime();
+        super.fill();
+        waitNanos += System.nanoTime() - start;
+        metrics.inflateIn.add(len);
+    }
+}
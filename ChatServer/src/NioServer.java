@@ -0,0 +1,907 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Alternative engine for the server. Instead of one thread per client, clients are shared round-robin between a fixed
+ * number of worker threads, each running its own selector with non-blocking reads and writes, while keeping the same
+ * line protocol. Accepting is done on separate threads that only hand each new channel to a worker, so a storm of
+ * connections is taken off the listen queue as fast as possible and registering and logging them is spread over the
+ * workers. Clients can be served over TLS, with each worker doing the handshakes of its own clients.
+ */
+class NioServer {
+
+    /**
+     * Stores the channel of the server that clients are accepted on.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Stores any other channels clients are accepted on (i.e. a Unix domain socket), each by a thread of its own.
+     */
+    private List<ServerSocketChannel> otherChannels = new ArrayList<>();
+
+    /**
+     * Stores the instance of ThreadHandler handling the broadcasts for this server.
+     */
+    private ThreadHandler th;
+
+    /**
+     * Stores the workers that clients are shared between.
+     */
+    private NioWorker[] workers;
+
+    /**
+     * Stores how many threads accept clients.
+     */
+    private int acceptors;
+
+    /**
+     * Stores how many clients have been handed to a worker, to pick the next one round-robin.
+     */
+    private AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Stores the context clients' TLS engines are made from, or null if clients are not served over TLS.
+     */
+    private SSLContext sslContext;
+
+    /**
+     * Instance method for NioServer
+     *
+     * @param ssc : the bound channel of the server.
+     * @param threadHandler : the instance of ThreadHandler handling the broadcasts for this server.
+     * @param workerCount : how many worker threads to share clients between.
+     * @param acceptorCount : how many threads accept clients.
+     * @param context : the context clients' TLS engines are made from, or null to serve clients without TLS.
+     */
+    public NioServer(ServerSocketChannel ssc, ThreadHandler threadHandler, int workerCount, int acceptorCount,
+                     SSLContext context) {
+        serverChannel = ssc;
+        th = threadHandler;
+        workers = new NioWorker[workerCount];
+        acceptors = acceptorCount;
+        sslContext = context;
+    }
+
+    /**
+     * Accepts clients on another channel as well, which must be closed when the server is shutdown (see
+     * ThreadHandler.addListener). Only called before run().
+     *
+     * @param ssc : the bound channel.
+     */
+    public void addListener(ServerSocketChannel ssc) {
+        otherChannels.add(ssc);
+    }
+
+    /**
+     * Starts the workers and accepts clients until the server is shutdown, then waits for the workers to finish.
+     *
+     * @throws IOException : if a selector can not be opened.
+     */
+    public void run() throws IOException {
+        Thread[] threads = new Thread[workers.length + acceptors - 1 + otherChannels.size()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new NioWorker(th, sslContext);
+            threads[i] = new Thread(workers[i], "nio-worker-" + i);
+        }
+        for (int i = 1; i < acceptors; i++) {
+            threads[workers.length + i - 1] = new Thread(() -> accept(serverChannel), "nio-acceptor-" + i);
+        }
+        for (int i = 0; i < otherChannels.size(); i++) {
+            final ServerSocketChannel channel = otherChannels.get(i);
+            threads[workers.length + acceptors - 1 + i] = new Thread(() -> accept(channel), "nio-listener-" + i);
+        }
+        for (Thread t: threads) {
+            t.start();
+        }
+        System.out.println("Server listening (" + workers.length + " workers, " + acceptors + " acceptors"
+                + (sslContext == null ? ")" : ", TLS)"));
+        accept(serverChannel);
+
+        //The server channel has been closed, so every worker is woken to notice the shutdown.
+        for (NioWorker worker: workers) {
+            worker.wakeup();
+        }
+        System.out.println("Server shutting down...");
+        for (Thread t: threads) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts clients and hands each one to the next worker, until the channel is closed.
+     *
+     * @param ssc : the channel clients are accepted on.
+     */
+    private void accept(ServerSocketChannel ssc) {
+        while (!th.getServerShutdown()) {
+            try {
+                SocketChannel sc = ssc.accept();
+                sc.configureBlocking(false);
+                workers[(int) (accepted.getAndIncrement() % workers.length)].register(sc);
+            }
+            catch (ClosedChannelException e) {
+                //The server has been shutdown.
+                return;
+            }
+            catch (IOException e) {
+                //e.g. out of file descriptors, which may pass, so the server carries on accepting.
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * One of the selector loops of the selector engine. Every client it is given is read from and written to only on its
+ * thread, apart from messages being queued, which any thread can do.
+ */
+class NioWorker implements Runnable {
+
+    /**
+     * Stores how long the server keeps flushing queued messages once it has been shutdown.
+     */
+    private static final long SHUTDOWN_FLUSH_MILLIS = 1000;
+
+    /**
+     * Stores the instance of ThreadHandler handling the broadcasts for this server.
+     */
+    private ThreadHandler th;
+
+    /**
+     * Stores the selector that every channel of this worker is registered with.
+     */
+    private Selector selector;
+
+    /**
+     * Stores the context clients' TLS engines are made from, or null if clients are not served over TLS.
+     */
+    private SSLContext sslContext;
+
+    /**
+     * Stores the thread running the selector loop.
+     */
+    private Thread loopThread;
+
+    /**
+     * Stores channels that have been accepted and need to be registered with the selector.
+     */
+    private Queue<SocketChannel> pendingAccepts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Stores connections that have had messages queued and need to be switched to write interest.
+     */
+    private Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Stores connections that have been closed and whose compressor and decompressor need freeing.
+     */
+    private Queue<NioConnection> pendingReleases = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Stores connections that are not being read from because they went over their rate limit, soonest to resume
+     * first. Only used on the selector thread.
+     */
+    private PriorityQueue<NioConnection> paused = new PriorityQueue<>(Comparator.comparingLong(c -> c.resumeAt));
+
+    /**
+     * Instance method for NioWorker
+     *
+     * @param threadHandler : the instance of ThreadHandler handling the broadcasts for this server.
+     * @param context : the context clients' TLS engines are made from, or null to serve clients without TLS.
+     * @throws IOException : if the selector can not be opened.
+     */
+    NioWorker(ThreadHandler threadHandler, SSLContext context) throws IOException {
+        th = threadHandler;
+        sslContext = context;
+        selector = Selector.open();
+    }
+
+    /**
+     * Runs the selector loop until the server is shutdown.
+     */
+    public void run() {
+        loopThread = Thread.currentThread();
+        while (!th.getServerShutdown()) {
+            //Resuming a paused client can queue messages, so it is done before the writes are registered.
+            long timeout = resumePaused();
+            //Anything accepted or queued whilst handling the last keys needs registering before we block again.
+            registerPendingAccepts();
+            registerPendingWrites();
+            releaseClosed();
+            try {
+                selector.select(timeout);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            for (SelectionKey key: selector.selectedKeys()) {
+                //Every key belongs to a client.
+                NioConnection c = (NioConnection) key.attachment();
+                try {
+                    if(!key.isValid()){
+                        continue;
+                    }
+                    if(key.isReadable()){
+                        c.read();
+                    }
+                    if(key.isValid() && key.isWritable()){
+                        c.write();
+                    }
+                }
+                catch (IOException | CancelledKeyException e) {
+                    //A client that errors, or was closed by another thread meanwhile, is simply dropped, the rest of
+                    //the server carries on.
+                    c.close();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+
+        flushAndClose();
+    }
+
+    /**
+     * Hands a newly accepted client to this worker. Called on an acceptor thread.
+     *
+     * @param sc : the channel of the client, already non-blocking.
+     */
+    void register(SocketChannel sc) {
+        pendingAccepts.add(sc);
+        selector.wakeup();
+    }
+
+    /**
+     * Wakes the selector so the loop checks whether the server has been shutdown.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Registers every client handed to this worker with the selector and asks it for its username. Only called on the
+     * selector thread.
+     */
+    private void registerPendingAccepts() {
+        SocketChannel sc;
+        while ((sc = pendingAccepts.poll()) != null) {
+
+            /**
+             * Stores the connection for the new client.
+             */
+            NioConnection c = new NioConnection(sc, this, th, newTlsChannel(sc));
+            try {
+                c.key = sc.register(selector, SelectionKey.OP_READ, c);
+            }
+            catch (IOException e) {
+                //The client has gone already.
+                c.close();
+                continue;
+            }
+            th.addConnection(c);
+            System.out.println("Server accepted connection on " + UnixDomainSockets.describe(sc) + " ("
+                    + th.getConnectionCount() + " connected)");
+
+            //Gets a username for the client
+            c.output("Username: ");
+        }
+    }
+
+    /**
+     * Makes the TLS side of a newly accepted client, if clients are served over TLS.
+     *
+     * @param sc : the channel of the client.
+     * @return : the TLS channel over sc, or null if clients are not served over TLS or sc is a Unix domain socket.
+     */
+    private TlsChannel newTlsChannel(SocketChannel sc) {
+        if(sslContext == null || UnixDomainSockets.isUnix(sc)){
+            //A Unix domain socket never leaves the machine, and who can connect is up to its file's permissions.
+            return null;
+        }
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(sc, engine, th.getMetrics());
+    }
+
+    /**
+     * Marks a connection as having data to write, waking the selector if called from another thread. Only the first
+     * message queued since the selector last switched the connection over does anything.
+     *
+     * @param c : the connection with queued messages.
+     */
+    void requestWrite(NioConnection c) {
+        if(!c.writeRequested.compareAndSet(false, true)){
+            //Already waiting to be switched over, so a broadcast to many clients only adds each of them once.
+            return;
+        }
+        pendingWrites.add(c);
+        if(Thread.currentThread() != loopThread){
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Frees a closed connection's compressor and decompressor on the selector thread, the only one that uses them, so
+     * they are never ended whilst it is part way through a read or write.
+     *
+     * @param c : the closed connection.
+     */
+    void release(NioConnection c) {
+        pendingReleases.add(c);
+        if(Thread.currentThread() != loopThread){
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Frees the compressor and decompressor of every connection closed since the last time. Only called on the
+     * selector thread.
+     */
+    private void releaseClosed() {
+        NioConnection c;
+        while ((c = pendingReleases.poll()) != null) {
+            c.endCompression();
+        }
+    }
+
+    /**
+     * Stops reading from a connection for a while. Only called on the selector thread.
+     *
+     * @param c : the connection.
+     * @param nanos : how long to stop for, in nanoseconds.
+     */
+    void pauseReading(NioConnection c, long nanos) {
+        if(!c.key.isValid()){
+            return;
+        }
+        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+        c.resumeAt = System.nanoTime() + nanos;
+        paused.add(c);
+    }
+
+    /**
+     * Starts reading again from every paused connection that is due, once what it held back has been handled. Only
+     * called on the selector thread.
+     *
+     * @return : how long until the next one is due in milliseconds, or 0 if none are paused, to wait in select for.
+     */
+    private long resumePaused() {
+        long now = System.nanoTime();
+        NioConnection c;
+        while ((c = paused.peek()) != null && c.resumeAt <= now) {
+            paused.poll();
+            if(c.key.isValid()){
+                try {
+                    c.resume();
+                }
+                catch (IOException | CancelledKeyException e) {
+                    c.close();
+                }
+            }
+        }
+        return c == null ? 0 : Math.max(1, (c.resumeAt - now + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Switches every connection with queued messages over to write interest. Only called on the selector thread.
+     */
+    private void registerPendingWrites() {
+        NioConnection c;
+        while ((c = pendingWrites.poll()) != null) {
+            //Cleared first, so anything queued from here on asks again rather than being missed.
+            c.writeRequested.set(false);
+            try {
+                if(c.key.isValid()){
+                    c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            catch (CancelledKeyException e) {
+                //Closed by another thread since the check, so there is nothing to write to.
+            }
+        }
+    }
+
+    /**
+     * Gives clients a short while to receive anything still queued (e.g. the EXIT broadcast) and closes everything.
+     */
+    private void flushAndClose() {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_FLUSH_MILLIS;
+        try {
+            boolean pending = true;
+            while (pending && System.currentTimeMillis() < deadline) {
+                pending = false;
+                for (SelectionKey key: selector.keys()) {
+                    if(key.attachment() instanceof NioConnection && key.isValid()){
+                        NioConnection c = (NioConnection) key.attachment();
+                        try {
+                            c.write();
+                        }
+                        catch (IOException | CancelledKeyException e) {
+                            c.close();
+                        }
+                        pending |= c.hasPending();
+                    }
+                }
+                if(pending){
+                    Thread.sleep(1);
+                }
+            }
+            for (SelectionKey key: selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            releaseClosed();
+        }
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * A client running on the selector engine. Turns incoming bytes into lines (or binary frames) and queues outgoing
+ * messages until the channel is writable.
+ */
+class NioConnection extends QueuedConnection {
+
+    /**
+     * Stores the channel of the client.
+     */
+    private SocketChannel channel;
+
+    /**
+     * Stores the TLS side of the channel, or null if the client is not served over TLS.
+     */
+    private TlsChannel tls;
+
+    /**
+     * Stores the key of the channel with the selector.
+     */
+    SelectionKey key;
+
+    /**
+     * Stores the worker this connection is running on.
+     */
+    private NioWorker worker;
+
+    /**
+     * Stores whether the connection is already waiting for the selector to switch it to write interest.
+     */
+    final AtomicBoolean writeRequested = new AtomicBoolean();
+
+    /**
+     * Stores the buffer the channel is read into.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * Stores the bytes of the line currently being read.
+     */
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /**
+     * Stores the bytes of binary frames that have not all arrived yet.
+     */
+    private ByteBuffer frameBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * Stores the decompressor of what the client sends, if it asked for compression.
+     */
+    private Inflater inflater;
+
+    /**
+     * Stores the buffer what the client sends is decompressed into.
+     */
+    private ByteBuffer inflated;
+
+    /**
+     * Stores the messages gathered for the current write, which the channel may only have taken part of.
+     */
+    private ByteBuffer[] batch = new ByteBuffer[ClientHandler.MAX_BATCH];
+
+    /**
+     * Stores how many buffers are in the current write.
+     */
+    private int batchCount;
+
+    /**
+     * Stores how many messages are in the current write, which is more than the buffers once they are compressed.
+     */
+    private int batchMessages;
+
+    /**
+     * Stores how many bytes are in the current write.
+     */
+    private long batchBytes;
+
+    /**
+     * Stores bytes from the client that have been read but not handled yet because it went over its rate limit.
+     */
+    private ByteBuffer held = ByteBuffer.allocate(0);
+
+    /**
+     * Stores the message that took the client over its rate limit, which is handled once it is back within it, or null.
+     */
+    private String waiting;
+
+    /**
+     * Stores how long to stop reading from the client for once it has gone over its rate limit, in nanoseconds.
+     */
+    private long pauseNanos;
+
+    /**
+     * Stores when reading from the client starts again whilst it is paused, from System.nanoTime().
+     */
+    long resumeAt;
+
+    /**
+     * Instance method for NioConnection
+     *
+     * @param sc : the channel of the client.
+     * @param nioWorker : the worker this connection is running on.
+     * @param threadHandler : the instance of ThreadHandler handling the broadcasts for this server.
+     * @param tlsChannel : the TLS side of the channel, or null if the client is not served over TLS.
+     */
+    public NioConnection(SocketChannel sc, NioWorker nioWorker, ThreadHandler threadHandler, TlsChannel tlsChannel) {
+        super(threadHandler);
+        channel = sc;
+        worker = nioWorker;
+        tls = tlsChannel;
+    }
+
+    /**
+     * Reads whatever is available on the channel and handles every complete line or frame.
+     *
+     * @throws IOException : if the channel can not be read or the client sent a broken frame.
+     */
+    void read() throws IOException {
+        do {
+            int n = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+            if(n == -1){
+                close();
+                return;
+            }
+            th.getMetrics().bytesIn.add(n);
+            touch();
+            readBuffer.flip();
+            if(inflater == null){
+                handleBytes(readBuffer);
+                if(pauseNanos > 0){
+                    hold(readBuffer);
+                }
+            }
+            if(isDeflated() && readBuffer.hasRemaining() && channel.isOpen()){
+                //Everything after the username line is compressed.
+                inflate();
+            }
+            readBuffer.clear();
+            if(pauseIfOver()){
+                break;
+            }
+            //The selector can not say when TLS has decrypted more than fitted in the read buffer.
+        } while (tls != null && tls.hasBufferedInput() && channel.isOpen());
+        if(tls != null && key.isValid() && (tls.hasPendingOutput() || !tls.isHandshaking() && hasPending())){
+            //Either the handshake is waiting for the socket, or it has just finished with messages already queued.
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Handles the message that took the client over its rate limit and whatever was held back after it, then starts
+     * reading from it again, or pauses it again if it goes over its limit before all of it has been handled. Only
+     * called on the selector thread.
+     *
+     * @throws IOException : if the client sent a broken frame or the channel can not be read.
+     */
+    void resume() throws IOException {
+        if(waiting != null){
+            //Its token was taken when it arrived.
+            String msg = waiting;
+            waiting = null;
+            th.receive(this, getUsername(), msg);
+        }
+        held.flip();
+        handleBytes(held);
+        held.compact();
+        if(!pauseIfOver() && key.isValid()){
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if(tls != null && tls.hasBufferedInput()){
+                read();
+            }
+        }
+    }
+
+    /**
+     * Stops reading from the client if it has gone over its rate limit.
+     *
+     * @return : true if reading has been stopped.
+     */
+    private boolean pauseIfOver() {
+        if(pauseNanos <= 0 || !channel.isOpen()){
+            return false;
+        }
+        worker.pauseReading(this, pauseNanos);
+        pauseNanos = 0;
+        return true;
+    }
+
+    /**
+     * Keeps the bytes that have not been handled yet to be handled once the client is back within its rate limit.
+     *
+     * @param bytes : the bytes, as the client meant them to be read.
+     */
+    private void hold(ByteBuffer bytes) {
+        if(held.remaining() < bytes.remaining()){
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(held.capacity() * 2, held.position() + bytes.remaining()));
+            held.flip();
+            held = bigger.put(held);
+        }
+        held.put(bytes);
+    }
+
+    /**
+     * Decompresses what is left in the read buffer and handles every complete line or frame in it.
+     *
+     * @throws IOException : if the client sent something that can not be decompressed or a broken frame.
+     */
+    private void inflate() throws IOException {
+        if(inflater == null){
+            inflater = Compression.newInflater();
+            inflated = ByteBuffer.allocate(readBuffer.capacity() * 4);
+        }
+        long start = System.nanoTime();
+        long handling = 0;
+        int in = readBuffer.remaining();
+        long out = 0;
+        inflater.setInput(readBuffer);
+        try {
+            int n;
+            do {
+                inflated.clear();
+                n = inflater.inflate(inflated);
+                out += n;
+                inflated.flip();
+                long handleStart = System.nanoTime();
+                handleBytes(inflated);
+                if(inflated.hasRemaining()){
+                    //The client went over its limit, so the rest is kept for later.
+                    hold(inflated);
+                }
+                handling += System.nanoTime() - handleStart;
+                //A full buffer may mean there is more to come even once all the input has been taken.
+            } while ((n == inflated.capacity() || !inflater.needsInput()) && !inflater.finished() && channel.isOpen());
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Bad compressed data", e);
+        }
+        th.getMetrics().inflateIn.add(in);
+        th.getMetrics().inflateOut.add(out);
+        th.getMetrics().inflateNanos.add(System.nanoTime() - start - handling);
+    }
+
+    /**
+     * Handles every complete line or frame in some bytes from the client, stopping once the username line has been
+     * handled if everything after it is compressed, or once the client goes over its rate limit.
+     *
+     * @param bytes : the bytes, as the client meant them to be read.
+     * @throws IOException : if the client sent a broken frame.
+     */
+    private void handleBytes(ByteBuffer bytes) throws IOException {
+        boolean compressed = inflater != null;
+        while (channel.isOpen() && pauseNanos <= 0 && (compressed || !isDeflated())) {
+            if(isBinary()){
+                //Everything after the username line is frames, which may be waiting even if there are no new bytes.
+                readFrames(bytes);
+                break;
+            }
+            if(!bytes.hasRemaining()){
+                break;
+            }
+            byte b = bytes.get();
+            if(b == '\n'){
+                handleLine(LineCodec.trimLine(line.toByteArray(), line.size()));
+                line.reset();
+            }
+            else {
+                line.write(b);
+            }
+        }
+    }
+
+    /**
+     * Adds what has been read to the frames waiting to be completed and handles every frame that now is, until the
+     * client goes over its rate limit.
+     *
+     * @param bytes : the bytes read.
+     * @throws IOException : if the client sent a frame with a broken length.
+     */
+    private void readFrames(ByteBuffer bytes) throws IOException {
+        if(frameBuffer.remaining() < bytes.remaining()){
+            //Grows the buffer so a frame bigger than it can still be put together.
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2,
+                    frameBuffer.position() + bytes.remaining()));
+            frameBuffer.flip();
+            frameBuffer = bigger.put(frameBuffer);
+        }
+        frameBuffer.put(bytes);
+        frameBuffer.flip();
+        while (frameBuffer.remaining() >= 4 && channel.isOpen() && pauseNanos <= 0) {
+            int start = frameBuffer.position();
+            int length = frameBuffer.getInt(start);
+            if(length < Message.HEADER_LENGTH || length > Message.MAX_FRAME_LENGTH){
+                throw new IOException("Bad frame length: " + length);
+            }
+            if(frameBuffer.remaining() < 4 + length){
+                break;
+            }
+            int payloadLength = length - Message.HEADER_LENGTH;
+            String payload = new String(frameBuffer.array(), start + 4 + Message.HEADER_LENGTH, payloadLength,
+                    LineCodec.CHARSET);
+            frameBuffer.position(start + 4 + length);
+            admit(payload);
+        }
+        frameBuffer.compact();
+    }
+
+    /**
+     * Handles a line from the client in the same way ClientHandler does.
+     *
+     * @param userInput : the line the client sent.
+     */
+    private void handleLine(String userInput) {
+        if(getUsername() == null){
+            //The first line is the answer to "Username: ".
+            handshake(userInput);
+            return;
+        }
+        admit(userInput);
+    }
+
+    /**
+     * Takes a token for a message from the client and handles it, or if that takes the client over its rate limit,
+     * holds it and stops reading until the client is back within its limit.
+     *
+     * @param userInput : the message the client sent.
+     */
+    private void admit(String userInput) {
+        long wait = throttle();
+        if(wait > 0){
+            waiting = userInput;
+            pauseNanos = wait;
+            return;
+        }
+        th.receive(this, getUsername(), userInput);
+    }
+
+    /**
+     * Writes as much of the queued messages as the channel will take, gathering them into batches written with one
+     * call, and drops write interest once they are all sent.
+     *
+     * @throws IOException : if the channel can not be written to.
+     */
+    void write() throws IOException {
+        if(tls != null && !tls.ready()){
+            if(!tls.hasPendingOutput() && key.isValid()){
+                //The handshake is waiting for the client, and carries on as it is read from.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        while (batchCount > 0 || fillBatch()) {
+            if(tls == null){
+                channel.write(batch, 0, batchCount);
+            }
+            else {
+                tls.write(batch, 0, batchCount);
+            }
+            if(batch[batchCount - 1].hasRemaining()){
+                //The socket buffer is full, wait until the selector says we can write again.
+                return;
+            }
+            th.recordFlush(batchMessages, batchBytes);
+            Arrays.fill(batch, 0, batchCount, null);
+            batchCount = 0;
+            batchBytes = 0;
+        }
+        if(tls != null && !tls.flush()){
+            //The last of the encrypted bytes are still waiting for the socket.
+            return;
+        }
+        if(key.isValid()){
+            //Leaves read interest as it was, as reading may be paused.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Gathers queued messages into the next batch, until it is full or big enough to flush, and compresses them if the
+     * client asked for it.
+     *
+     * @return : whether or not there is anything to write.
+     */
+    private boolean fillBatch() {
+        ByteBuffer msg;
+        while (batchCount < batch.length && batchBytes < th.getFlushBytes() && (msg = outQueue.poll()) != null) {
+            batch[batchCount++] = msg;
+            batchBytes += msg.remaining();
+        }
+        batchMessages = batchCount;
+        batchCount = deflate(batch, batchCount);
+        if(batchCount == 0){
+            //There was only the start of compression, which has nothing to write.
+            batchBytes = 0;
+        }
+        return batchCount > 0;
+    }
+
+    /**
+     * @return : whether or not there are messages still waiting to be written.
+     */
+    boolean hasPending() {
+        return batchCount > 0 || outQueue.size() > 0;
+    }
+
+    /**
+     * Asks the selector to write the message that has just been queued.
+     */
+    protected void queued() {
+        worker.requestWrite(this);
+    }
+
+    /**
+     * Frees the native memory of the compressor and decompressor, if the client asked for compression. Only called on
+     * the selector thread once the connection is closed.
+     */
+    void endCompression() {
+        endDeflate();
+        if(inflater != null){
+            inflater.end();
+        }
+    }
+
+    /**
+     * Closes the connection with the client and removes it from the server's clients.
+     */
+    void close() {
+        th.removeConnection(this);
+        outQueue.close();
+        //The key is only missing if registering the client with the selector failed.
+        if(key != null){
+            key.cancel();
+        }
+        worker.release(this);
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
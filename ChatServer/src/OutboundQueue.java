@@ -0,0 +1,325 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of messages waiting to be written to a single client. Senders only ever enqueue, so one slow client
+ * can't hold up a broadcast to everyone else; the client's own writer takes messages off the other end. It uses a
+ * lock and condition rather than wait/notify so writers can wait with microsecond deadlines.
+ *
+ * Messages are queued in one of two lanes: control (the server's own messages, heartbeats and game results) and chat.
+ * Whatever is in the control lane is always taken first, so control messages never wait behind a backlog of chat.
+ * Each lane has its own capacity and the time messages wait in each is recorded, for every control message and a
+ * sample of the chat ones.
+ *
+ * @param <T> : the type of message queued.
+ */
+class OutboundQueue<T> {
+
+    /**
+     * Stores how many chat messages are queued for every one whose wait is recorded.
+     */
+    static final int CHAT_SAMPLE_EVERY = 64;
+
+    /**
+     * Stores the lane of control messages, taken before any chat.
+     */
+    private final Lane<T> control;
+
+    /**
+     * Stores the lane of chat messages.
+     */
+    private final Lane<T> chat;
+
+    /**
+     * Stores the lock guarding the queue.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Stores the condition a writer waits on for the queue to stop being empty.
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Stores the most messages that can be queued at once in each lane.
+     */
+    private final int capacity;
+
+    /**
+     * Stores what to do when a message arrives and its lane is full.
+     */
+    private final OverflowPolicy policy;
+
+    /**
+     * Stores how many messages have been dropped because their lane was full.
+     */
+    private long dropped;
+
+    /**
+     * Stores whether or not the queue has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Instance method for OutboundQueue
+     *
+     * @param capacity : the most messages that can be queued at once in each lane.
+     * @param policy : what to do when a message arrives and its lane is full.
+     * @param controlWait : where the time control messages wait is recorded, or null to not record it.
+     * @param chatWait : where the time a sample of chat messages wait is recorded, or null to not record it.
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, LatencyHistogram controlWait, LatencyHistogram chatWait) {
+        this.capacity = capacity;
+        this.policy = policy;
+        control = new Lane<>(controlWait, 1);
+        chat = new Lane<>(chatWait, CHAT_SAMPLE_EVERY);
+    }
+
+    /**
+     * Adds a chat message to the queue, applying the overflow policy if its lane is full. Never blocks.
+     *
+     * @param msg : the message to queue.
+     * @return : false if the queue overflowed with the DISCONNECT policy and the client should be dropped.
+     */
+    boolean offer(T msg) {
+        return offer(msg, false);
+    }
+
+    /**
+     * Adds a message to the queue, applying the overflow policy if its lane is full. Never blocks.
+     *
+     * @param msg : the message to queue.
+     * @param isControl : whether the message goes in the control lane, ahead of any chat.
+     * @return : false if the queue overflowed with the DISCONNECT policy and the client should be dropped.
+     */
+    boolean offer(T msg, boolean isControl) {
+        Lane<T> lane = isControl ? control : chat;
+        lock.lock();
+        try {
+            if(closed){
+                return true;
+            }
+            if(lane.messages.size() >= capacity){
+                dropped++;
+                switch (policy) {
+                    case DROP_OLDEST:
+                        lane.poll();
+                        break;
+                    case DROP_NEWEST:
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+            lane.add(msg);
+            if(control.messages.size() + chat.messages.size() == 1){
+                //The writer may be waiting for the queue to stop being empty.
+                notEmpty.signal();
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return : the next message, control first, or null if there isn't one. Only called holding the lock.
+     */
+    private T next() {
+        T msg = control.poll();
+        return msg != null ? msg : chat.poll();
+    }
+
+    /**
+     * @return : whether or not both lanes are empty. Only called holding the lock.
+     */
+    private boolean isEmpty() {
+        return control.messages.isEmpty() && chat.messages.isEmpty();
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return : the next message, or null once the queue has been closed and everything in it has been taken.
+     * @throws InterruptedException : if the writer is interrupted whilst waiting.
+     */
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits a limited time for the next message.
+     *
+     * @param timeoutNanos : the longest to wait, in nanoseconds.
+     * @return : the next message, or null if none arrived in time or the queue is closed and empty.
+     * @throws InterruptedException : if the writer is interrupted whilst waiting.
+     */
+    T poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed && timeoutNanos > 0) {
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return : the next message, or null if there isn't one. Never blocks.
+     */
+    T poll() {
+        lock.lock();
+        try {
+            return next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops any more messages being queued. Messages already queued can still be taken.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return : whether or not the queue has been closed.
+     */
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return : the number of messages waiting to be written.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return control.messages.size() + chat.messages.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return : how many messages have been dropped because their lane was full.
+     */
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One lane of the queue. It records how long one message at a time waits, chosen every so many messages, so only
+     * the messages chosen need timing.
+     *
+     * @param <T> : the type of message queued.
+     */
+    private static final class Lane<T> {
+
+        /**
+         * Stores the queued messages.
+         */
+        final ArrayDeque<T> messages = new ArrayDeque<>();
+
+        /**
+         * Stores where the time the chosen messages wait is recorded, or null to not record it.
+         */
+        private final LatencyHistogram waits;
+
+        /**
+         * Stores how many messages are queued for every one chosen.
+         */
+        private final int sampleEvery;
+
+        /**
+         * Stores how many messages have been queued since the last one chosen.
+         */
+        private int sinceSample;
+
+        /**
+         * Stores the chosen message still waiting, or null if there isn't one.
+         */
+        private T sampled;
+
+        /**
+         * Stores when the chosen message was queued, from System.nanoTime().
+         */
+        private long sampledAt;
+
+        /**
+         * Instance method for Lane
+         *
+         * @param waits : where the time the chosen messages wait is recorded, or null to not record it.
+         * @param sampleEvery : how many messages are queued for every one chosen.
+         */
+        Lane(LatencyHistogram waits, int sampleEvery) {
+            this.waits = waits;
+            this.sampleEvery = sampleEvery;
+        }
+
+        /**
+         * Queues a message, choosing it if it is its turn and no chosen message is still waiting. Only called holding
+         * the queue's lock.
+         *
+         * @param msg : the message.
+         */
+        void add(T msg) {
+            messages.add(msg);
+            if(waits != null && sampled == null && ++sinceSample >= sampleEvery){
+                sinceSample = 0;
+                sampled = msg;
+                sampledAt = System.nanoTime();
+            }
+        }
+
+        /**
+         * Takes the next message, recording how long it waited if it was chosen. Only called holding the queue's lock.
+         *
+         * @return : the message, or null if there isn't one.
+         */
+        T poll() {
+            T msg = messages.poll();
+            if(msg != null && msg == sampled){
+                sampled = null;
+                waits.record(System.nanoTime() - sampledAt);
+            }
+            return msg;
+        }
+    }
+}
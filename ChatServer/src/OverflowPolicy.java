@@ -0,0 +1,39 @@
+/**
+ * What a full outbound queue does with a new message.
+ */
+enum OverflowPolicy {
+
+    /**
+     * Throws away the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Throws away the new message, keeping what is already queued.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Keeps neither, the client is too far behind and should be disconnected.
+     */
+    DISCONNECT;
+
+    /**
+     * Converts the value of the -overflow parameter into a policy.
+     *
+     * @param arg : the parameter ("oldest", "newest" or "disconnect").
+     * @return : the matching policy, or null if there is none.
+     */
+    static OverflowPolicy fromArg(String arg) {
+        switch (arg) {
+            case "oldest":
+                return DROP_OLDEST;
+            case "newest":
+                return DROP_NEWEST;
+            case "disconnect":
+                return DISCONNECT;
+            default:
+                return null;
+        }
+    }
+}
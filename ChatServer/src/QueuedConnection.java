@@ -0,0 +1,332 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The part of a connection both engines share: the queue of encoded messages waiting for the client, and whether the
+ * client has negotiated binary frames instead of lines and compression.
+ */
+abstract class QueuedConnection implements Connection {
+
+    /**
+     * Stores the line a client sends instead of just its username to switch to binary frames, e.g. "/binary name".
+     */
+    static final String BINARY_REQUEST = "/binary ";
+
+    /**
+     * Stores the line the server sends to confirm that everything after it will be binary frames.
+     */
+    static final String BINARY_CONFIRM = "BINARY";
+
+    /**
+     * Stores the marker queued where compression starts, so everything queued before it is sent as it is.
+     */
+    private static final ByteBuffer START_DEFLATE = ByteBuffer.allocate(0);
+
+    /**
+     * Stores the instance of ThreadHandler handling the clients for this server.
+     */
+    protected final ThreadHandler th;
+
+    /**
+     * Stores the id of the client.
+     */
+    private final int id;
+
+    /**
+     * Stores the encoded messages waiting to be written to the client.
+     */
+    protected final OutboundQueue<ByteBuffer> outQueue;
+
+    /**
+     * Stores whether or not the client has switched to binary frames.
+     */
+    private volatile boolean binary;
+
+    /**
+     * Stores the ids of the senders whose username has already been sent to a binary client.
+     */
+    private Set<Integer> knownSenders;
+
+    /**
+     * Stores whether or not the client has asked for compression.
+     */
+    private volatile boolean deflated;
+
+    /**
+     * Stores the username of the client, or null until it has answered "Username: ".
+     */
+    private volatile String username;
+
+    /**
+     * Stores the heartbeat tick the client was last heard from on.
+     */
+    private volatile long lastActive;
+
+    /**
+     * Stores the limit on how fast the client can send messages, or null if there isn't one.
+     */
+    private final TokenBucket bucket;
+
+    /**
+     * Stores whether or not the client was over its limit with the last message it sent. Only used by the reader.
+     */
+    private boolean throttled;
+
+    /**
+     * Stores the compressor of what is written to the client, once the writer has reached the start of compression.
+     */
+    private StreamDeflater deflater;
+
+    /**
+     * Instance method for QueuedConnection
+     *
+     * @param threadHandler : the instance of ThreadHandler handling the clients for this server.
+     */
+    QueuedConnection(ThreadHandler threadHandler){
+        th = threadHandler;
+        id = threadHandler.nextConnectionId();
+        outQueue = threadHandler.newOutboundQueue();
+        bucket = threadHandler.newTokenBucket();
+    }
+
+    /**
+     * @return : the id of the client.
+     */
+    public int getId(){
+        return id;
+    }
+
+    /**
+     * @return : the number of messages waiting to be written to the client.
+     */
+    public int getQueueDepth(){
+        return outQueue.size();
+    }
+
+    /**
+     * @return : how many messages for the client have been dropped because its queue was full.
+     */
+    public long getDropped(){
+        return outQueue.getDropped();
+    }
+
+    /**
+     * @return : whether or not the client has switched to binary frames.
+     */
+    public boolean isBinary(){
+        return binary;
+    }
+
+    /**
+     * @return : whether or not the connection has been closed.
+     */
+    boolean isClosed(){
+        return outQueue.isClosed();
+    }
+
+    /**
+     * @return : whether or not the client has answered "Username: ".
+     */
+    boolean hasAnswered(){
+        return username != null;
+    }
+
+    /**
+     * @return : the username of the client, or null until it has answered "Username: ".
+     */
+    public String getUsername(){
+        return username;
+    }
+
+    /**
+     * @return : the heartbeat tick the client was last heard from on.
+     */
+    long getLastActive(){
+        return lastActive;
+    }
+
+    /**
+     * Records that the client has just been heard from, if quiet clients are being checked.
+     */
+    void touch(){
+        HeartbeatWheel heartbeats = th.getHeartbeats();
+        if(heartbeats != null){
+            long now = heartbeats.getTick();
+            //Only written once per tick, so a busy client doesn't write to it for every message.
+            if(lastActive != now){
+                lastActive = now;
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a message the client has sent, before it is handled, telling the client to slow down when it
+     * first goes over its limit. Only called by the reader.
+     *
+     * @return : how long to hold the message and stop reading from the client for, in nanoseconds, or 0 to handle it
+     *           straight away.
+     */
+    long throttle(){
+        if(bucket == null){
+            return 0;
+        }
+        long wait = bucket.take(System.nanoTime());
+        if(wait <= 0){
+            throttled = false;
+            return 0;
+        }
+        th.getMetrics().throttled.increment();
+        if(!throttled){
+            throttled = true;
+            th.getMetrics().throttleNotices.increment();
+            output(Message.system("Slow down: you can send " + th.getRateLimit() + " messages a second."));
+        }
+        return wait;
+    }
+
+    /**
+     * @return : whether or not the client has asked for compression, so everything it sends after its username is
+     * compressed.
+     */
+    boolean isDeflated(){
+        return deflated;
+    }
+
+    /**
+     * Handles the client's answer to "Username: ", switching to compression and/or binary frames if that is what it
+     * asked for, and puts the client in the default channel, where it is sent the channel's recent messages.
+     *
+     * @param answer : the first line the client sent.
+     * @return : the username of the client.
+     */
+    String handshake(String answer){
+        String username = answer;
+        if(username.startsWith(Compression.DEFLATE_REQUEST)){
+            startDeflate();
+            username = username.substring(Compression.DEFLATE_REQUEST.length());
+        }
+        if(username.startsWith(BINARY_REQUEST)){
+            switchToBinary();
+            username = username.substring(BINARY_REQUEST.length());
+        }
+        th.joinChannel(this, ThreadHandler.DEFAULT_CHANNEL);
+        this.username = username;
+        th.addUsername(this);
+        return username;
+    }
+
+    /**
+     * Confirms the switch to compression with a last plain line, so the client knows where the compressed stream
+     * starts.
+     */
+    private synchronized void startDeflate(){
+        enqueue(Message.system(Compression.DEFLATE_CONFIRM).line(), true);
+        if(outQueue.offer(START_DEFLATE, true)){
+            queued();
+        }
+        deflated = true;
+    }
+
+    /**
+     * Confirms the switch to binary frames with a last line, so the client knows where the frames start.
+     */
+    private synchronized void switchToBinary(){
+        enqueue(Message.system(BINARY_CONFIRM).line(), true);
+        knownSenders = new HashSet<>();
+        binary = true;
+    }
+
+    /**
+     * Queues a message in whichever format the client uses, in the control lane if it is a control message. A binary
+     * client is told the username behind a sender id the first time it gets a message from that sender. That is
+     * always in the control lane, which is written first, so it arrives before any of the sender's messages in either
+     * lane.
+     *
+     * @param msg : the message to output.
+     */
+    public synchronized void output(Message msg){
+        if(!binary){
+            enqueue(msg.line(), msg.control);
+            return;
+        }
+        if(msg.type == Message.CHAT && knownSenders.add(msg.senderId)){
+            enqueue(Message.name(msg.senderId, msg.username).frame(), true);
+        }
+        enqueue(msg.frame(), msg.control);
+    }
+
+    /**
+     * Queues bytes that are already encoded in the client's format.
+     *
+     * @param encoded : the bytes to output.
+     */
+    public synchronized void outputEncoded(ByteBuffer encoded){
+        enqueue(encoded, false);
+    }
+
+    /**
+     * Queues this client's own view of a shared encoded message, disconnecting the client if it is too far behind.
+     *
+     * @param encoded : the shared encoded message.
+     * @param isControl : whether the message goes in the control lane, ahead of any chat.
+     */
+    private void enqueue(ByteBuffer encoded, boolean isControl){
+        if(outQueue.offer(encoded.duplicate(), isControl)){
+            queued();
+        }
+        else {
+            //The client is too far behind to catch up, so it is disconnected.
+            System.out.println("Disconnecting slow client " + id);
+            close();
+        }
+    }
+
+    /**
+     * Compresses the messages gathered for a write, once the writer has reached the start of compression. Only called
+     * by the connection's writer.
+     *
+     * @param batch : the messages gathered, which are replaced by what should be written.
+     * @param count : how many messages were gathered.
+     * @return : how many buffers should be written, which may be none.
+     */
+    protected int deflate(ByteBuffer[] batch, int count){
+        int plain = 0;
+        if(deflater == null){
+            while (plain < count && batch[plain] != START_DEFLATE) {
+                plain++;
+            }
+            if(plain == count){
+                return count;
+            }
+            deflater = new StreamDeflater(th.getMetrics());
+        }
+        int from = batch[plain] == START_DEFLATE ? plain + 1 : plain;
+        int written = plain;
+        if(from < count){
+            batch[written++] = deflater.compress(batch, from, count);
+        }
+        Arrays.fill(batch, written, count, null);
+        return written;
+    }
+
+    /**
+     * Frees the memory of the compressor, if there is one. Only called by the connection's writer once it is finished.
+     */
+    protected void endDeflate(){
+        if(deflater != null){
+            deflater.end();
+        }
+    }
+
+    /**
+     * Called after a message has been queued, so the engine can arrange for it to be written.
+     */
+    protected abstract void queued();
+
+    /**
+     * Closes the connection with the client and removes it from the server's clients.
+     */
+    abstract void close();
+}
@@ -0,0 +1,428 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps count of what the server is doing: messages and bytes in and out, how well writes are coalesced and how long
+ * fan-outs take. It can be read with the /stats command on the chat socket or scraped over HTTP in the Prometheus text
+ * format.
+ */
+class ServerMetrics {
+
+    /**
+     * Stores how many messages clients have sent to the server.
+     */
+    final LongAdder messagesIn = new LongAdder();
+
+    /**
+     * Stores how many bytes clients have sent to the server.
+     */
+    final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * Stores how many messages the server has written to clients.
+     */
+    final LongAdder messagesOut = new LongAdder();
+
+    /**
+     * Stores how many bytes the server has written to clients.
+     */
+    final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Stores how many writes (flushes) have been made to clients.
+     */
+    final LongAdder flushes = new LongAdder();
+
+    /**
+     * Stores how many messages have been relayed from other nodes of the cluster.
+     */
+    final LongAdder relayedIn = new LongAdder();
+
+    /**
+     * Stores how many messages have been relayed to other nodes of the cluster, counting once per node.
+     */
+    final LongAdder relayedOut = new LongAdder();
+
+    /**
+     * Stores how many relayed messages were dropped because they had already been seen.
+     */
+    final LongAdder relayDuplicates = new LongAdder();
+
+    /**
+     * Stores how many messages were not relayed, or relayed messages dropped, because they were too long or did not
+     * add up.
+     */
+    final LongAdder relayDropped = new LongAdder();
+
+    /**
+     * Stores how many batches the sequencer has taken from the ring.
+     */
+    final LongAdder ringBatches = new LongAdder();
+
+    /**
+     * Stores how many messages the sequencer has taken from the ring.
+     */
+    final LongAdder ringMessages = new LongAdder();
+
+    /**
+     * Stores how many private messages were sent to another client.
+     */
+    final LongAdder privateMessages = new LongAdder();
+
+    /**
+     * Stores how many messages were over their client's rate limit, so that reading from the client was paused.
+     */
+    final LongAdder throttled = new LongAdder();
+
+    /**
+     * Stores how many times a client has been told to slow down.
+     */
+    final LongAdder throttleNotices = new LongAdder();
+
+    /**
+     * Stores how many heartbeats have been sent to quiet clients.
+     */
+    final LongAdder pings = new LongAdder();
+
+    /**
+     * Stores how many clients have been disconnected for being quiet too long.
+     */
+    final LongAdder idleDisconnects = new LongAdder();
+
+    /**
+     * Stores how many TLS handshakes have finished.
+     */
+    final LongAdder tlsHandshakes = new LongAdder();
+
+    /**
+     * Stores how many of them resumed an earlier session instead of doing a full handshake.
+     */
+    final LongAdder tlsResumed = new LongAdder();
+
+    /**
+     * Stores how many datagrams have been sent to fan-out subscribers, counting each destination.
+     */
+    final LongAdder datagramsSent = new LongAdder();
+
+    /**
+     * Stores how many datagrams could not be sent.
+     */
+    final LongAdder datagramsFailed = new LongAdder();
+
+    /**
+     * Stores how many messages were too big for a datagram, so subscribers have to fetch them over TCP.
+     */
+    final LongAdder datagramsTooBig = new LongAdder();
+
+    /**
+     * Stores how many times subscribers have asked for missed messages.
+     */
+    final LongAdder repairRequests = new LongAdder();
+
+    /**
+     * Stores how many missed messages have been sent to subscribers over TCP.
+     */
+    final LongAdder datagramsRepaired = new LongAdder();
+
+    /**
+     * Stores how many bytes have been compressed for clients that asked for compression.
+     */
+    final LongAdder deflateIn = new LongAdder();
+
+    /**
+     * Stores how many bytes they were compressed to.
+     */
+    final LongAdder deflateOut = new LongAdder();
+
+    /**
+     * Stores how long has been spent compressing, in nanoseconds.
+     */
+    final LongAdder deflateNanos = new LongAdder();
+
+    /**
+     * Stores how many compressed bytes have been read from clients.
+     */
+    final LongAdder inflateIn = new LongAdder();
+
+    /**
+     * Stores how many bytes they were decompressed to.
+     */
+    final LongAdder inflateOut = new LongAdder();
+
+    /**
+     * Stores how long has been spent decompressing, in nanoseconds.
+     */
+    final LongAdder inflateNanos = new LongAdder();
+
+    /**
+     * Stores how long each fan-out of a message to its recipients' queues took.
+     */
+    final LatencyHistogram fanOut = new LatencyHistogram();
+
+    /**
+     * Stores how long control messages (the server's own messages, heartbeats and game results) waited in clients'
+     * queues before their writer took them.
+     */
+    final LatencyHistogram controlWait = new LatencyHistogram();
+
+    /**
+     * Stores how long a sample of chat messages waited in clients' queues before their writer took them.
+     */
+    final LatencyHistogram chatWait = new LatencyHistogram();
+
+    /**
+     * Stores how long TLS handshakes took, from the client being accepted to the handshake finishing.
+     */
+    final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+
+    /**
+     * Stores the messages in per second over the last second.
+     */
+    private volatile double messagesInRate;
+
+    /**
+     * Stores the messages out per second over the last second.
+     */
+    private volatile double messagesOutRate;
+
+    /**
+     * Stores the TLS handshakes per second over the last second.
+     */
+    private volatile double tlsHandshakeRate;
+
+    /**
+     * Stores the counts at the last time the rates were worked out.
+     */
+    private long lastIn, lastOut, lastHandshakes, lastSample = System.nanoTime();
+
+    /**
+     * Instance method for ServerMetrics. Starts a background thread that works out the per second rates.
+     */
+    ServerMetrics() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Works out the messages and TLS handshakes per second since the last sample.
+     */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        long handshakes = tlsHandshakes.sum();
+        double seconds = (now - lastSample) / 1e9;
+        messagesInRate = (in - lastIn) / seconds;
+        messagesOutRate = (out - lastOut) / seconds;
+        tlsHandshakeRate = (handshakes - lastHandshakes) / seconds;
+        lastIn = in;
+        lastOut = out;
+        lastHandshakes = handshakes;
+        lastSample = now;
+    }
+
+    /**
+     * Counts a flush to a client.
+     *
+     * @param messages : how many messages were written in it.
+     * @param bytes : how many bytes were written in it.
+     */
+    void recordFlush(int messages, long bytes) {
+        flushes.increment();
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * @return : the average number of messages written to a client in one flush, or 0 if there have been none.
+     */
+    double getAverageMessagesPerFlush() {
+        long n = flushes.sum();
+        return n == 0 ? 0 : (double) messagesOut.sum() / n;
+    }
+
+    /**
+     * Describes the metrics in a few lines, for the /stats command and the console.
+     *
+     * @param th : the instance of ThreadHandler whose clients are being measured.
+     * @return : the lines to show.
+     */
+    String[] summary(ThreadHandler th) {
+        return new String[] {
+                String.format("Clients: %d, queued messages: %d (most for one client: %d)",
+                        th.getConnectionCount(), th.getTotalQueueDepth(), th.getMaxQueueDepth()),
+                String.format("In: %d messages (%.1f/s), %d bytes", messagesIn.sum(), messagesInRate, bytesIn.sum()),
+                String.format("Out: %d messages (%.1f/s), %d bytes, %d dropped", messagesOut.sum(), messagesOutRate,
+                        bytesOut.sum(), th.getTotalDropped()),
+                String.format("Flushes: %d, average messages per flush: %.2f", flushes.sum(),
+                        getAverageMessagesPerFlush()),
+                String.format("Fan-out latency: p50 %dus, p99 %dus, max %dus over %d messages",
+                        fanOut.percentile(0.5) / 1000, fanOut.percentile(0.99) / 1000, fanOut.max() / 1000,
+                        fanOut.count()),
+                String.format("Queue wait: control p50 %dus, p99 %dus, max %dus over %d messages; "
+                        + "chat p50 %dus, p99 %dus, max %dus over %d sampled", controlWait.percentile(0.5) / 1000,
+                        controlWait.percentile(0.99) / 1000, controlWait.max() / 1000, controlWait.count(),
+                        chatWait.percentile(0.5) / 1000, chatWait.percentile(0.99) / 1000, chatWait.max() / 1000,
+                        chatWait.count()),
+                String.format("Cluster: %d nodes linked, %d relayed in, %d relayed out, %d duplicates dropped, "
+                        + "%d bad or too long dropped", th.getClusterLinks(), relayedIn.sum(), relayedOut.sum(),
+                        relayDuplicates.sum(), relayDropped.sum()),
+                String.format("Ring: %d messages in %d batches (%.2f per batch), %d waiting", ringMessages.sum(),
+                        ringBatches.sum(), ratio(ringMessages.sum(), ringBatches.sum()), th.getRingDepth()),
+                String.format("Private messages: %d", privateMessages.sum()),
+                String.format("Rate limit: %d messages throttled, %d slow down notices", throttled.sum(),
+                        throttleNotices.sum()),
+                String.format("Heartbeats: %d pings sent, %d idle clients disconnected", pings.sum(),
+                        idleDisconnects.sum()),
+                String.format("TLS: %d handshakes (%.1f/s), %d resumed (%.0f%%), p50 %dus, p99 %dus",
+                        tlsHandshakes.sum(), tlsHandshakeRate, tlsResumed.sum(),
+                        ratio(tlsResumed.sum() * 100, tlsHandshakes.sum()), tlsHandshakeTime.percentile(0.5) / 1000,
+                        tlsHandshakeTime.percentile(0.99) / 1000),
+                String.format("Datagrams: %d sent, %d failed, %d too big; %d repair requests, %d messages re-sent",
+                        datagramsSent.sum(), datagramsFailed.sum(), datagramsTooBig.sum(), repairRequests.sum(),
+                        datagramsRepaired.sum()),
+                String.format("Compression: out %d -> %d bytes (%.2fx, %.0fns/KB), in %d -> %d (%.2fx, %.0fns/KB)",
+                        deflateIn.sum(), deflateOut.sum(), ratio(deflateIn.sum(), deflateOut.sum()),
+                        nanosPerKilobyte(deflateNanos.sum(), deflateIn.sum()), inflateIn.sum(), inflateOut.sum(),
+                        ratio(inflateOut.sum(), inflateIn.sum()),
+                        nanosPerKilobyte(inflateNanos.sum(), inflateOut.sum()))
+        };
+    }
+
+    /**
+     * @return : how many times smaller the compressed bytes are, or 0 if nothing has been compressed.
+     */
+    private static double ratio(long plain, long compressed) {
+        return compressed == 0 ? 0 : (double) plain / compressed;
+    }
+
+    /**
+     * @return : the time taken for each kilobyte of plain bytes, or 0 if there have been none.
+     */
+    private static double nanosPerKilobyte(long nanos, long plain) {
+        return plain == 0 ? 0 : nanos * 1024.0 / plain;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format.
+     *
+     * @param th : the instance of ThreadHandler whose clients are being measured.
+     * @return : the metrics as text.
+     */
+    String prometheus(ThreadHandler th) {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "chat_messages_in_total", "Messages received from clients.", messagesIn.sum());
+        counter(sb, "chat_bytes_in_total", "Bytes received from clients.", bytesIn.sum());
+        counter(sb, "chat_messages_out_total", "Messages written to clients.", messagesOut.sum());
+        counter(sb, "chat_bytes_out_total", "Bytes written to clients.", bytesOut.sum());
+        counter(sb, "chat_flushes_total", "Writes made to clients.", flushes.sum());
+        counter(sb, "chat_messages_dropped_total", "Messages dropped because a client's queue was full.",
+                th.getTotalDropped());
+        gauge(sb, "chat_cluster_links", "Other nodes this one is linked to.", th.getClusterLinks());
+        counter(sb, "chat_relayed_in_total", "Messages relayed from other nodes.", relayedIn.sum());
+        counter(sb, "chat_relayed_out_total", "Messages relayed to other nodes.", relayedOut.sum());
+        counter(sb, "chat_relay_duplicates_total", "Relayed messages dropped as already seen.",
+                relayDuplicates.sum());
+        counter(sb, "chat_relay_dropped_total", "Messages not relayed, or relayed ones dropped, as too long or bad.",
+                relayDropped.sum());
+        counter(sb, "chat_ring_messages_total", "Messages taken from the ring by the sequencer.", ringMessages.sum());
+        counter(sb, "chat_ring_batches_total", "Batches taken from the ring by the sequencer.", ringBatches.sum());
+        counter(sb, "chat_private_messages_total", "Private messages sent to another client.",
+                privateMessages.sum());
+        counter(sb, "chat_throttled_messages_total", "Messages over their client's rate limit.", throttled.sum());
+        counter(sb, "chat_throttle_notices_total", "Times a client was told to slow down.", throttleNotices.sum());
+        counter(sb, "chat_pings_total", "Heartbeats sent to quiet clients.", pings.sum());
+        counter(sb, "chat_idle_disconnects_total", "Clients disconnected for being quiet too long.",
+                idleDisconnects.sum());
+        counter(sb, "chat_tls_handshakes_total", "TLS handshakes finished.", tlsHandshakes.sum());
+        counter(sb, "chat_tls_resumed_total", "TLS handshakes that resumed an earlier session.", tlsResumed.sum());
+        counter(sb, "chat_datagrams_sent_total", "Datagrams sent to fan-out subscribers.", datagramsSent.sum());
+        counter(sb, "chat_datagrams_failed_total", "Datagrams that could not be sent.", datagramsFailed.sum());
+        counter(sb, "chat_datagrams_too_big_total", "Messages too big for a datagram.", datagramsTooBig.sum());
+        counter(sb, "chat_repair_requests_total", "Requests from subscribers for missed messages.",
+                repairRequests.sum());
+        counter(sb, "chat_datagrams_repaired_total", "Missed messages sent to subscribers over TCP.",
+                datagramsRepaired.sum());
+        counter(sb, "chat_deflate_bytes_in_total", "Bytes compressed for clients.", deflateIn.sum());
+        counter(sb, "chat_deflate_bytes_out_total", "Bytes they were compressed to.", deflateOut.sum());
+        counter(sb, "chat_deflate_nanoseconds_total", "Time spent compressing.", deflateNanos.sum());
+        counter(sb, "chat_inflate_bytes_in_total", "Compressed bytes read from clients.", inflateIn.sum());
+        counter(sb, "chat_inflate_bytes_out_total", "Bytes they were decompressed to.", inflateOut.sum());
+        counter(sb, "chat_inflate_nanoseconds_total", "Time spent decompressing.", inflateNanos.sum());
+        gauge(sb, "chat_messages_in_per_second", "Messages received over the last second.", messagesInRate);
+        gauge(sb, "chat_messages_out_per_second", "Messages written over the last second.", messagesOutRate);
+        gauge(sb, "chat_tls_handshakes_per_second", "TLS handshakes finished over the last second.",
+                tlsHandshakeRate);
+        gauge(sb, "chat_connected_clients", "Clients currently connected.", th.getConnectionCount());
+        gauge(sb, "chat_ring_depth", "Messages waiting in the ring for the sequencer.", th.getRingDepth());
+        gauge(sb, "chat_outbound_queue_depth", "Messages waiting to be written to all clients.",
+                th.getTotalQueueDepth());
+        gauge(sb, "chat_outbound_queue_depth_max", "Most messages waiting to be written to one client.",
+                th.getMaxQueueDepth());
+        fanOut.prometheus(sb, "chat_fanout_seconds", "Time taken to queue a message for all its recipients.");
+        controlWait.prometheus(sb, "chat_control_queue_wait_seconds",
+                "Time control messages waited in a client's queue.");
+        chatWait.prometheus(sb, "chat_chat_queue_wait_seconds",
+                "Time a sample of chat messages waited in a client's queue.");
+        tlsHandshakeTime.prometheus(sb, "chat_tls_handshake_seconds",
+                "Time from a client being accepted to its TLS handshake finishing.");
+        return sb.toString();
+    }
+
+    /**
+     * Appends a counter in the Prometheus text format.
+     */
+    static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a gauge in the Prometheus text format.
+     */
+    static void gauge(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Serves the metrics over HTTP at /metrics on the loopback interface.
+     *
+     * @param port : the port to serve them on.
+     * @param th : the instance of ThreadHandler whose clients are being measured.
+     * @throws IOException : if the port can not be bound.
+     */
+    void serveHttp(int port, ThreadHandler th) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus(th).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+        System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+    }
+}
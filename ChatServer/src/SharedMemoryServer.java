@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts clients on the same machine that connect through shared memory (see SharedMemoryChannel) instead of TCP.
+ * It watches a directory for the files clients make and hands each one to the ThreadHandler like an accepted socket,
+ * so from then on the client is served like any other, on its own reader and writer threads.
+ */
+class SharedMemoryServer implements Runnable {
+
+    /**
+     * Stores how often the server is checked for being shutdown whilst no clients are connecting, in milliseconds.
+     */
+    private static final long SHUTDOWN_CHECK_MILLIS = 100;
+
+    /**
+     * Stores the instance of ThreadHandler the clients are handed to.
+     */
+    private final ThreadHandler th;
+
+    /**
+     * Stores the directory clients make their files in.
+     */
+    private final Path dir;
+
+    /**
+     * Stores the watch on the directory.
+     */
+    private final WatchService watcher;
+
+    /**
+     * Instance method for SharedMemoryServer
+     *
+     * @param directory : the directory clients make their files in, made if it is not there.
+     * @param threadHandler : the instance of ThreadHandler the clients are handed to.
+     * @throws IOException : if the directory can not be made or watched.
+     */
+    SharedMemoryServer(Path directory, ThreadHandler threadHandler) throws IOException {
+        th = threadHandler;
+        dir = directory;
+        Files.createDirectories(dir);
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+    /**
+     * Starts accepting clients on a thread of its own, until the server is shutdown.
+     */
+    void start() {
+        Thread t = new Thread(this, "shm-acceptor");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("Accepting shared memory clients in " + dir);
+    }
+
+    /**
+     * Accepts every client already waiting, then every one that connects until the server is shutdown.
+     */
+    public void run() {
+        try {
+            acceptWaiting();
+            while (!th.getServerShutdown()) {
+                WatchKey key = watcher.poll(SHUTDOWN_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if(key == null){
+                    continue;
+                }
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        //Some files were missed, so the whole directory is looked through.
+                        acceptWaiting();
+                    }
+                    else {
+                        accept(dir.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+            watcher.close();
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            //The server is shutting down.
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts every client whose file is in the directory.
+     *
+     * @throws IOException : if the directory can not be read.
+     */
+    private void acceptWaiting() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SharedMemoryChannel.SUFFIX)) {
+            for (Path file: files) {
+                accept(file);
+            }
+        }
+    }
+
+    /**
+     * Accepts the client that made a file, if it is one of theirs.
+     *
+     * @param file : the file.
+     */
+    private void accept(Path file) {
+        if(!file.getFileName().toString().endsWith(SharedMemoryChannel.SUFFIX)){
+            //i.e. a file still being made under its temporary name.
+            return;
+        }
+        try {
+            th.newConnection(SharedMemoryChannel.accept(file));
+            System.out.println("Server accepted shared memory connection " + file.getFileName() + " ("
+                    + th.getConnectionCount() + " connected)");
+        }
+        catch (NoSuchFileException e) {
+            //Already accepted, or the client gave up waiting.
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the messages written to one client. Each batch of messages gathered for a write becomes one compressed
+ * block, flushed so the client can read all of it straight away. Only ever used by the connection's writer.
+ */
+class StreamDeflater {
+
+    /**
+     * Stores the compressor, which keeps its window from one batch to the next.
+     */
+    private final Deflater deflater = Compression.newDeflater();
+
+    /**
+     * Stores the metrics the bytes and time taken are added to.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Stores the compressed batch, reused for every batch as each is written before the next is compressed.
+     */
+    private byte[] out = new byte[8192];
+
+    /**
+     * Instance method for StreamDeflater
+     *
+     * @param serverMetrics : the metrics the bytes and time taken are added to.
+     */
+    StreamDeflater(ServerMetrics serverMetrics) {
+        metrics = serverMetrics;
+    }
+
+    /**
+     * Compresses some of the messages of a batch into one block.
+     *
+     * @param batch : the batch.
+     * @param from : the index of the first message to compress.
+     * @param to : the index after the last message to compress.
+     * @return : the compressed block, which is only valid until the next call.
+     */
+    ByteBuffer compress(ByteBuffer[] batch, int from, int to) {
+        long start = System.nanoTime();
+        long in = 0;
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            in += batch[i].remaining();
+            deflater.setInput(batch[i]);
+            while (!deflater.needsInput()) {
+                length = deflate(length, Deflater.NO_FLUSH);
+            }
+        }
+        do {
+            length = deflate(length, Deflater.SYNC_FLUSH);
+        } while (length == out.length);
+        metrics.deflateIn.add(in);
+        metrics.deflateOut.add(length);
+        metrics.deflateNanos.add(System.nanoTime() - start);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Compresses as much as fits in what is left of the output, first making room if there is none.
+     *
+     * @param length : how many bytes of the output are used.
+     * @param flush : the flush mode.
+     * @return : how many bytes of the output are now used.
+     */
+    private int deflate(int length, int flush) {
+        if(length == out.length){
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        return length + deflater.deflate(out, length, out.length - length, flush);
+    }
+
+    /**
+     * Frees the compressor's memory.
+     */
+    void end() {
+        deflater.end();
+    }
+}
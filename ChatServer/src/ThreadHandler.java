@@ -0,0 +1,845 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and handles the threads that links to clients, ensuring messages are sent to each client.
+ */
+class ThreadHandler{
+
+    /**
+     * Stores the socket (or socket channel) of the server.
+     */
+    Closeable serverSocket;
+
+    /**
+     * Stores any other sockets clients are accepted on (i.e. a Unix domain socket), closed with the server's socket.
+     */
+    private Set<Closeable> listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Stores every connection that is currently open. Connections can be added and removed whilst a broadcast is
+     * iterating over it, without either having to hold a lock.
+     */
+    private Set<Connection> elClientes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Stores the name of the channel every client starts in, and goes back to when it leaves another one.
+     */
+    static final String DEFAULT_CHANNEL = "general";
+
+    /**
+     * Stores the members of each channel, so a message only goes to the clients in its channel. Channels are created
+     * when someone joins them and removed when the last member leaves.
+     */
+    private ConcurrentHashMap<String, Set<Connection>> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the channel each client is currently in.
+     */
+    private ConcurrentHashMap<Connection, String> channelOf = new ConcurrentHashMap<>();
+
+    /**
+     * Stores every client that has given its username by that username, so a private message goes straight to one
+     * client. If two clients give the same username the latest one gets its private messages.
+     */
+    private ConcurrentHashMap<String, Connection> usernames = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the id given to the next client that connects. Ids identify the sender of binary frames.
+     */
+    private AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * Stores whether or not the server has been shutdown by someone.
+     */
+    private volatile boolean serverShutdown = false;
+
+    /**
+     * Stores the factory used to create the thread each ClientHandler runs on.
+     */
+    private ThreadFactory threadFactory;
+
+    /**
+     * Stores the most messages that can be waiting to be written to a single client.
+     */
+    private int queueCapacity = 1024;
+
+    /**
+     * Stores what happens to a message for a client whose queue is full.
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Stores how many bytes a client's writer gathers before it flushes them in one write.
+     */
+    private int flushBytes = 16384;
+
+    /**
+     * Stores how long a client's writer waits for more messages before it flushes what it has, in nanoseconds.
+     */
+    private long flushNanos = 0;
+
+    /**
+     * Stores the counters and histograms describing what the server is doing.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Stores whether or not every line a client sends is printed on the console.
+     */
+    private boolean logMessages = true;
+
+    /**
+     * Stores how many messages each channel keeps to replay to clients that join it, or 0 to keep none.
+     */
+    private int historyMessages = 20;
+
+    /**
+     * Stores the most bytes of history each channel keeps in each format.
+     */
+    private int historyBytes = 65536;
+
+    /**
+     * Stores the recent messages of each channel. A channel's history goes when the channel does, apart from that of
+     * the default channel which is always kept.
+     */
+    private ConcurrentHashMap<String, MessageHistory> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the locks a message is journalled, fanned out and delivered under when its channel keeps no history (whose
+     * own lock is used otherwise), shared between channels by the hash of their names.
+     */
+    private final Object[] publishLocks = new Object[64];
+
+    /**
+     * Stores the journal every message is logged to, or null if none is kept.
+     */
+    private Journal journal;
+
+    /**
+     * Stores the wheel that checks for quiet clients, or null if they aren't checked.
+     */
+    private HeartbeatWheel heartbeats;
+
+    /**
+     * Stores how many messages a second each client can send after its burst, or 0 for no limit.
+     */
+    private int rateLimit;
+
+    /**
+     * Stores how many messages each client can send at once.
+     */
+    private int burst;
+
+    /**
+     * Stores the cluster of nodes chat messages are relayed to, or null if this server is on its own.
+     */
+    private volatile Cluster cluster;
+
+    /**
+     * Stores the fan-out every broadcast is also sent to as a datagram, or null if there isn't one.
+     */
+    private volatile FanOut fanOut;
+
+    /**
+     * Stores the ring chat messages are passed to the sequencer through, or null if readers send them on themselves.
+     */
+    private BroadcastRing ring;
+
+    /**
+     * Instance method for ThreadHandler
+     *
+     * @param ss : the socket of the server that the ThreadHandler is handling the clients of.
+     */
+    public ThreadHandler(Closeable ss){
+        this(ss, Thread::new);
+    }
+
+    /**
+     * Instance method for ThreadHandler
+     *
+     * @param ss : the socket of the server that the ThreadHandler is handling the clients of.
+     * @param factory : the factory used to create the thread each ClientHandler runs on.
+     */
+    public ThreadHandler(Closeable ss, ThreadFactory factory){
+        serverSocket = ss;
+        threadFactory = factory;
+        for (int i = 0; i < publishLocks.length; i++) {
+            publishLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Looks up the virtual thread factory (Thread.ofVirtual().factory()). This is done reflectively so the server still
+     * builds and runs on JDKs older than 21, where it falls back to platform threads.
+     *
+     * @return : a factory that creates virtual threads, or platform threads if they are not supported.
+     */
+    static ThreadFactory virtualThreadFactory(){
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not supported by this JDK: setting threads to platform (default).");
+            return Thread::new;
+        }
+    }
+
+    /**
+     * Sets how many messages can be waiting for each client and what happens once that many are.
+     *
+     * @param capacity : the most messages that can be waiting to be written to a single client.
+     * @param policy : what happens to a message for a client whose queue is full.
+     */
+    public void setOutboundLimits(int capacity, OverflowPolicy policy){
+        queueCapacity = capacity;
+        overflowPolicy = policy;
+    }
+
+    /**
+     * Sets when a client's writer flushes the messages it has gathered: once it has this many bytes, or once it has
+     * waited this long for more, whichever comes first. Only the thread engine waits, the selector engine writes as
+     * soon as the socket can take it, gathering whatever is queued by then.
+     *
+     * @param bytes : how many bytes a writer gathers before it flushes.
+     * @param micros : how many microseconds a writer waits for more messages before it flushes.
+     */
+    public void setFlushLimits(int bytes, long micros){
+        flushBytes = bytes;
+        flushNanos = micros * 1000;
+    }
+
+    /**
+     * @return : how many bytes a client's writer gathers before it flushes them in one write.
+     */
+    int getFlushBytes(){
+        return flushBytes;
+    }
+
+    /**
+     * @return : how long a client's writer waits for more messages before it flushes, in nanoseconds.
+     */
+    long getFlushNanos(){
+        return flushNanos;
+    }
+
+    /**
+     * Sets whether or not every line a client sends is printed on the console. Printing them costs a lock on
+     * System.out for every message, so it is worth turning off on a busy server.
+     *
+     * @param log : whether or not to print each line.
+     */
+    public void setLogMessages(boolean log){
+        logMessages = log;
+    }
+
+    /**
+     * Sets how much of each channel's history is kept to replay to clients that join it.
+     *
+     * @param messages : the most messages kept, or 0 to keep none.
+     * @param bytes : the most bytes kept, in each format.
+     */
+    public void setHistory(int messages, int bytes){
+        historyMessages = messages;
+        historyBytes = bytes;
+    }
+
+    /**
+     * Limits how fast each client can send messages, slowing down any that send faster by not reading from them.
+     *
+     * @param messagesPerSecond : how many messages a second each client can send after its burst, or 0 for no limit.
+     * @param messagesAtOnce : how many messages each client can send at once.
+     */
+    public void setRateLimit(int messagesPerSecond, int messagesAtOnce){
+        rateLimit = messagesPerSecond;
+        burst = messagesAtOnce;
+    }
+
+    /**
+     * @return : how many messages a second each client can send after its burst, or 0 for no limit.
+     */
+    public int getRateLimit(){
+        return rateLimit;
+    }
+
+    /**
+     * @return : a token bucket for a new client, or null if there is no limit.
+     */
+    TokenBucket newTokenBucket(){
+        return rateLimit == 0 ? null : new TokenBucket(rateLimit, burst);
+    }
+
+    /**
+     * Starts pinging clients that have been quiet for a while and disconnecting those that stay quiet, whose
+     * connection has most likely broken without being closed.
+     *
+     * @param heartbeatSeconds : how long a client can be quiet for before it is pinged, or 0 to never check.
+     * @param idleSeconds : how long a client can be quiet for before it is disconnected, more than the heartbeat.
+     */
+    public void setHeartbeat(int heartbeatSeconds, int idleSeconds){
+        if(heartbeatSeconds == 0){
+            return;
+        }
+        if(idleSeconds <= heartbeatSeconds){
+            idleSeconds = heartbeatSeconds * 3;
+            System.out.println("Idle timeout must be longer than the heartbeat: setting idletimeout to " + idleSeconds);
+        }
+        heartbeats = new HeartbeatWheel(this, heartbeatSeconds * 1000L, idleSeconds * 1000L);
+        heartbeats.start();
+    }
+
+    /**
+     * Passes chat messages from the readers to a single sequencer thread through a ring, which sends them on in one
+     * order, instead of each reader sending its own messages on.
+     *
+     * @param size : the number of slots in the ring, or 0 for readers to send messages on themselves.
+     */
+    public void setRing(int size){
+        if(size == 0){
+            return;
+        }
+        ring = new BroadcastRing(this, size);
+        ring.start();
+    }
+
+    /**
+     * @return : how many messages are waiting in the ring for the sequencer, or 0 if there is no ring.
+     */
+    int getRingDepth(){
+        return ring == null ? 0 : ring.depth();
+    }
+
+    /**
+     * Sends on what is left in the ring and stops its sequencer, if there is one.
+     */
+    void closeRing(){
+        if(ring != null){
+            ring.close();
+        }
+    }
+
+    /**
+     * @return : the wheel that checks for quiet clients, or null if they aren't checked.
+     */
+    HeartbeatWheel getHeartbeats(){
+        return heartbeats;
+    }
+
+    /**
+     * Logs every message sent from now on to a journal, and fills the default channel's history with the last
+     * messages sent to it before the server was restarted.
+     *
+     * @param j : the journal.
+     * @throws IOException : if the journal can not be read.
+     */
+    public void setJournal(Journal j) throws IOException {
+        journal = j;
+        MessageHistory history = history(DEFAULT_CHANNEL);
+        if(history == null){
+            return;
+        }
+        j.replayRecent(historyMessages, record -> {
+            if(DEFAULT_CHANNEL.equals(record.channel) && record.type == Message.CHAT){
+                history.append(Message.chat(record.senderId, record.username, record.text));
+            }
+        });
+    }
+
+    /**
+     * Relays chat messages to and from the other nodes of a cluster from now on.
+     *
+     * @param c : the cluster.
+     */
+    public void setCluster(Cluster c){
+        cluster = c;
+    }
+
+    /**
+     * Sends every broadcast to the fan-out's subscribers as well from now on.
+     *
+     * @param f : the fan-out.
+     */
+    public void setFanOut(FanOut f){
+        fanOut = f;
+    }
+
+    /**
+     * @return : the number of other nodes this one is linked to.
+     */
+    public int getClusterLinks(){
+        return cluster == null ? 0 : cluster.getLinkCount();
+    }
+
+    /**
+     * Closes the links to the other nodes, if this server is in a cluster.
+     */
+    public void closeCluster(){
+        if(cluster != null){
+            cluster.close();
+        }
+    }
+
+    /**
+     * Stops sending datagrams and closes the fan-out's repair port, if there is a fan-out.
+     */
+    void closeFanOut(){
+        if(fanOut != null){
+            try {
+                fanOut.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Syncs the journal to the disk and closes it, if there is one.
+     */
+    void closeJournal(){
+        if(journal != null){
+            journal.close();
+        }
+    }
+
+    /**
+     * @param channel : the name of a channel, or null for a message to everyone.
+     * @return : the lock messages to the channel are journalled, fanned out and delivered under when it keeps no
+     *           history.
+     */
+    private Object publishLock(String channel){
+        return publishLocks[channel == null ? 0 : Math.floorMod(channel.hashCode(), publishLocks.length)];
+    }
+
+    /**
+     * @param channel : the name of a channel.
+     * @return : the history of the channel, or null if no history is kept.
+     */
+    private MessageHistory history(String channel){
+        if(historyMessages == 0){
+            return null;
+        }
+        return histories.computeIfAbsent(channel, name -> new MessageHistory(historyMessages, historyBytes));
+    }
+
+    /**
+     * @return : the counters and histograms describing what the server is doing.
+     */
+    ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Counts a flush to a client.
+     *
+     * @param messages : how many messages were written in it.
+     * @param bytes : how many bytes were written in it.
+     */
+    void recordFlush(int messages, long bytes){
+        metrics.recordFlush(messages, bytes);
+    }
+
+    /**
+     * Prints the server's metrics on the console.
+     */
+    void printStats(){
+        for (String line: metrics.summary(this)) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * @return : a new, empty queue for the messages waiting to be written to a client.
+     */
+    <T> OutboundQueue<T> newOutboundQueue(){
+        return new OutboundQueue<>(queueCapacity, overflowPolicy, metrics.controlWait, metrics.chatWait);
+    }
+
+    /**
+     * @return : a new id for a client, different from that of every other client.
+     */
+    int nextConnectionId(){
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Creates a thread of the same kind the clients run on.
+     *
+     * @param r : what the thread runs.
+     * @return : the new thread, not yet started.
+     */
+    Thread newThread(Runnable r){
+        return threadFactory.newThread(r);
+    }
+
+    /**
+     * Creates a new thread for a new connection.
+     *
+     * @param s : the socket the new connection is on, or any other channel that can be read and written in the same
+     *          way.
+     */
+    public <C extends ReadableByteChannel & GatheringByteChannel> void newConnection(C s){
+
+        /**
+         * Stores the instance of ClientHandler to be used by the new connection.
+         */
+        ClientHandler ch = new ClientHandler(s, this);
+
+        //Adds the new client to the list of clients and starts its thread.
+        addConnection(ch);
+        threadFactory.newThread(ch).start();
+    }
+
+    /**
+     * Adds a connection to the list of clients that server messages are sent to, and to the quiet clients check. It
+     * joins the default channel once it has given its username.
+     *
+     * @param c : the connection to add.
+     */
+    public void addConnection(Connection c){
+        elClientes.add(c);
+        if(heartbeats != null && c instanceof QueuedConnection){
+            heartbeats.add((QueuedConnection) c);
+        }
+    }
+
+    /**
+     * Removes a connection that has closed so broadcasts no longer go to it. Removing one twice does nothing.
+     *
+     * @param c : the connection to remove.
+     */
+    public void removeConnection(Connection c){
+        //Taken out of the clients before its channel, so a /join running at the same time sees it has gone.
+        boolean removed = elClientes.remove(c);
+        leaveChannel(c);
+        if(c.getUsername() != null){
+            //Only removes the username if a later client with the same username hasn't taken it over.
+            usernames.remove(c.getUsername(), c);
+        }
+        if(removed){
+            System.out.println("Client disconnected (" + getConnectionCount() + " connected)");
+        }
+    }
+
+    /**
+     * @return : the number of clients currently connected.
+     */
+    public int getConnectionCount(){
+        return elClientes.size();
+    }
+
+    /**
+     * @return : the number of messages waiting to be written, over every client.
+     */
+    long getTotalQueueDepth(){
+        long total = 0;
+        for (Connection c: elClientes) {
+            total += c.getQueueDepth();
+        }
+        return total;
+    }
+
+    /**
+     * @return : the most messages waiting to be written to any one client.
+     */
+    int getMaxQueueDepth(){
+        int max = 0;
+        for (Connection c: elClientes) {
+            max = Math.max(max, c.getQueueDepth());
+        }
+        return max;
+    }
+
+    /**
+     * @return : the number of messages dropped because a queue was full, over every connected client.
+     */
+    long getTotalDropped(){
+        long total = 0;
+        for (Connection c: elClientes) {
+            total += c.getDropped();
+        }
+        return total;
+    }
+
+    /**
+     * Lets a client be sent private messages by the username it has given.
+     *
+     * @param c : the client, which has answered "Username: ".
+     */
+    public void addUsername(Connection c){
+        usernames.put(c.getUsername(), c);
+    }
+
+    /**
+     * Sends a private message to just the one client with a username, telling the sender if there is no such client.
+     *
+     * @param from : the client sending the message.
+     * @param username : the username of the client sending the message.
+     * @param command : what the client sent after "/msg ", i.e. "<user> <text>".
+     */
+    private void sendPrivate(Connection from, String username, String command){
+        int space = command.indexOf(' ');
+        if(space <= 0 || command.substring(space + 1).trim().isEmpty()){
+            from.output("Usage: /msg <user> <text>");
+            return;
+        }
+        String to = command.substring(0, space);
+        Connection c = usernames.get(to);
+        if(c == null){
+            from.output("No such user: " + to);
+            return;
+        }
+        metrics.privateMessages.increment();
+        c.output(Message.chat(from.getId(), username, "(private) " + command.substring(space + 1)));
+    }
+
+    /**
+     * Moves a client into a channel, taking it out of the one it was in, and sends it the channel's recent messages.
+     *
+     * @param c : the client joining.
+     * @param channel : the name of the channel to join.
+     */
+    public void joinChannel(Connection c, String channel){
+        leaveChannel(c);
+        MessageHistory history = history(channel);
+        if(history == null){
+            addMember(c, channel);
+        }
+        else {
+            synchronized (history) {
+                //No message can be sent to the channel between the client joining and getting the history.
+                addMember(c, channel);
+                history.replayTo(c);
+            }
+        }
+        if(!elClientes.contains(c)){
+            /* The client disconnected whilst joining, and removeConnection may have looked for its channel before it
+             * was added, so it is taken out again here rather than staying a member forever.
+             */
+            leaveChannel(c);
+        }
+    }
+
+    /**
+     * Adds a client to the members of a channel.
+     *
+     * @param c : the client joining.
+     * @param channel : the name of the channel to join.
+     */
+    private void addMember(Connection c, String channel){
+        channels.compute(channel, (name, members) -> {
+            if(members == null){
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(c);
+            return members;
+        });
+        channelOf.put(c, channel);
+    }
+
+    /**
+     * Takes a client out of the channel it is in, removing the channel if it is now empty.
+     *
+     * @param c : the client leaving.
+     * @return : the name of the channel it left, or null if it was not in one.
+     */
+    private String leaveChannel(Connection c){
+        String channel = channelOf.remove(c);
+        if(channel != null){
+            channels.computeIfPresent(channel, (name, members) -> {
+                members.remove(c);
+                if(members.isEmpty() && !name.equals(DEFAULT_CHANNEL)){
+                    histories.remove(name);
+                }
+                return members.isEmpty() ? null : members;
+            });
+        }
+        return channel;
+    }
+
+    /**
+     * Handles a line sent by a client once it has given its username: channel commands, /stats, EXIT, a private
+     * message, or a message for the rest of its channel.
+     *
+     * @param c : the client that sent the line.
+     * @param username : the username of the client.
+     * @param userInput : the line the client sent.
+     */
+    public void receive(Connection c, String username, String userInput){
+        if(userInput.equals(HeartbeatWheel.PONG)){
+            //Only there to show the client is still connected, which reading it has already recorded.
+            return;
+        }
+        metrics.messagesIn.increment();
+        if(userInput.equals("EXIT")){
+            sendAll(userInput);
+        }
+        else if(userInput.startsWith("/join ") && !userInput.substring(6).trim().isEmpty()){
+            String channel = userInput.substring(6).trim();
+            c.output("Joined " + channel);
+            joinChannel(c, channel);
+        }
+        else if(userInput.equals("/leave")){
+            String channel = leaveChannel(c);
+            c.output("Left " + channel);
+            joinChannel(c, DEFAULT_CHANNEL);
+        }
+        else if(userInput.startsWith("/msg ")){
+            sendPrivate(c, username, userInput.substring(5).trim());
+        }
+        else if(userInput.equals("/stats")){
+            //Only the client that asked sees the stats.
+            for (String line: metrics.summary(this)) {
+                c.output(line);
+            }
+        }
+        else {
+            sendToChannel(channelOf.getOrDefault(c, DEFAULT_CHANNEL), Message.chat(c.getId(), username, userInput));
+        }
+        if(logMessages){
+            System.out.println(userInput);
+        }
+    }
+
+    /**
+     * Sends a message from one of this server's clients to everyone in its channel, on this node and every other node
+     * in the cluster, through the ring if there is one.
+     *
+     * @param channel : the name of the channel.
+     * @param msg : the message to output to the channel.
+     */
+    public void sendToChannel(String channel, Message msg){
+        if(ring != null){
+            ring.publish(channel, msg);
+            return;
+        }
+        broadcast(channel, msg);
+    }
+
+    /**
+     * Sends a message from one of this server's clients to everyone in its channel straight away, on this node and
+     * every other node in the cluster.
+     *
+     * @param channel : the name of the channel.
+     * @param msg : the message to output to the channel.
+     */
+    void broadcast(String channel, Message msg){
+        publish(channel, msg);
+        if(cluster != null){
+            cluster.relay(channel, msg);
+        }
+    }
+
+    /**
+     * Sends the message passed in to every client of this node in a channel, adding it to the channel's history, the
+     * journal and the fan-out. The message is encoded once per format and the same bytes are queued for each member.
+     * All of it is done under one lock for the channel, so the journal, the fan-out's sequence numbers, the history
+     * and the members all get a channel's messages in the same order.
+     *
+     * @param channel : the name of the channel.
+     * @param msg : the message to output to the channel.
+     */
+    void publish(String channel, Message msg){
+        MessageHistory history = history(channel);
+        synchronized (history == null ? publishLock(channel) : history) {
+            if(journal != null){
+                journal.append(channel, msg);
+            }
+            if(fanOut != null){
+                fanOut.publish(channel, msg);
+            }
+            if(history != null){
+                history.append(msg);
+            }
+            deliver(channel, msg);
+        }
+    }
+
+    /**
+     * Queues a message for every client in a channel.
+     *
+     * @param channel : the name of the channel.
+     * @param msg : the message to output to the channel.
+     */
+    private void deliver(String channel, Message msg){
+        Set<Connection> members = channels.get(channel);
+        if(members == null){
+            return;
+        }
+        long start = System.nanoTime();
+        for (Connection ch: members) {
+            ch.output(msg);
+        }
+        metrics.fanOut.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the message passed in to every client connected to the server. The message is encoded once per format and
+     * the same bytes are queued for each client, their own writers do the actual sending.
+     *
+     * @param msg : the message to output to clients.
+     */
+    public void sendAll(String msg){
+        if(msg.equals("EXIT")){
+            //shuts down the server
+            serverShutdown = true;
+            try {
+                serverSocket.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+            for (Closeable listener: listeners) {
+                try {
+                    listener.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Stores the message, encoded at most once for each format and shared by every client.
+         */
+        Message message = Message.system(msg);
+        synchronized (publishLock(null)) {
+            //Journalled, fanned out and delivered in the same order as any other message to everyone.
+            if(journal != null){
+                journal.append(null, message);
+            }
+            if(fanOut != null){
+                fanOut.publish(null, message);
+            }
+
+            long start = System.nanoTime();
+            for (Connection ch: elClientes) {
+                //outputs the message on the client's connection.
+                ch.output(message);
+            }
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds another socket clients are accepted on, so it is closed when the server is shutdown and whatever is
+     * accepting on it stops.
+     *
+     * @param listener : the socket.
+     */
+    public void addListener(Closeable listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * @return : whether or not the server has been shutdown.
+     */
+    public boolean getServerShutdown(){
+        return serverShutdown;
+    }
+}
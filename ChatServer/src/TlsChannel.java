@@ -0,0 +1,353 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS on top of a non-blocking client channel of the selector engine, using an SSLEngine so the selector threads can
+ * carry on serving every client instead of a thread blocking on each handshake. Reads give back decrypted bytes and
+ * writes take plain bytes, so the connection handles lines, frames and compression the same way as without TLS.
+ *
+ * Only ever used on the connection's selector thread. The handshake is carried on by reads: nothing written is sent
+ * until it is done, after which the connection is asked to write what has been queued for the client.
+ */
+class TlsChannel {
+
+    /**
+     * Stores an empty buffer, to wrap handshake messages that carry no application data.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Stores the channel of the client.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Stores the engine encrypting and decrypting everything for this client.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Stores the metrics the handshakes are counted in.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Stores encrypted bytes read from the client that have not been decrypted yet. Always ready to be read into.
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Stores decrypted bytes that have not been given back by a read yet. Always ready to be taken from.
+     */
+    private final ByteBuffer appIn;
+
+    /**
+     * Stores encrypted bytes waiting to be sent to the client. Always ready to be taken from.
+     */
+    private final ByteBuffer netOut;
+
+    /**
+     * Stores whether or not decrypting stopped because there was no room for more, so there are whole records left.
+     */
+    private boolean moreToDecrypt;
+
+    /**
+     * Stores whether or not the handshake is still going on.
+     */
+    private boolean handshaking = true;
+
+    /**
+     * Stores when the client connected, from System.nanoTime(), to time the handshake.
+     */
+    private final long connectedNanos = System.nanoTime();
+
+    /**
+     * Stores when the client connected, from System.currentTimeMillis(), to tell a resumed session from a new one.
+     */
+    private final long connectedMillis = System.currentTimeMillis();
+
+    /**
+     * Instance method for TlsChannel
+     *
+     * @param sc : the channel of the client.
+     * @param sslEngine : the engine for this client, in server mode.
+     * @param serverMetrics : the metrics the handshakes are counted in.
+     */
+    TlsChannel(SocketChannel sc, SSLEngine sslEngine, ServerMetrics serverMetrics) {
+        channel = sc;
+        engine = sslEngine;
+        metrics = serverMetrics;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        //Room for a few records, so a batch of messages goes out in one write.
+        netOut = ByteBuffer.allocate(packetSize * 4);
+        netOut.flip();
+    }
+
+    /**
+     * Creates the context every client's engine is made from, with the server's key and certificate and a cache of
+     * sessions so a client reconnecting can resume its session without a full handshake.
+     *
+     * @param keystore : the path of the keystore (PKCS12 or JKS) holding the server's key and certificate.
+     * @param password : the password of the keystore and the key.
+     * @param sessions : how many sessions to keep for resumption.
+     * @return : the context.
+     * @throws IOException : if the keystore can not be read.
+     * @throws GeneralSecurityException : if the keystore or the key in it can not be used.
+     */
+    static SSLContext serverContext(String keystore, String password, int sessions)
+            throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = Files.newInputStream(Paths.get(keystore))) {
+            ks.load(in, password.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext cache = context.getServerSessionContext();
+        cache.setSessionCacheSize(sessions);
+        return context;
+    }
+
+    /**
+     * @return : whether or not the handshake is still going on, so nothing can be written yet.
+     */
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * @return : whether or not there are decrypted bytes, or whole records, left over from the last read, which the
+     * selector will not say are there as they have already been read from the channel.
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || moreToDecrypt;
+    }
+
+    /**
+     * @return : whether or not there are encrypted bytes still waiting to be sent.
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Reads what the client has sent, carrying on with the handshake if it is still going on.
+     *
+     * @param dst : where to put the decrypted bytes.
+     * @return : how many decrypted bytes were put in dst, which may be 0, or -1 if the client has gone.
+     * @throws IOException : if the channel can not be read or the client sent something that is not valid TLS.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if(!appIn.hasRemaining()){
+            int n = moreToDecrypt ? 0 : channel.read(netIn);
+            if(n == -1){
+                return -1;
+            }
+            decrypt();
+            if(engine.isInboundDone() && !appIn.hasRemaining()){
+                //The client sent close_notify.
+                return -1;
+            }
+        }
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        return n;
+    }
+
+    /**
+     * Decrypts every whole record read so far, as far as there is room for, and answers the client's handshake
+     * messages.
+     *
+     * @throws IOException : if the client sent something that is not valid TLS or the channel can not be written.
+     */
+    private void decrypt() throws IOException {
+        moreToDecrypt = false;
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if(status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                    runTasks();
+                    continue;
+                }
+                if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                    if(!wrap(new ByteBuffer[] {EMPTY}, 0, 1)){
+                        //The socket is full, the rest of the handshake carries on once it can be written to.
+                        return;
+                    }
+                    continue;
+                }
+                if(!netIn.hasRemaining() && status != SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN){
+                    return;
+                }
+                appIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                }
+                finally {
+                    appIn.flip();
+                }
+                finished(result);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if(netIn.limit() == netIn.capacity() && netIn.position() == 0){
+                            //A record bigger than the buffer, which the session allows once it has been negotiated.
+                            ByteBuffer bigger = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                            bigger.put(netIn);
+                            netIn = bigger;
+                            netIn.flip();
+                        }
+                        return;
+                    case BUFFER_OVERFLOW:
+                        //The decrypted bytes so far have to be read before there is room for more.
+                        moreToDecrypt = true;
+                        return;
+                    case CLOSED:
+                        return;
+                    default:
+                        break;
+                }
+            }
+        }
+        finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Encrypts as much of some plain bytes as the socket will take and sends it. Nothing is taken until the handshake
+     * is done.
+     *
+     * @param srcs : the plain bytes.
+     * @param offset : the index of the first buffer to take from.
+     * @param length : how many buffers to take from.
+     * @return : how many plain bytes were taken.
+     * @throws IOException : if the channel can not be written or the engine has been closed.
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(handshaking || !flush()){
+            return 0;
+        }
+        long before = remaining(srcs, offset, length);
+        while (remaining(srcs, offset, length) > 0 && wrap(srcs, offset, length)) {
+            //Keeps going until everything is sent or the socket is full.
+        }
+        return before - remaining(srcs, offset, length);
+    }
+
+    /**
+     * Encrypts as many records as fit into what is waiting to be sent, then sends as much as the socket will take.
+     *
+     * @param srcs : the plain bytes.
+     * @param offset : the index of the first buffer to take from.
+     * @param length : how many buffers to take from.
+     * @return : whether or not everything encrypted has been sent.
+     * @throws IOException : if the channel can not be written or the engine has been closed.
+     */
+    private boolean wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netOut.compact();
+        try {
+            do {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                finished(result);
+                if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+                    throw new SSLException("TLS engine closed");
+                }
+                if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW || result.bytesProduced() == 0){
+                    break;
+                }
+            } while (!handshaking && netOut.remaining() >= packetSize && remaining(srcs, offset, length) > 0);
+        }
+        finally {
+            netOut.flip();
+        }
+        return flush();
+    }
+
+    /**
+     * Sends what is still waiting to be sent, carrying on with the handshake if it had stopped for the socket.
+     *
+     * @return : whether or not the handshake is done and everything waiting has been sent, so more can be written.
+     * @throws IOException : if the channel can not be written or the client sent something that is not valid TLS.
+     */
+    boolean ready() throws IOException {
+        if(flush() && handshaking){
+            decrypt();
+        }
+        return !handshaking && flush();
+    }
+
+    /**
+     * Sends as much of what is waiting to be sent as the socket will take.
+     *
+     * @return : whether or not all of it has been sent.
+     * @throws IOException : if the channel can not be written.
+     */
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if(channel.write(netOut) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the slow parts of the handshake (i.e. signing), which the engine leaves for the caller to run.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Counts the handshake once it has finished, as resumed if the session is older than the connection.
+     *
+     * @param result : the result of the last wrap or unwrap.
+     */
+    private void finished(SSLEngineResult result) {
+        if(result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED || !handshaking){
+            return;
+        }
+        handshaking = false;
+        metrics.tlsHandshakes.increment();
+        if(engine.getSession().getCreationTime() < connectedMillis){
+            metrics.tlsResumed.increment();
+        }
+        metrics.tlsHandshakeTime.record(System.nanoTime() - connectedNanos);
+    }
+
+    /**
+     * @return : how many bytes are left in some buffers.
+     */
+    private static long remaining(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += srcs[i].remaining();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast one client can send messages: it can send a burst of messages at once and after that one message
+ * every interval. The bucket is kept as a single time - when it would next be full if nothing else were taken from it -
+ * which is moved on with a compare and set, so taking a token never locks.
+ *
+ * A message is never refused. A token is taken before a message is handled, and once the bucket is empty that says how
+ * long the client is over its limit for. The connection holds the message and stops reading from the client for that
+ * long, so a client that keeps sending is slowed down to the limit rather than having messages dropped.
+ */
+class TokenBucket {
+
+    /**
+     * Stores how long it takes for one token to be added back, in nanoseconds.
+     */
+    private final long interval;
+
+    /**
+     * Stores how long it takes for the whole bucket to fill, in nanoseconds.
+     */
+    private final long capacity;
+
+    /**
+     * Stores the time the bucket would be full at if nothing else were taken, from System.nanoTime().
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * Instance method for TokenBucket
+     *
+     * @param ratePerSecond : how many tokens are added back each second.
+     * @param burst : how many tokens the bucket holds.
+     */
+    TokenBucket(int ratePerSecond, int burst) {
+        interval = 1_000_000_000L / ratePerSecond;
+        capacity = interval * burst;
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @param now : the current time, from System.nanoTime().
+     * @return : how long until the client is back within its limit, in nanoseconds, or 0 or less if it is within it.
+     */
+    long take(long now) {
+        while (true) {
+            long current = fullAt.get();
+            //A bucket that has been full for a while doesn't save up more than it holds.
+            long next = Math.max(current, now) + interval;
+            if(fullAt.compareAndSet(current, next)){
+                return next - capacity - now;
+            }
+        }
+    }
+}
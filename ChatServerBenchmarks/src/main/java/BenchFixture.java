@@ -0,0 +1,151 @@
+import chatserver.bench.BroadcastFixture;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the server's broadcast path against in-memory clients for the benchmarks. It is in the default package so it can
+ * use the server's classes, see BroadcastFixture.
+ */
+public class BenchFixture implements BroadcastFixture {
+
+    /**
+     * Stores the instance of ThreadHandler the clients are connected to.
+     */
+    private ThreadHandler th;
+
+    /**
+     * Stores the connected clients.
+     */
+    private List<MemoryConnection> clients = new ArrayList<>();
+
+    /**
+     * Stores the channel real clients are accepted on, or null if the server is not listening.
+     */
+    private ServerSocketChannel listener;
+
+    /**
+     * Stores the file of the Unix domain socket the server listens on, or null if it is not listening on one.
+     */
+    private Path socketFile;
+
+    public void connect(int clients, boolean binary) {
+        th = new ThreadHandler(() -> { });
+        th.setLogMessages(false);
+        for (int i = 0; i < clients; i++) {
+            MemoryConnection c = new MemoryConnection(th);
+            th.addConnection(c);
+            c.handshake(binary ? QueuedConnection.BINARY_REQUEST + "user" + i : "user" + i);
+            this.clients.add(c);
+        }
+    }
+
+    public void sendAll(String msg) {
+        th.sendAll(msg);
+    }
+
+    public void sendChat(String username, String text) {
+        th.sendToChannel(ThreadHandler.DEFAULT_CHANNEL, Message.chat(1, username, text));
+    }
+
+    public void useRing(int size) {
+        th.setRing(size);
+    }
+
+    public SocketAddress listen(boolean unix) throws IOException {
+        th = new ThreadHandler(() -> { });
+        th.setLogMessages(false);
+        th.setHistory(0, 0);
+        if(unix){
+            socketFile = Files.createTempDirectory("chat-bench").resolve("chat.sock");
+            listener = UnixDomainSockets.listen(socketFile.toString(), 16);
+        }
+        else {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    th.newConnection(listener.accept());
+                }
+            }
+            catch (IOException e) {
+                //The listener has been closed.
+            }
+        }, "bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return listener.getLocalAddress();
+    }
+
+    public void close() {
+        th.closeRing();
+        if(listener != null){
+            try {
+                listener.close();
+                if(socketFile != null){
+                    Files.deleteIfExists(socketFile);
+                    Files.deleteIfExists(socketFile.getParent());
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public ByteBuffer encodeLine(String username, String text) {
+        return Message.chat(1, username, text).line();
+    }
+
+    public ByteBuffer encodeFrame(String text) {
+        return Message.chat(1, null, text).frame();
+    }
+
+    public long delivered() {
+        long total = 0;
+        for (MemoryConnection c: clients) {
+            total += c.delivered;
+        }
+        return total;
+    }
+}
+
+/**
+ * A client with no socket, that takes each message off its queue as soon as it is put there.
+ */
+class MemoryConnection extends QueuedConnection {
+
+    /**
+     * Stores how many messages have been taken off the queue.
+     */
+    long delivered;
+
+    /**
+     * Instance method for MemoryConnection
+     *
+     * @param threadHandler : the instance of ThreadHandler the client is connected to.
+     */
+    MemoryConnection(ThreadHandler threadHandler) {
+        super(threadHandler);
+    }
+
+    protected void queued() {
+        if(outQueue.poll() != null){
+            delivered++;
+        }
+    }
+
+    void close() {
+        th.removeConnection(this);
+    }
+}
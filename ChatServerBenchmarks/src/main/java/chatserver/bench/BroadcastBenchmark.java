@@ -0,0 +1,82 @@
+package chatserver.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long one message takes to fan out to every client: encoding it once and queueing it for each of them.
+ * The clients are in memory, so there is no network and the results only depend on the machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark {
+
+    /**
+     * Stores how many clients are connected.
+     */
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    /**
+     * Stores the length of each message in bytes.
+     */
+    @Param({"16", "256", "4096", "16384"})
+    public int size;
+
+    /**
+     * Stores whether the clients use the line protocol or binary frames.
+     */
+    @Param({"line", "binary"})
+    public String format;
+
+    /**
+     * Stores the server with its clients.
+     */
+    private BroadcastFixture fixture;
+
+    /**
+     * Stores the text of the message.
+     */
+    private String text;
+
+    /**
+     * Connects the clients.
+     */
+    @Setup
+    public void setUp() {
+        fixture = BroadcastFixture.load();
+        fixture.connect(clients, format.equals("binary"));
+        text = "x".repeat(size);
+    }
+
+    /**
+     * A message from the server to every client (ThreadHandler.sendAll).
+     */
+    @Benchmark
+    public void sendAll() {
+        fixture.sendAll(text);
+    }
+
+    /**
+     * A chat message to everyone in the sender's channel, which prefixes the username once for every line client.
+     */
+    @Benchmark
+    public void sendChat() {
+        fixture.sendChat("benchmark", text);
+    }
+}
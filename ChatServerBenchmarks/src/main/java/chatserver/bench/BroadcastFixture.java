@@ -0,0 +1,101 @@
+package chatserver.bench;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * What the benchmarks need from the server. The server's classes are in the default package, which a benchmark (that
+ * JMH requires to be in a package) can not import, so a default package class implements this and is loaded by name.
+ * The benchmarks then only call through this interface, with no reflection on the measured path.
+ */
+public interface BroadcastFixture {
+
+    /**
+     * Stores the name of the class that implements this.
+     */
+    String IMPLEMENTATION = "BenchFixture";
+
+    /**
+     * Connects in-memory clients to a new server. Each client drains its queue as soon as something is put on it, as
+     * a writer that keeps up would, so the queues never fill.
+     *
+     * @param clients : how many clients to connect.
+     * @param binary : whether or not the clients use binary frames instead of lines.
+     */
+    void connect(int clients, boolean binary);
+
+    /**
+     * Sends a message from the server to every client, as ThreadHandler.sendAll does.
+     *
+     * @param msg : the message.
+     */
+    void sendAll(String msg);
+
+    /**
+     * Sends a chat message from a client to everyone in its channel, as a client's line is handled.
+     *
+     * @param username : the username of the sender.
+     * @param text : the text of the message.
+     */
+    void sendChat(String username, String text);
+
+    /**
+     * Passes chat messages through a ring to a single sequencer from now on, as the server does with -ring.
+     *
+     * @param size : the number of slots in the ring.
+     */
+    void useRing(int size);
+
+    /**
+     * Starts a new server on the thread engine that real clients can connect to, listening on loopback TCP or on a
+     * Unix domain socket, as the server does with -uds.
+     *
+     * @param unix : whether or not to listen on a Unix domain socket instead of TCP.
+     * @return : the address to connect to.
+     * @throws IOException : if the server can not listen, i.e. Unix domain sockets are not supported by this JDK.
+     */
+    SocketAddress listen(boolean unix) throws IOException;
+
+    /**
+     * Stops anything the fixture has started, i.e. the ring's sequencer once everything in it has been sent, or the
+     * server's listener.
+     */
+    void close();
+
+    /**
+     * Encodes a chat message as a line, prefixing the username, the one string concatenation done per message.
+     *
+     * @param username : the username of the sender.
+     * @param text : the text of the message.
+     * @return : the encoded line.
+     */
+    ByteBuffer encodeLine(String username, String text);
+
+    /**
+     * Encodes a chat message as a binary frame, which carries the sender id instead of the username.
+     *
+     * @param text : the text of the message.
+     * @return : the encoded frame.
+     */
+    ByteBuffer encodeFrame(String text);
+
+    /**
+     * @return : how many messages the clients have been sent, so the work can not be optimised away.
+     */
+    long delivered();
+
+    /**
+     * Loads the implementation.
+     *
+     * @return : a new fixture.
+     */
+    static BroadcastFixture load() {
+        try {
+            return (BroadcastFixture) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load " + IMPLEMENTATION, e);
+        }
+    }
+}
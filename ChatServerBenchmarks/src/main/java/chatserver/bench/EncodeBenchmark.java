@@ -0,0 +1,83 @@
+package chatserver.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a single chat message: the "[username] text" concatenation and encoding of a line, against a
+ * binary frame which carries the sender id instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodeBenchmark {
+
+    /**
+     * Stores the length of each message in bytes.
+     */
+    @Param({"16", "256", "4096", "16384"})
+    public int size;
+
+    /**
+     * Stores the encoder.
+     */
+    private BroadcastFixture fixture;
+
+    /**
+     * Stores the username of the sender.
+     */
+    private String username = "benchmark";
+
+    /**
+     * Stores the text of the message.
+     */
+    private String text;
+
+    /**
+     * Loads the encoder and makes the message.
+     */
+    @Setup
+    public void setUp() {
+        fixture = BroadcastFixture.load();
+        text = "x".repeat(size);
+    }
+
+    /**
+     * Just the username prefix concatenation.
+     */
+    @Benchmark
+    public String prefixUsername() {
+        return "[" + username + "] " + text;
+    }
+
+    /**
+     * The prefix concatenation and encoding of a line.
+     */
+    @Benchmark
+    public ByteBuffer encodeLine() {
+        return fixture.encodeLine(username, text);
+    }
+
+    /**
+     * Encoding a binary frame.
+     */
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        return fixture.encodeFrame(text);
+    }
+}
@@ -0,0 +1,84 @@
+package chatserver.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many chat messages a second the server can take from several readers at once, either with each reader
+ * sending its own messages on to every client (so readers contend for each client's queue) or with readers putting
+ * them in the ring for the sequencer to send on (-ring). With the ring the readers only wait once it is full, so the
+ * result is how fast the sequencer keeps up. Change the number of readers with "-t".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PipelineBenchmark {
+
+    /**
+     * Stores how messages get from the readers to the clients: "direct" or "ring".
+     */
+    @Param({"direct", "ring"})
+    public String path;
+
+    /**
+     * Stores how many clients are connected.
+     */
+    @Param({"10", "1000"})
+    public int clients;
+
+    /**
+     * Stores the server with its clients.
+     */
+    private BroadcastFixture fixture;
+
+    /**
+     * Stores the text of each message.
+     */
+    private String text;
+
+    /**
+     * Connects the clients and starts the ring if it is being measured.
+     */
+    @Setup
+    public void setUp() {
+        fixture = BroadcastFixture.load();
+        fixture.connect(clients, false);
+        if(path.equals("ring")){
+            fixture.useRing(4096);
+        }
+        text = "x".repeat(64);
+    }
+
+    /**
+     * Stops the ring.
+     */
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * A chat message from one of the readers to everyone in the channel.
+     */
+    @Benchmark
+    public void sendChat() {
+        fixture.sendChat("benchmark", text);
+    }
+}
@@ -0,0 +1,177 @@
+package chatserver.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip of a chat message through a real server on the thread engine, from a client sending it to
+ * the same client getting it back, over loopback TCP against a Unix domain socket (-uds). The server's work is the
+ * same either way, so the difference is what the TCP/IP stack costs. Needs JDK 16 or later for the Unix domain socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransportBenchmark {
+
+    /**
+     * Stores the username of the client.
+     */
+    private static final String USERNAME = "bench";
+
+    /**
+     * Stores how the client connects: "tcp" or "uds".
+     */
+    @Param({"tcp", "uds"})
+    public String transport;
+
+    /**
+     * Stores the length of each message in bytes.
+     */
+    @Param({"16", "1024"})
+    public int size;
+
+    /**
+     * Stores the server.
+     */
+    private BroadcastFixture fixture;
+
+    /**
+     * Stores the client's connection to the server.
+     */
+    private SocketChannel client;
+
+    /**
+     * Stores the line the client sends.
+     */
+    private ByteBuffer line;
+
+    /**
+     * Stores what the client reads back, big enough for the whole of the message it gets back.
+     */
+    private ByteBuffer reply;
+
+    /**
+     * Stores the message the client gets back.
+     */
+    private byte[] expected;
+
+    /**
+     * Starts the server and connects the client, logging it in.
+     *
+     * @throws IOException : if the server can not listen or the client can not connect.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        fixture = BroadcastFixture.load();
+        SocketAddress address = fixture.listen(transport.equals("uds"));
+        client = SocketChannel.open(address);
+        if(!transport.equals("uds")){
+            client.socket().setTcpNoDelay(true);
+        }
+        String text = "x".repeat(size);
+        line = ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+        expected = ("[" + USERNAME + "] " + text + "\n").getBytes(StandardCharsets.UTF_8);
+        reply = ByteBuffer.allocate(expected.length + 4096);
+
+        //Waits for "Username: " and answers it.
+        readLine();
+        client.write(ByteBuffer.wrap((USERNAME + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Disconnects the client and stops the server.
+     *
+     * @throws IOException : if the client can not be closed.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        fixture.close();
+    }
+
+    /**
+     * Sends a chat message and waits for the server to send it back.
+     *
+     * @return : the number of bytes read, so the work can not be optimised away.
+     * @throws IOException : if the connection is lost.
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        line.rewind();
+        while (line.hasRemaining()) {
+            client.write(line);
+        }
+        return readReply();
+    }
+
+    /**
+     * Reads one line, for the login.
+     *
+     * @throws IOException : if the connection is lost.
+     */
+    private void readLine() throws IOException {
+        reply.clear();
+        while (reply.position() == 0 || reply.get(reply.position() - 1) != '\n') {
+            if(client.read(reply) == -1){
+                throw new IOException("Server closed the connection");
+            }
+        }
+    }
+
+    /**
+     * Reads until the message sent has come back. Anything else the server sends (i.e. a message after logging in)
+     * comes before it, so it is read first and counted in with it.
+     *
+     * @return : how many bytes were read.
+     * @throws IOException : if the connection is lost.
+     */
+    private int readReply() throws IOException {
+        reply.clear();
+        while (!endsWithReply()) {
+            if(!reply.hasRemaining()){
+                //Messages sent before this one, which are not timed apart from it.
+                reply.clear();
+            }
+            if(client.read(reply) == -1){
+                throw new IOException("Server closed the connection");
+            }
+        }
+        return reply.position();
+    }
+
+    /**
+     * @return : whether or not what has been read ends with the message sent.
+     */
+    private boolean endsWithReply() {
+        int start = reply.position() - expected.length;
+        if(start < 0){
+            return false;
+        }
+        for (int i = expected.length - 1; i >= 0; i--) {
+            if(reply.get(start + i) != expected[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+}
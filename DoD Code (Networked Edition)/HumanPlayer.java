@@ -2,9 +2,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -281,6 +279,16 @@ class DODClient {
 
     PrintWriter serverOut;
 
+    /**
+     * Stores whether or not the client asks the server to compress everything sent each way.
+     */
+    private boolean deflate = false;
+
+    /**
+     * Stores whether or not the username has been sent.
+     */
+    private boolean usernameSent = false;
+
     /**
      * Instance method for DODClient
      *
@@ -289,70 +297,25 @@ class DODClient {
     public DODClient(String[] args) {
 
         /**
-         * Stores the address that the client will bind to.
-         */
-        String address = "localhost";
-
-        /**
-         * Stores the port the client will use to connect to the server.
+         * Stores how the client reaches the server.
          */
-        int port = 14001;
-
-        /**
-         * Stores whether or not the address needs to be changed.
-         */
-        boolean changeAddress = false;
-
-        /**
-         * Stores whether or not the port needs to be changed.
-         */
-        boolean changePort = false;
+        ClientTransport transport = ClientTransport.parse(args);
 
         for (String arg: args) {
-            //Goes through parameters passed in by the user running the client and attempts to apply given parameters.
-            if(changeAddress){
-                //If we are changing the address we set it to the argument after a -cca and inform the user.
-                address = arg;
-                System.out.println("Setting address: " + address);
-            }
-            if(changePort){
-                try{
-                    /* If changing the port we attempt to convert the parameter to an int. If it throws an error there
-                     * was an error with the parameter so we set to default and inform the user what has happened.
-                     */
-                    port = Integer.parseInt(arg);
-                    System.out.println("Setting port: " + port);
-                }
-                catch(NumberFormatException e){
-                    System.out.println("Invalid port: setting port to 14001 (default).");
-                }
+            //Goes through the parameters that are not about how to reach the server.
+            if(arg.equals("-deflate")){
+                deflate = true;
+                System.out.println("Using compression");
             }
-
-            /* If the parameter is -cca we will be changing the address in the next arg, if it is -ccp we will be
-             * changing the port is the next arg.
-             */
-            changeAddress = arg.equals("-cca");
-            changePort = arg.equals("-ccp");
         }
+        server = transport.connect();
         try {
-            //Attempts to create a new socket with the server on the address and port given.
-            server = new Socket(address,port);
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (ConnectException e){
-            /* However if there was a timeout there was likely a problem with the address given so we set the address to
-             * default and see if that will work.
-             */
-
-            System.out.println("Connection timed out: setting address to localhost (default).");
-            try {
-                server = new Socket("localhost", port);
-            } catch(UnknownHostException e1){
-                e.printStackTrace();
-            } catch(IOException e1){
-                e.printStackTrace();
-            }
-        } catch (IOException e) {
+            //The reader and writer are kept for the whole game so nothing read or compressed is lost between moves.
+            serverIn = new BufferedReader(new InputStreamReader(deflate
+                    ? new NegotiatedInputStream(server.getInputStream()) : server.getInputStream()));
+            serverOut = new PrintWriter(server.getOutputStream(), true);
+        }
+        catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -363,13 +326,6 @@ class DODClient {
     public String waitForUserInput(HumanPlayer humanPlayer) {
 
         try {
-            /**
-             * Stores the buffer reader used to read the input stream reader for the input steam of the server.
-             */
-            serverIn = new BufferedReader(new InputStreamReader(server.getInputStream()));
-            serverOut = new PrintWriter(server.getOutputStream(), true);
-
-
             /**
              * Stores the incoming message from the server.
              */
@@ -381,7 +337,7 @@ class DODClient {
             String response = "";
 
             //While someone has not exited the server, this will read what is being written to the server.
-            serverMsg = serverIn.readLine();
+            serverMsg = readServerLine();
 
             /**
              * Where to start the substring of the serverMsg to remove the username
@@ -411,7 +367,7 @@ class DODClient {
              }
              //If we are not setting the username or exiting, the bot needs a response.
              while(username.equals("[DODClient] ") || serverMsg.equals("Username: ")){
-                 serverMsg = serverIn.readLine();
+                 serverMsg = readServerLine();
                  int splitMsg2 = 0;
 
                  for (int i = 0; i < serverMsg.length(); i++) {
@@ -445,14 +401,10 @@ class DODClient {
      */
     public String getMap(){
         try {
-
-            serverIn = new BufferedReader(new InputStreamReader(server.getInputStream()));
-            serverOut = new PrintWriter(server.getOutputStream(), true);
-
             /**
              * Stores the most recent message from the server.
              */
-            String serverMsg = serverIn.readLine();
+            String serverMsg = readServerLine();
 
             /**
              * Stores the point at which to do a substring to remove the username from the message.
@@ -477,7 +429,7 @@ class DODClient {
 
 
             while (username.equals("[DODClient] ") || serverMsg.equals("Username: ")) {
-                serverMsg = serverIn.readLine();
+                serverMsg = readServerLine();
                 int splitMsg2 = 0;
 
                 for (int i = 0; i < serverMsg.length(); i++) {
@@ -501,14 +453,37 @@ class DODClient {
         return "";
     }
 
+    /**
+     * Reads the next line from the server, answering any heartbeats on the way.
+     *
+     * @return : the line.
+     * @throws IOException : if the server can not be read.
+     */
+    private String readServerLine() throws IOException {
+        String serverMsg = serverIn.readLine();
+        while ("PING".equals(serverMsg)) {
+            //The server checking we are still here, which the game doesn't need to see.
+            serverOut.println("PONG");
+            serverMsg = serverIn.readLine();
+        }
+        return serverMsg;
+    }
+
     public void outputToClient(String msg){
-        try {
-            serverOut = new PrintWriter(server.getOutputStream(), true);
+        if(usernameSent || !deflate){
             serverOut.println(msg);
         }
-        catch(IOException e){
-            e.printStackTrace();
+        else {
+            try {
+                //The first thing sent is the username, which is also where we ask for compression.
+                serverOut.println(Compression.DEFLATE_REQUEST + msg);
+                serverOut = new PrintWriter(Compression.deflating(server.getOutputStream()), true);
+            }
+            catch(IOException e){
+                e.printStackTrace();
+            }
         }
+        usernameSent = true;
     }
 }
 
@@ -0,0 +1,199 @@
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+/**
+ * How a client reaches the server: TCP to an address and port, optionally over TLS, or on the same machine through
+ * shared memory or a Unix domain socket. Every client reads it from the same parameters (-cca, -ccp, -tls, -shm and
+ * -ccu) with parse and connects with it, so they all behave the same.
+ */
+final class ClientTransport {
+
+    /**
+     * Stores the address of the server.
+     */
+    String address = "localhost";
+
+    /**
+     * Stores the port of the server.
+     */
+    int port = 14001;
+
+    /**
+     * Stores whether or not to connect to the server over TLS.
+     */
+    boolean tls = false;
+
+    /**
+     * Stores the directory to connect to a server on this machine through shared memory in, or null to use TCP.
+     */
+    String shmDir = null;
+
+    /**
+     * Stores the Unix domain socket to connect to a server on this machine through, or null to use TCP.
+     */
+    String udsPath = null;
+
+    /**
+     * Instance method for ClientTransport, connecting over TCP to the server on this machine on the default port.
+     */
+    ClientTransport() {
+    }
+
+    /**
+     * Instance method for ClientTransport
+     *
+     * @param address : the address of the server.
+     * @param port : the port of the server.
+     */
+    ClientTransport(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Reads the parameters that say how to reach the server, telling the user about each one. Any other parameters
+     * are left for the client to read itself.
+     *
+     * @param args : the parameters given by the user of the client.
+     * @return : how to reach the server.
+     */
+    static ClientTransport parse(String[] args) {
+        /**
+         * Stores how to reach the server.
+         */
+        ClientTransport transport = new ClientTransport();
+
+        /**
+         * Stores whether or not the address needs to be changed.
+         */
+        boolean changeAddress = false;
+
+        /**
+         * Stores whether or not the port needs to be changed.
+         */
+        boolean changePort = false;
+
+        /**
+         * Stores whether or not the shared memory directory needs to be changed.
+         */
+        boolean changeShm = false;
+
+        /**
+         * Stores whether or not the Unix domain socket needs to be changed.
+         */
+        boolean changeUds = false;
+
+        for (String arg: args) {
+            //Goes through parameters passed in by the user running the client and attempts to apply given parameters.
+            if(changeAddress){
+                //If we are changing the address we set it to the argument after a -cca and inform the user.
+                transport.address = arg;
+                System.out.println("Setting address: " + transport.address);
+            }
+            if(changePort){
+                try{
+                    /* If changing the port we attempt to convert the parameter to an int. If it throws an error there
+                     * was an error with the parameter so we set to default and inform the user what has happened.
+                     */
+                    transport.port = Integer.parseInt(arg);
+                    System.out.println("Setting port: " + transport.port);
+                }
+                catch(NumberFormatException e){
+                    System.out.println("Invalid port: setting port to 14001 (default).");
+                }
+            }
+            if(changeShm){
+                //If we are connecting through shared memory we use the directory after a -shm and inform the user.
+                transport.shmDir = arg;
+                System.out.println("Using shared memory: " + transport.shmDir);
+            }
+            if(changeUds){
+                //If we are connecting through a Unix domain socket we use the path after a -ccu and inform the user.
+                transport.udsPath = arg;
+                System.out.println("Using Unix domain socket: " + transport.udsPath);
+            }
+
+            /* If the parameter is -cca we will be changing the address in the next arg, if it is -ccp we will be
+             * changing the port is the next arg.
+             */
+            changeAddress = arg.equals("-cca");
+            changePort = arg.equals("-ccp");
+            changeShm = arg.equals("-shm");
+            changeUds = arg.equals("-ccu");
+            if(arg.equals("-tls")){
+                transport.tls = true;
+                System.out.println("Using TLS");
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Connects to the server. If the address given can not be connected to, tries the server on this machine instead.
+     *
+     * @return : the socket, or null if the server could not be connected to (the reason having been printed).
+     */
+    Socket connect() {
+        try {
+            //Attempts to create a new socket with the server on the address and port given, or on this machine.
+            return open();
+        } catch (ConnectException e){
+            /* However if there was a timeout there was likely a problem with the address given so we set the address to
+             * default and see if that will work.
+             */
+
+            System.out.println("Connection timed out: setting address to localhost (default).");
+            try {
+                return openSocket("localhost", port, tls);
+            } catch(IOException e1){
+                e1.printStackTrace();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Connects to the server, through shared memory or a Unix domain socket if one was given and otherwise over TCP.
+     *
+     * @return : the socket.
+     * @throws IOException : if the server can not be connected to.
+     */
+    Socket open() throws IOException {
+        if(shmDir != null){
+            return SharedMemorySocket.connect(shmDir);
+        }
+        if(udsPath != null){
+            return UnixDomainSockets.connect(udsPath);
+        }
+        return openSocket(address, port, tls);
+    }
+
+    /**
+     * Opens a socket to the server, over TLS if asked for. The server's certificate is checked against the truststore
+     * given with -Djavax.net.ssl.trustStore (or the JDK's own if none is given) and must name the address connected to.
+     *
+     * @param address : the address of the server.
+     * @param port : the port of the server.
+     * @param tls : whether or not to connect over TLS.
+     * @return : the socket.
+     * @throws IOException : if the server can not be connected to or its certificate is not trusted.
+     */
+    private static Socket openSocket(String address, int port, boolean tls) throws IOException {
+        if(!tls){
+            return new Socket(address, port);
+        }
+        SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(address, port);
+        SSLParameters params = socket.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(params);
+        //Handshakes straight away, so a certificate that is not trusted is reported here rather than on the first read.
+        socket.startHandshake();
+        return socket;
+    }
+}
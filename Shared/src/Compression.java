@@ -0,0 +1,69 @@
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The DEFLATE compression a client can ask for by answering "Username: " with "/deflate <username>" (before /binary
+ * if it wants both). The server replies with the line "DEFLATE" and after that both sides send a raw DEFLATE stream,
+ * flushed after every write so nothing is held back. Both sides start from the same preset dictionary of the text the
+ * protocol, the bot and Dungeons of Doom send most, so even the first messages compress well. The server and every
+ * client compile this same file from Shared/src, so the dictionary is always the same at both ends.
+ */
+final class Compression {
+
+    /**
+     * Stores the start of the line a client sends instead of just its username to ask for compression.
+     */
+    static final String DEFLATE_REQUEST = "/deflate ";
+
+    /**
+     * Stores the line the server sends to confirm that everything after it will be compressed.
+     */
+    static final String DEFLATE_CONFIRM = "DEFLATE";
+
+    /**
+     * Stores the preset dictionary, with the most common text last as that is where DEFLATE finds it cheapest.
+     */
+    static final byte[] DICTIONARY = ("    \\ \\  \\ \\  \\\\\\  \\ |\\  \\|\\  \\ \\__\\ \\_______\\|_______|  _______"
+            + "Gold to win: Gold owned: SUCCESSFAILInvalidExiting dungeon.WINLOSEThe villain has caught you."
+            + "HELLOGOLDPICKUPLOOKQUITMOVE NMOVE SMOVE EMOVE W##########..........GEPB"
+            + "Where is the map?[DODClient] DODClient"
+            + "Greetings. I am fine. How are you? Yes. Are you? Good. Oh. You're welcome. "
+            + "I am not yet capable of responding to that.[BOT] "
+            + "Messages Clients connected: Disconnecting slow client Joined Left general/join /leave /stats EXIT"
+            + "Username: hello hi how are you thanks the you and to is it that what [")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Compression(){
+    }
+
+    /**
+     * @return : a new compressor for one direction of one connection.
+     */
+    static Deflater newDeflater(){
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    /**
+     * @return : a new decompressor for one direction of one connection.
+     */
+    static Inflater newInflater(){
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    /**
+     * Wraps a client's stream to the server so everything written to it is compressed, and sent whenever it is flushed.
+     *
+     * @param out : the stream to the server.
+     * @return : the compressing stream.
+     */
+    static OutputStream deflating(OutputStream out){
+        return new DeflaterOutputStream(out, newDeflater(), 4096, true);
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A datagram of the server's fan-out to read-only subscribers (see FanOut). Each one carries the server's epoch (when
+ * it started, so a subscriber can tell a restarted server from a gap) and a sequence number, which goes up by one for
+ * every message, so a subscriber that misses some can fetch them again over TCP.
+ *
+ * A datagram is: byte kind, long epoch, long sequence number, then for a message short channel length and the channel
+ * (0 for a message to everyone) and the message as the line the server sends clients. Over TCP each one is sent with
+ * an int length before it. A repair request is three longs: the epoch, the first and the last sequence number wanted.
+ *
+ * The server and FanOutSubscriber compile this same file from Shared/src.
+ */
+final class FanOutDatagram {
+
+    /**
+     * Stores the kind of a datagram carrying a message.
+     */
+    static final byte MESSAGE = 1;
+
+    /**
+     * Stores the kind of the datagram sent every second, whose sequence number is that of the last message, so a
+     * subscriber notices missing the last messages before a quiet spell.
+     */
+    static final byte HEARTBEAT = 2;
+
+    /**
+     * Stores the kind of a repair reply saying messages are no longer kept. Its sequence number is the first that is.
+     */
+    static final byte GONE = 3;
+
+    /**
+     * Stores the kind of the reply that ends the answer to a repair request.
+     */
+    static final byte END = 4;
+
+    /**
+     * Stores the length of a datagram before the channel: the kind, the epoch and the sequence number.
+     */
+    static final int HEADER_LENGTH = 17;
+
+    /**
+     * Stores the largest datagram sent, which fits in one Ethernet frame (1500 bytes less the IP and UDP headers) so
+     * it is never split into fragments, of which losing one loses the lot. Bigger messages are only sent over TCP.
+     */
+    static final int MAX_LENGTH = 1472;
+
+    /**
+     * Stores the length of a repair request.
+     */
+    static final int REQUEST_LENGTH = 24;
+
+    /**
+     * Stores the largest datagram read over TCP, anything bigger is treated as a broken connection.
+     */
+    static final int MAX_TCP_LENGTH = 1 << 21;
+
+    /**
+     * Stores the kind of the datagram.
+     */
+    final byte kind;
+
+    /**
+     * Stores the epoch of the server that sent it.
+     */
+    final long epoch;
+
+    /**
+     * Stores the sequence number.
+     */
+    final long seq;
+
+    /**
+     * Stores the channel the message was sent to, or null if it was sent to everyone or it is not a message.
+     */
+    final String channel;
+
+    /**
+     * Stores the message as the line the server sends clients, or null if it is not a message.
+     */
+    final String line;
+
+    /**
+     * Instance method for FanOutDatagram
+     *
+     * @param kind : the kind of the datagram.
+     * @param epoch : the epoch of the server that sent it.
+     * @param seq : the sequence number.
+     * @param channel : the channel the message was sent to, or null.
+     * @param line : the message, or null.
+     */
+    private FanOutDatagram(byte kind, long epoch, long seq, String channel, String line) {
+        this.kind = kind;
+        this.epoch = epoch;
+        this.seq = seq;
+        this.channel = channel;
+        this.line = line;
+    }
+
+    /**
+     * Encodes a datagram carrying a message.
+     *
+     * @param epoch : the epoch of the server.
+     * @param seq : the sequence number of the message.
+     * @param channel : the channel the message was sent to, or null if it was sent to everyone.
+     * @param line : the message as the line the server sends clients.
+     * @return : the datagram, ready to be sent.
+     */
+    static ByteBuffer message(long epoch, long seq, String channel, ByteBuffer line) {
+        byte[] channelBytes = channel == null ? new byte[0] : channel.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + 2 + channelBytes.length + line.remaining());
+        out.put(MESSAGE).putLong(epoch).putLong(seq);
+        out.putShort((short) channelBytes.length).put(channelBytes);
+        out.put(line.duplicate());
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encodes a datagram that carries no message: a heartbeat or a repair reply.
+     *
+     * @param kind : HEARTBEAT, GONE or END.
+     * @param epoch : the epoch of the server.
+     * @param seq : the sequence number.
+     * @return : the datagram, ready to be sent.
+     */
+    static ByteBuffer control(byte kind, long epoch, long seq) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH);
+        out.put(kind).putLong(epoch).putLong(seq);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decodes a datagram.
+     *
+     * @param in : the datagram.
+     * @return : the datagram decoded, or null if it is not one.
+     */
+    static FanOutDatagram decode(ByteBuffer in) {
+        if(in.remaining() < HEADER_LENGTH){
+            return null;
+        }
+        byte kind = in.get();
+        long epoch = in.getLong();
+        long seq = in.getLong();
+        if(kind != MESSAGE){
+            return kind >= HEARTBEAT && kind <= END ? new FanOutDatagram(kind, epoch, seq, null, null) : null;
+        }
+        if(in.remaining() < 2){
+            return null;
+        }
+        int channelLength = in.getShort() & 0xFFFF;
+        if(in.remaining() < channelLength){
+            return null;
+        }
+        String channel = channelLength == 0 ? null
+                : new String(in.array(), in.arrayOffset() + in.position(), channelLength, StandardCharsets.UTF_8);
+        in.position(in.position() + channelLength);
+        String line = new String(in.array(), in.arrayOffset() + in.position(), in.remaining(), StandardCharsets.UTF_8);
+        return new FanOutDatagram(kind, epoch, seq, channel, line);
+    }
+
+    /**
+     * Reads a datagram sent over TCP, with its length before it.
+     *
+     * @param in : the stream.
+     * @return : the datagram decoded, or null if it is not one.
+     * @throws IOException : if the stream ends or the length is not valid.
+     */
+    static FanOutDatagram read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < HEADER_LENGTH || length > MAX_TCP_LENGTH){
+            throw new IOException("Invalid datagram length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return decode(ByteBuffer.wrap(bytes));
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads what the server sends a line at a time until it confirms compression, and decompresses everything after that.
+ * The confirmation line itself is left out, so whatever reads from this sees the same lines as without compression.
+ * This is the clients' side; the server does its own reading.
+ */
+class NegotiatedInputStream extends FilterInputStream {
+
+    /**
+     * Stores the line being passed on before compression starts.
+     */
+    private byte[] line = new byte[0];
+
+    /**
+     * Stores how much of the line has been passed on.
+     */
+    private int linePosition;
+
+    /**
+     * Stores the decompressing stream, once compression has started.
+     */
+    private InputStream inflated;
+
+    /**
+     * Instance method for NegotiatedInputStream
+     *
+     * @param in : the stream of the server.
+     */
+    NegotiatedInputStream(InputStream in) {
+        super(new BufferedInputStream(in));
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(inflated == null && linePosition == line.length && !nextLine()){
+            return -1;
+        }
+        if(inflated != null && linePosition == line.length){
+            try {
+                return inflated.read(b, off, len);
+            }
+            catch (EOFException e) {
+                //The server has gone.
+                return -1;
+            }
+        }
+        int n = Math.min(len, line.length - linePosition);
+        System.arraycopy(line, linePosition, b, off, n);
+        linePosition += n;
+        return n;
+    }
+
+    /**
+     * Reads the next plain line, starting compression instead if it is the confirmation.
+     *
+     * @return : false if the server has gone.
+     * @throws IOException : if the stream can not be read.
+     */
+    private boolean nextLine() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            bytes.write(b);
+            if(b == '\n'){
+                break;
+            }
+        }
+        if(bytes.size() == 0){
+            return false;
+        }
+        String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        if(text.equals(Compression.DEFLATE_CONFIRM)){
+            inflated = new InflaterInputStream(in, Compression.newInflater());
+            return true;
+        }
+        line = bytes.toByteArray();
+        linePosition = 0;
+        return true;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public int available() throws IOException {
+        return linePosition < line.length ? line.length - linePosition : 0;
+    }
+}
@@ -0,0 +1,556 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection between a client and a server on the same machine through a memory-mapped file instead of TCP. The
+ * file holds two rings, one each way, that the two processes copy bytes into and out of directly, so a message never
+ * goes through the kernel. Everything else (usernames, lines, binary frames, compression) is the same as over TCP.
+ *
+ * The client makes the file in the directory the server watches, under a temporary name, and renames it to end in
+ * ".ring" once it is ready. The server maps it, marks it as accepted and deletes its name, so the file goes away by
+ * itself once both sides have closed.
+ *
+ * The server and every client compile this same file from Shared/src.
+ */
+class SharedMemoryChannel implements ByteChannel, GatheringByteChannel {
+
+    /**
+     * Stores what the file name of a client waiting to be accepted ends with.
+     */
+    static final String SUFFIX = ".ring";
+
+    /**
+     * Stores the number of bytes each ring holds by default.
+     */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * Stores the value at the start of the file that says it is one of these connections and is ready.
+     */
+    private static final int MAGIC = 0x43484154;
+
+    /**
+     * Stores the offsets in the file of the magic number, the state, the capacity of each ring and the process ids of
+     * the client and the server.
+     */
+    private static final int MAGIC_OFFSET = 0, STATE_OFFSET = 4, CAPACITY_OFFSET = 8, CLIENT_PID_OFFSET = 16,
+            SERVER_PID_OFFSET = 24;
+
+    /**
+     * Stores the length of the start of the file, before the rings.
+     */
+    private static final int HEADER_LENGTH = 64;
+
+    /**
+     * Stores the state of a client that has been accepted by the server.
+     */
+    private static final int ACCEPTED = 1;
+
+    /**
+     * Stores how long a client waits for the server to accept it.
+     */
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Stores how often a side that is waiting checks that the other side's process is still running.
+     */
+    private static final long PEER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Stores how many connections this process has made, to give each file its own name.
+     */
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Stores the ring this side reads from.
+     */
+    private final ShmRing in;
+
+    /**
+     * Stores the ring this side writes to.
+     */
+    private final ShmRing out;
+
+    /**
+     * Stores the process id of the other side, to notice it going away without closing.
+     */
+    private final long peerPid;
+
+    /**
+     * Stores whether or not this side has closed the connection.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Instance method for SharedMemoryChannel
+     *
+     * @param inRing : the ring this side reads from.
+     * @param outRing : the ring this side writes to.
+     * @param pid : the process id of the other side.
+     */
+    private SharedMemoryChannel(ShmRing inRing, ShmRing outRing, long pid) {
+        in = inRing;
+        out = outRing;
+        peerPid = pid;
+    }
+
+    /**
+     * Connects to a server watching a directory, waiting until it has accepted. Called by a client.
+     *
+     * @param dir : the directory the server watches.
+     * @param capacity : the number of bytes each ring holds, a power of two.
+     * @return : the connection.
+     * @throws IOException : if the file can not be made or no server accepts it in time.
+     */
+    static SharedMemoryChannel connect(Path dir, int capacity) throws IOException {
+        String name = ProcessHandle.current().pid() + "-" + connections.incrementAndGet();
+        Path temp = dir.resolve(name + ".tmp");
+        Path ready = dir.resolve(name + SUFFIX);
+        ByteBuffer map;
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileLength(capacity));
+        }
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.putLong(CLIENT_PID_OFFSET, ProcessHandle.current().pid());
+        ShmRing.INTS.setRelease(map, MAGIC_OFFSET, MAGIC);
+        //The server only ever sees the finished file, as the rename is atomic.
+        Files.move(temp, ready, StandardCopyOption.ATOMIC_MOVE);
+
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        Idle idle = new Idle();
+        while ((int) ShmRing.INTS.getAcquire(map, STATE_OFFSET) != ACCEPTED) {
+            if(System.nanoTime() > deadline){
+                deleteIfThere(ready);
+                throw new IOException("No server is accepting shared memory clients in " + dir);
+            }
+            idle.pause();
+        }
+        return new SharedMemoryChannel(new ShmRing(map, HEADER_LENGTH + ShmRing.length(capacity), capacity),
+                new ShmRing(map, HEADER_LENGTH, capacity), map.getLong(SERVER_PID_OFFSET));
+    }
+
+    /**
+     * Accepts a client waiting in a file. Called by the server.
+     *
+     * @param file : the file the client made.
+     * @return : the connection.
+     * @throws IOException : if the file can not be mapped or is not one of these connections.
+     */
+    static SharedMemoryChannel accept(Path file) throws IOException {
+        ByteBuffer map;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if(fc.size() < HEADER_LENGTH || fc.size() > Integer.MAX_VALUE){
+                throw new IOException("Not a shared memory connection: " + file);
+            }
+            map = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+        }
+        int capacity = map.getInt(CAPACITY_OFFSET);
+        if((int) ShmRing.INTS.getAcquire(map, MAGIC_OFFSET) != MAGIC || capacity <= 0 || Integer.bitCount(capacity) != 1
+                || map.capacity() != fileLength(capacity)){
+            throw new IOException("Not a shared memory connection: " + file);
+        }
+        SharedMemoryChannel channel = new SharedMemoryChannel(new ShmRing(map, HEADER_LENGTH, capacity),
+                new ShmRing(map, HEADER_LENGTH + ShmRing.length(capacity), capacity), map.getLong(CLIENT_PID_OFFSET));
+        map.putLong(SERVER_PID_OFFSET, ProcessHandle.current().pid());
+        ShmRing.INTS.setRelease(map, STATE_OFFSET, ACCEPTED);
+        //Both sides have it mapped, so the name is no longer needed and the file goes once they close.
+        deleteIfThere(file);
+        return channel;
+    }
+
+    /**
+     * @return : the length of the file for rings of the given capacity.
+     */
+    private static long fileLength(int capacity) {
+        return HEADER_LENGTH + 2L * ShmRing.length(capacity);
+    }
+
+    /**
+     * Deletes a file, if the other side has not already.
+     *
+     * @param file : the file.
+     * @throws IOException : if the file is there but can not be deleted.
+     */
+    private static void deleteIfThere(Path file) throws IOException {
+        try {
+            Files.delete(file);
+        }
+        catch (NoSuchFileException e) {
+            //The other side got there first.
+        }
+    }
+
+    /**
+     * @return : whether or not the other side's process is still running.
+     */
+    private boolean isPeerAlive() {
+        return ProcessHandle.of(peerPid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    /**
+     * Reads whatever the other side has written, waiting until there is something.
+     *
+     * @param dst : where to put it.
+     * @return : how many bytes were read, or -1 once either side has closed (or its process has gone) and everything
+     * has been read.
+     * @throws IOException : if this side has already been closed.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if(closed){
+            throw new ClosedChannelException();
+        }
+        Idle idle = new Idle();
+        int n;
+        while ((n = in.read(dst)) == 0 && dst.hasRemaining()) {
+            if(in.isWriterClosed()){
+                //Anything written just before closing has to be read before the end is given.
+                n = in.read(dst);
+                return n > 0 ? n : -1;
+            }
+            if(closed || idle.isDue() && !isPeerAlive()){
+                //Closed on another thread (i.e. for being idle), or the other side went without closing.
+                return -1;
+            }
+            idle.pause();
+        }
+        return n;
+    }
+
+    /**
+     * Writes all of some bytes, waiting for the other side to make room whenever the ring is full.
+     *
+     * @param src : the bytes.
+     * @return : how many bytes were written.
+     * @throws IOException : if either side has closed.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    /**
+     * Writes all of some buffers, waiting for the other side to make room whenever the ring is full.
+     *
+     * @param srcs : the buffers.
+     * @param offset : the index of the first buffer to write.
+     * @param length : how many buffers to write.
+     * @return : how many bytes were written.
+     * @throws IOException : if either side has closed, or the other side's process has gone.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        Idle idle = new Idle();
+        for (int i = offset; i < offset + length; i++) {
+            while (srcs[i].hasRemaining()) {
+                if(closed || out.isReaderClosed() || idle.isDue() && !isPeerAlive()){
+                    throw new ClosedChannelException();
+                }
+                int n = out.write(srcs[i]);
+                if(n == 0){
+                    idle.pause();
+                }
+                else {
+                    total += n;
+                    idle = new Idle();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes all of some buffers.
+     *
+     * @param srcs : the buffers.
+     * @return : how many bytes were written.
+     * @throws IOException : if either side has closed.
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * @return : whether or not this side has not closed the connection yet.
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes this side, so the other side reads the end once it has read everything and can no longer write.
+     */
+    public void close() {
+        closed = true;
+        out.closeWriter();
+        in.closeReader();
+    }
+
+    /**
+     * Waits for the other side without a system call for as long as it is likely to answer quickly, then gives way to
+     * other threads for a while and then backs off to sleeping for longer and longer, so a busy connection takes well
+     * under a microsecond and an idle one costs little.
+     */
+    static final class Idle {
+
+        /**
+         * Stores how long to spin for before sleeping. With a single core the other side can not run whilst this one
+         * spins, so it goes straight to giving way.
+         */
+        private static final long SPIN_NANOS = Runtime.getRuntime().availableProcessors() > 1
+                ? TimeUnit.MICROSECONDS.toNanos(50) : 0;
+
+        /**
+         * Stores how long to give way to other threads for after spinning, before sleeping.
+         */
+        private static final long YIELD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        /**
+         * Stores the longest sleep, which is the most an idle connection adds to the next message.
+         */
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        /**
+         * Stores when waiting started, or 0 if it has not yet.
+         */
+        private long start;
+
+        /**
+         * Stores how long the next sleep is.
+         */
+        private long parkNanos = TimeUnit.MICROSECONDS.toNanos(10);
+
+        /**
+         * Stores when the other side's process is next checked, or 0 if waiting has not started yet.
+         */
+        private long nextCheck;
+
+        /**
+         * @return : whether or not it has been long enough since waiting started, or since the last time this said so,
+         * to check that the other side's process is still running.
+         */
+        boolean isDue() {
+            long now = System.nanoTime();
+            if(nextCheck == 0){
+                nextCheck = now + PEER_CHECK_NANOS;
+                return false;
+            }
+            if(now < nextCheck){
+                return false;
+            }
+            nextCheck = now + PEER_CHECK_NANOS;
+            return true;
+        }
+
+        /**
+         * Waits a little before checking the other side again.
+         */
+        void pause() {
+            long now = System.nanoTime();
+            if(start == 0){
+                start = now;
+            }
+            if(now - start < SPIN_NANOS){
+                Thread.onSpinWait();
+                return;
+            }
+            if(now - start < SPIN_NANOS + YIELD_NANOS){
+                Thread.yield();
+                return;
+            }
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+}
+
+/**
+ * One direction of a SharedMemoryChannel: a ring of bytes in a mapped file with a single writer in one process and a
+ * single reader in the other. The writer only moves the head and the reader only moves the tail, each in its own cache
+ * line, published with release and read with acquire, so neither side ever locks. Each side keeps the last value it
+ * read of the other's index and only reads it again once the ring looks full (or empty).
+ */
+final class ShmRing {
+
+    /**
+     * Stores how longs in the file are read and written with memory ordering.
+     */
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Stores how ints in the file are read and written with memory ordering.
+     */
+    static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Stores the offsets from the start of the ring of the head, the tail, the closed flags and the bytes.
+     */
+    private static final int HEAD = 0, TAIL = 64, WRITER_CLOSED = 128, READER_CLOSED = 192, DATA = 256;
+
+    /**
+     * Stores the mapped file.
+     */
+    private final ByteBuffer map;
+
+    /**
+     * Stores where this ring starts in the file.
+     */
+    private final int base;
+
+    /**
+     * Stores the bytes of the ring, to copy into and out of.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * Stores the number of bytes the ring holds minus one, to turn an index into a position.
+     */
+    private final int mask;
+
+    /**
+     * Stores this side's own index: the head if it writes, the tail if it reads.
+     */
+    private long own;
+
+    /**
+     * Stores the last value read of the other side's index.
+     */
+    private long other;
+
+    /**
+     * Instance method for ShmRing
+     *
+     * @param mapped : the mapped file.
+     * @param offset : where the ring starts in the file.
+     * @param capacity : the number of bytes the ring holds, a power of two.
+     */
+    ShmRing(ByteBuffer mapped, int offset, int capacity) {
+        map = mapped;
+        base = offset;
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset + DATA).limit(offset + DATA + capacity);
+        data = view.slice();
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return : the number of bytes in the file for a ring holding capacity bytes.
+     */
+    static int length(int capacity) {
+        return DATA + capacity;
+    }
+
+    /**
+     * Copies as much of some bytes into the ring as there is room for. Only called by the writer.
+     *
+     * @param src : the bytes.
+     * @return : how many were copied.
+     */
+    int write(ByteBuffer src) {
+        long head = own;
+        long free = data.capacity() - (head - other);
+        if(free < src.remaining()){
+            other = (long) LONGS.getAcquire(map, base + TAIL);
+            free = data.capacity() - (head - other);
+        }
+        int n = (int) Math.min(free, src.remaining());
+        copy(src, n, (int) head & mask, true);
+        own = head + n;
+        LONGS.setRelease(map, base + HEAD, own);
+        return n;
+    }
+
+    /**
+     * Copies as much as is in the ring into some bytes as they have room for. Only called by the reader.
+     *
+     * @param dst : where to put it.
+     * @return : how many bytes were copied.
+     */
+    int read(ByteBuffer dst) {
+        long tail = own;
+        if(other == tail){
+            other = (long) LONGS.getAcquire(map, base + HEAD);
+        }
+        int n = (int) Math.min(other - tail, dst.remaining());
+        copy(dst, n, (int) tail & mask, false);
+        own = tail + n;
+        LONGS.setRelease(map, base + TAIL, own);
+        return n;
+    }
+
+    /**
+     * Copies bytes between a buffer and the ring, in two parts if they go past the end of the ring.
+     *
+     * @param buffer : the buffer.
+     * @param n : how many bytes to copy.
+     * @param position : where in the ring to start.
+     * @param toRing : true to copy from the buffer into the ring, false the other way.
+     */
+    private void copy(ByteBuffer buffer, int n, int position, boolean toRing) {
+        int first = Math.min(n, data.capacity() - position);
+        part(buffer, first, position, toRing);
+        part(buffer, n - first, 0, toRing);
+    }
+
+    /**
+     * Copies bytes between a buffer and one stretch of the ring.
+     */
+    private void part(ByteBuffer buffer, int n, int position, boolean toRing) {
+        if(n == 0){
+            return;
+        }
+        data.limit(position + n).position(position);
+        if(toRing){
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + n);
+            data.put(buffer);
+            buffer.limit(limit);
+        }
+        else {
+            buffer.put(data);
+        }
+        data.clear();
+    }
+
+    /**
+     * Says that nothing more will be written, so the reader gets the end once it has read everything.
+     */
+    void closeWriter() {
+        INTS.setRelease(map, base + WRITER_CLOSED, 1);
+    }
+
+    /**
+     * Says that nothing more will be read, so the writer stops waiting for room.
+     */
+    void closeReader() {
+        INTS.setRelease(map, base + READER_CLOSED, 1);
+    }
+
+    /**
+     * @return : whether or not the writer has closed.
+     */
+    boolean isWriterClosed() {
+        return (int) INTS.getAcquire(map, base + WRITER_CLOSED) != 0;
+    }
+
+    /**
+     * @return : whether or not the reader has closed.
+     */
+    boolean isReaderClosed() {
+        return (int) INTS.getAcquire(map, base + READER_CLOSED) != 0;
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.file.Paths;
+
+/**
+ * A SharedMemoryChannel that looks like a socket, so a client can use it in place of one.
+ */
+class SharedMemorySocket extends Socket {
+
+    /**
+     * Stores the connection to the server.
+     */
+    private final SharedMemoryChannel channel;
+
+    /**
+     * Stores the stream of what the server sends.
+     */
+    private final InputStream in;
+
+    /**
+     * Stores the stream of what is sent to the server.
+     */
+    private final OutputStream out;
+
+    /**
+     * Instance method for SharedMemorySocket
+     *
+     * @param sharedMemoryChannel : the connection to the server.
+     */
+    private SharedMemorySocket(SharedMemoryChannel sharedMemoryChannel) {
+        channel = sharedMemoryChannel;
+        in = Channels.newInputStream(channel);
+        out = Channels.newOutputStream(channel);
+    }
+
+    /**
+     * Connects to a server on this machine that accepts shared memory clients in a directory.
+     *
+     * @param dir : the directory the server was started with (its -shm parameter).
+     * @return : the socket.
+     * @throws IOException : if no server accepts the connection.
+     */
+    static Socket connect(String dir) throws IOException {
+        return new SharedMemorySocket(SharedMemoryChannel.connect(Paths.get(dir),
+                SharedMemoryChannel.DEFAULT_CAPACITY));
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void setTcpNoDelay(boolean on) {
+        //Nothing is ever held back, so there is nothing to turn off.
+    }
+
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        super.close();
+    }
+}
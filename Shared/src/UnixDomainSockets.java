@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Unix domain sockets, so clients on the same machine can connect through a file instead of a TCP port. They skip the
+ * TCP/IP stack (no checksums, acks or loopback routing) but are still sockets, so the server serves them on either
+ * engine like any other client. They are only in JDK 16 and later, so they are looked up reflectively and everything
+ * else still builds and runs on older JDKs.
+ *
+ * The server and every client compile this same file from Shared/src.
+ */
+final class UnixDomainSockets {
+
+    /**
+     * Instance method for UnixDomainSockets, which is never made as it only has static methods.
+     */
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * Makes the address of a Unix domain socket (UnixDomainSocketAddress.of(path)).
+     *
+     * @param path : the path of the socket's file.
+     * @return : the address.
+     * @throws IOException : if Unix domain sockets are not supported by this JDK.
+     */
+    static SocketAddress address(String path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+                    .invoke(null, path);
+        }
+        catch (ReflectiveOperationException e) {
+            if(e.getCause() instanceof RuntimeException){
+                //i.e. the path is not valid.
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Unix domain sockets are not supported by this JDK", e);
+        }
+    }
+
+    /**
+     * Opens a server channel listening on a Unix domain socket. A socket file left behind by a server that did not
+     * shutdown cleanly would stop the bind, so one that no server is listening on any more is deleted first.
+     *
+     * @param path : the path of the socket's file.
+     * @param backlog : how many clients can be waiting to be accepted.
+     * @return : the bound channel, in blocking mode.
+     * @throws IOException : if Unix domain sockets are not supported by this JDK, or the socket can not be bound.
+     */
+    static ServerSocketChannel listen(String path, int backlog) throws IOException {
+        SocketAddress address = address(path);
+        deleteStale(Paths.get(path), address);
+        ServerSocketChannel ssc;
+        try {
+            ssc = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        }
+        catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException("Unix domain sockets are not supported by this JDK", e);
+        }
+        try {
+            ssc.bind(address, backlog);
+        }
+        catch (IOException e) {
+            ssc.close();
+            throw e;
+        }
+        return ssc;
+    }
+
+    /**
+     * Deletes a socket file no server is listening on. Anything that is not a socket (i.e. a regular file given by
+     * mistake) is left alone, as is a socket another server is still listening on.
+     *
+     * @param file : the path of the socket's file.
+     * @param address : the address of the socket.
+     * @throws IOException : if the file can not be deleted.
+     */
+    private static void deleteStale(Path file, SocketAddress address) throws IOException {
+        if(!Files.exists(file, LinkOption.NOFOLLOW_LINKS)
+                || !Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()){
+            return;
+        }
+        SocketChannel probe;
+        try {
+            probe = SocketChannel.open(address);
+        }
+        catch (IOException e) {
+            //Nothing is listening.
+            Files.deleteIfExists(file);
+            return;
+        }
+        //Another server is still listening, so binding fails and says so.
+        probe.close();
+    }
+
+    /**
+     * Connects to a server listening on a Unix domain socket.
+     *
+     * @param path : the path of the socket's file (the server's -uds parameter).
+     * @return : the socket.
+     * @throws IOException : if Unix domain sockets are not supported by this JDK, or no server is listening.
+     */
+    static Socket connect(String path) throws IOException {
+        return new ChannelSocket(SocketChannel.open(address(path)));
+    }
+
+    /**
+     * @param sc : the channel of a client.
+     * @return : whether or not the channel is a Unix domain socket rather than TCP.
+     */
+    static boolean isUnix(SocketChannel sc) {
+        try {
+            return !(sc.getLocalAddress() instanceof InetSocketAddress);
+        }
+        catch (IOException e) {
+            //The client has gone already, so it does not matter.
+            return false;
+        }
+    }
+
+    /**
+     * Describes where a client connected from for the server's log: the ports for TCP, or the socket's file for a
+     * Unix domain socket, whose clients have no address of their own.
+     *
+     * @param sc : the channel of the client.
+     * @return : the description.
+     */
+    static String describe(SocketChannel sc) {
+        try {
+            SocketAddress local = sc.getLocalAddress();
+            SocketAddress remote = sc.getRemoteAddress();
+            if(local instanceof InetSocketAddress && remote instanceof InetSocketAddress){
+                return ((InetSocketAddress) local).getPort() + " ; " + ((InetSocketAddress) remote).getPort();
+            }
+            return String.valueOf(local);
+        }
+        catch (IOException e) {
+            //The client has gone already.
+            return "a closed channel";
+        }
+    }
+}
+
+/**
+ * A Socket over a connected, blocking SocketChannel, so the clients can use a Unix domain socket, whose channel has no
+ * Socket of its own, the same way as a TCP one.
+ */
+class ChannelSocket extends Socket {
+
+    /**
+     * Stores the channel to the server.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Stores the stream of what the server sends.
+     */
+    private final InputStream in;
+
+    /**
+     * Stores the stream of what is sent to the server. Channels.newOutputStream is not used as it waits for the same
+     * lock a blocked read holds, so a client waiting for a message could not send one.
+     */
+    private final OutputStream out = new OutputStream() {
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    };
+
+    /**
+     * Instance method for ChannelSocket
+     *
+     * @param socketChannel : the connected channel to the server.
+     */
+    ChannelSocket(SocketChannel socketChannel) {
+        channel = socketChannel;
+        in = Channels.newInputStream(channel);
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void setTcpNoDelay(boolean on) {
+        //Not TCP, so nothing is held back to be sent with the next write.
+    }
+
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        super.close();
+    }
+}
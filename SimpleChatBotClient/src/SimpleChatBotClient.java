@@ -2,9 +2,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 
 /**
  * The main class for the client. Creates a connection with the server, reads an processes parameters, and instantiates
@@ -22,6 +20,11 @@ public class SimpleChatBotClient {
      */
     boolean serverShutdown = false;
 
+    /**
+     * Stores whether or not the bot asks the server to compress everything sent each way.
+     */
+    final boolean deflate;
+
     /**
      * Instance method for SimpleChatBotClient
      *
@@ -29,27 +32,18 @@ public class SimpleChatBotClient {
      * @param port : port the client tries to connect to a server through.
      */
     public SimpleChatBotClient(String address, int port) {
-        try {
-            //Attempts to create a new socket with the server on the address and port given.
-            server = new Socket(address,port);
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (ConnectException e){
-            /* However if there was a timeout there was likely a problem with the address given so we set the address to
-             * default and see if that will work.
-             */
+        this(new ClientTransport(address, port), false);
+    }
 
-            System.out.println("Connection timed out: setting address to localhost (default).");
-            try {
-                server = new Socket("localhost", port);
-            } catch(UnknownHostException e1){
-                e.printStackTrace();
-            } catch(IOException e1){
-                e.printStackTrace();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Instance method for SimpleChatBotClient
+     *
+     * @param transport : how the bot reaches the server.
+     * @param deflate : whether or not to ask the server to compress everything sent each way.
+     */
+    SimpleChatBotClient(ClientTransport transport, boolean deflate) {
+        this.deflate = deflate;
+        server = transport.connect();
     }
 
     /**
@@ -73,54 +67,25 @@ public class SimpleChatBotClient {
     public static void main(String[] args) {
 
         /**
-         * Stores the address that the client will bind to.
+         * Stores how the bot reaches the server.
          */
-        String address = "localhost";
+        ClientTransport transport = ClientTransport.parse(args);
 
         /**
-         * Stores the port the client will use to connect to the server.
+         * Stores whether or not to ask the server for compression.
          */
-        int port = 14001;
-
-        /**
-         * Stores whether or not the address needs to be changed.
-         */
-        boolean changeAddress = false;
-
-        /**
-         * Stores whether or not the port needs to be changed.
-         */
-        boolean changePort = false;
+        boolean deflate = false;
 
         for (String arg: args) {
-            //Goes through parameters passed in by the user running the client and attempts to apply given parameters.
-            if(changeAddress){
-                //If we are changing the address we set it to the argument after a -cca and inform the user.
-                address = arg;
-                System.out.println("Setting address: " + address);
+            //Goes through the parameters that are not about how to reach the server.
+            if(arg.equals("-deflate")){
+                deflate = true;
+                System.out.println("Using compression");
             }
-            if(changePort){
-                try{
-                    /* If changing the port we attempt to convert the parameter to an int. If it throws an error there
-                     * was an error with the parameter so we set to default and inform the user what has happened.
-                     */
-                    port = Integer.parseInt(arg);
-                    System.out.println("Setting port: " + port);
-                }
-                catch(NumberFormatException e){
-                    System.out.println("Invalid port: setting port to 14001 (default).");
-                }
-            }
-
-            /* If the parameter is -cca we will be changing the address in the next arg, if it is -ccp we will be
-             * changing the port is the next arg.
-             */
-            changeAddress = arg.equals("-cca");
-            changePort = arg.equals("-ccp");
         }
 
         //Creates an instance of SimpleChatBotClient with the address and port guided by parameters.
-        new SimpleChatBotClient(address, port).go();
+        new SimpleChatBotClient(transport, deflate).go();
     }
 }
 
@@ -159,7 +124,8 @@ class ListeningToServer extends Thread{
             /**
              * Stores the buffer reader used to read the input stream reader for the input steam of the server.
              */
-            BufferedReader serverIn = new BufferedReader(new InputStreamReader(server.getInputStream()));
+            BufferedReader serverIn = new BufferedReader(new InputStreamReader(scbc.deflate
+                    ? new NegotiatedInputStream(server.getInputStream()) : server.getInputStream()));
             PrintWriter serverOut = new PrintWriter(server.getOutputStream(), true);
 
 
@@ -193,13 +159,21 @@ class ListeningToServer extends Thread{
                 serverMsg = serverMsg.substring(splitMsg); //Substring to remove the username
 
                 if(serverMsg.equals("Username: ")){
-                    //Sets the username to bot.
-                    serverOut.println("BOT");
+                    //Sets the username to bot, asking for compression if needed.
+                    serverOut.println(scbc.deflate ? Compression.DEFLATE_REQUEST + "BOT" : "BOT");
+                    if(scbc.deflate){
+                        //Everything after the username is compressed.
+                        serverOut = new PrintWriter(Compression.deflating(server.getOutputStream()), true);
+                    }
                 }
                 else if(serverMsg.equals("EXIT")){
                     //It will shutdown the client when the server has been shutdown by someone.
                     scbc.serverShutdown = true;
                 }
+                else if(serverMsg.equals("PING")){
+                    //The server checking the bot is still here, which isn't something to respond to.
+                    serverOut.println("PONG");
+                }
                 else{
                     if(!serverMsg.equals(response)){
                         //If we are not setting the username or exiting, the bot needs a response.